@@ -61,6 +61,7 @@ public class StlVisualizer {
 
             imgui.newFrame();
             imgui.renderUI(modelManager, dialogHandler, chunks, points, isModelLoaded, isPointCloud, isRendering, onlyPointsMode);
+            modelManager.update(chunks, points, isPointCloud, isRendering); // Готовые уровни фоновой реконструкции
 
             if (isRendering[0] && isModelLoaded[0]) {
                 if (isPointCloud[0]) {
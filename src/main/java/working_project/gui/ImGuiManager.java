@@ -23,6 +23,8 @@ import imgui.ImFont;
 import imgui.ImFontAtlas;
 import imgui.ImFontConfig;
 import working_project.rendering.Point3D;
+import working_project.marching_cubes.ReconstructionPlanner;
+import working_project.marching_cubes.SurfaceEngine;
 
 import static org.lwjgl.opengl.GL11C.*;
 import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
@@ -35,6 +37,9 @@ public class ImGuiManager {
 
     private final ImFloat voxelSize = new ImFloat(0.1f);
     private final ImFloat isoLevel = new ImFloat(10.0f);
+    private final ImInt surfaceEngine = new ImInt(0);
+    private static final String[] SURFACE_ENGINES = {"Marching cubes", "Surface nets", "Adaptive octree"};
+    private final ImInt memoryBudget = new ImInt((int) (ReconstructionPlanner.defaultBudgetBytes() >> 20));
 
 
     public ImGuiManager(WindowManager window) {
@@ -168,8 +173,38 @@ public class ImGuiManager {
         if (voxelSize.get() <= 0) voxelSize.set(0.1f);
         ImGui.inputFloat("Iso Level", isoLevel, 0.1f, 1.0f, "%.1f");
         if (isoLevel.get() < 0) isoLevel.set(10.0f);
+        ImGui.combo("Surface", surfaceEngine, SURFACE_ENGINES);
+        ImGui.inputInt("Memory budget (MB)", memoryBudget, 64, 1024);
+        if (memoryBudget.get() < 64) memoryBudget.set(64);
+        long budgetBytes = (long) memoryBudget.get() << 20;
+        SurfaceEngine engine = SurfaceEngine.values()[surfaceEngine.get()];
+        ReconstructionPlanner.Plan plan = modelManager.planReconstruction(voxelSize.get(), isoLevel.get(), engine, budgetBytes);
+        if (plan != null) {
+            ImGui.text(plan.getSummary());
+            if (!plan.fitsBudget()) {
+                ImGui.textColored(1.0f, 0.3f, 0.3f, 1.0f, "Does not fit the memory budget");
+            } else if (plan.getVoxelSize() != plan.getRequestedVoxelSize()) {
+                ImGui.textColored(1.0f, 0.8f, 0.2f, 1.0f, String.format("Voxel size will be raised to %.4f", plan.getVoxelSize()));
+            }
+            ImGui.text(String.format("Point spacing ~%.4f", plan.getPointSpacing()));
+            ImGui.sameLine();
+            if (ImGui.smallButton("Use")) {
+                voxelSize.set((float) plan.getPointSpacing());
+            }
+        }
         if (ImGui.button("Marching cubes", 280, 40)) {
-            modelManager.applyMarchingCubes(chunks, points, isPointCloud, isRendering, voxelSize.get(), isoLevel.get());
+            modelManager.applyMarchingCubes(voxelSize.get(), isoLevel.get(), engine, budgetBytes);
+        }
+        // Потоковая реконструкция прямо в файл: меш не создаётся в памяти и не выводится на сцену
+        if (modelManager.isExporting()) {
+            ImGui.beginDisabled();
+            ImGui.button("Marching cubes to file", 280, 40);
+            ImGui.endDisabled();
+        } else if (ImGui.button("Marching cubes to file", 280, 40)) {
+            modelManager.exportReconstruction(fileDialogHandler, voxelSize.get(), isoLevel.get());
+        }
+        if (!modelManager.getReconstructionStatus().isEmpty()) {
+            ImGui.text(modelManager.getReconstructionStatus());
         }
         if (ImGui.button("Remove noise", 280, 40)) {
             modelManager.removeNoise(chunks, isPointCloud, isModelLoaded);
@@ -0,0 +1,560 @@
+package working_project.marching_cubes;
+
+import working_project.marching_cubes.MarchingCubes.Mesh;
+import working_project.rendering.Point3D;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Адаптивная реконструкция поверхности по октодереву вместо сплошной сетки.
+ * <p>
+ * Корень дерева покрывает сетку с шагом voxelSize тех же размеров, что и у
+ * {@link MarchingCubes#processPointCloud(List, double, double, ReconstructionOptions)}. Узел делится, только если
+ * через него может проходить поверхность: поле — расстояние до ближайшей точки, оно 1-липшицево, поэтому
+ * узел с |d(центр) - iso| больше половины диагонали целиком лежит по одну сторону уровня и не делится.
+ * Узел, через который проходит поверхность, делится до размера {@link ReconstructionOptions#getAdaptiveMaxLevel()},
+ * а дальше — только если точек в его окрестности достаточно для оценки кривизны и она больше
+ * {@link ReconstructionOptions#getAdaptiveCurvature()}. На плоских и редких участках остаются крупные листья.
+ * Поле вычисляется только в углах листьев у поверхности, поэтому память и время растут с площадью
+ * поверхности, а не с объёмом габаритов.
+ * <p>
+ * Поверхность извлекается двойственным методом (как {@link SurfaceNets}, но по листьям разного размера):
+ * каждое минимальное ребро дерева, пересекающее уровень, даёт четырёхугольник (или треугольник, если два
+ * соседних листа совпадают) из вершин четырёх листьев вокруг него. Вершина листа — среднее точек пересечения
+ * уровня со всеми такими рёбрами на его границе, поэтому на стыке листьев разного размера трещин не бывает.
+ * <p>
+ * Размер листьев у поверхности ограничен уровнем изоповерхности (лист не больше половины уровня), но не меньше
+ * вокселя. Поэтому при уровне меньше размера вокселя (тонкая оболочка вокруг неориентированного облака)
+ * оба листа поверхности проходят через одни и те же листья, и меш, как у {@link SurfaceNets}, получается
+ * неманифолдным: сфера из 40 000 точек, воксель 0.03, 5-й процентиль (уровень 0.65 вокселя) даёт около
+ * 3 300 рёбер с тремя и более гранями. При уровне около вокселя таких рёбер единицы-десятки, от двух
+ * вокселей — нет. Для тонких оболочек нужен меньший воксель или {@link SurfaceEngine#MARCHING_CUBES}.
+ */
+public final class AdaptiveReconstruction {
+    private static final int ISO_SAMPLES = 1 << 14;
+    // Меньше точек в окрестности — кривизна не оценивается, узел не делится
+    private static final int MIN_FIT_POINTS = 10;
+
+    // Состояния узла
+    private static final byte INTERNAL = 0;
+    private static final byte OUTSIDE = 1;  // Вне сетки
+    private static final byte UNIFORM = 2;  // Целиком по одну сторону уровня
+    private static final byte SURFACE = 3;  // Лист, через который может проходить поверхность
+
+    // Смещения 8 углов в порядке Marching Cubes и обратная таблица: (ox << 2 | oy << 1 | oz) -> угол
+    private static final int[][] cornerOffset = new int[][]{
+            {0, 0, 0}, {1, 0, 0}, {1, 1, 0}, {0, 1, 0},
+            {0, 0, 1}, {1, 0, 1}, {1, 1, 1}, {0, 1, 1}
+    };
+    private static final int[] cornerIndex = new int[8];
+
+    static {
+        for (int n = 0; n < 8; n++) {
+            cornerIndex[cornerOffset[n][0] << 2 | cornerOffset[n][1] << 1 | cornerOffset[n][2]] = n;
+        }
+    }
+
+    /**
+     * Узел октодерева; координаты угла и размер — в вокселях сетки.
+     */
+    private static final class Node {
+        final int x, y, z;
+        final int level; // Размер — 1 << level вокселей
+        byte state;
+        Node[] children; // Индекс ребёнка — (cx << 2) | (cy << 1) | cz
+        float[] corners; // Значения поля в углах листа SURFACE
+        // Сумма точек пересечения уровня с рёбрами на границе листа и индекс его вершины
+        double sumX, sumY, sumZ;
+        int crossings;
+        int vertex = -1;
+
+        Node(int x, int y, int z, int level) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.level = level;
+        }
+    }
+
+    /**
+     * Четырёхугольник минимального ребра: листья вокруг ребра против часовой стрелки вокруг его оси
+     * и точка пересечения уровня с ребром.
+     */
+    private static final class Quad {
+        final Node[] cells;
+        final boolean flip;
+        final double x, y, z;
+
+        Quad(Node[] cells, boolean flip, double x, double y, double z) {
+            this.cells = cells;
+            this.flip = flip;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+    }
+
+    private final double[][] pointArray;
+    private final SpatialIndex index;
+    private final double[] mins;
+    private final double voxelSize;
+    private final int nx, ny, nz;
+    private final double isoLevel;
+    private final int maxLeafLevel;
+    private final double curvature;
+    // Значения поля в узлах сетки, общие для соседних листьев
+    private final LongFloatMap values = new LongFloatMap();
+
+    private AdaptiveReconstruction(double[][] pointArray, SpatialIndex index, double[] mins, double voxelSize,
+                                   int nx, int ny, int nz, double isoLevel, int maxLeafLevel, double curvature) {
+        this.pointArray = pointArray;
+        this.index = index;
+        this.mins = mins;
+        this.voxelSize = voxelSize;
+        this.nx = nx;
+        this.ny = ny;
+        this.nz = nz;
+        this.isoLevel = isoLevel;
+        this.maxLeafLevel = maxLeafLevel;
+        this.curvature = curvature;
+    }
+
+    /**
+     * Строит меш облака точек по адаптивному октодереву.
+     * @param points Облако точек
+     * @param voxelSize Размер самых мелких листьев
+     * @param isoLevelPercentile Процентиль (0-100) значений поля в узлах сетки с шагом voxelSize для выбора уровня;
+     *                           оценивается по случайной выборке узлов
+     * @param options Настройки: пул потоков, нормали вершин, глубина и порог кривизны октодерева;
+     *                если задан кеш полей, индекс точек берётся из него. Способ построения и хранилище поля
+     *                не используются: поле не строится сеткой, а вычисляется точно в углах листьев
+     * @return Сгенерированный меш
+     */
+    public static Mesh reconstruct(List<Point3D> points, double voxelSize, double isoLevelPercentile,
+                                   ReconstructionOptions options) {
+        if (points.isEmpty()) {
+            return new Mesh(0, 0, options.isVertexNormals());
+        }
+        double[] mins = new double[3];
+        double[] maxs = new double[3];
+        double[][] pointArray = MarchingCubes.toPointArray(points, mins, maxs);
+        FieldCache cache = options.getFieldCache();
+        SpatialIndex index = cache != null
+                ? cache.spatialIndex(FieldCache.cloudKey(points), pointArray, options.getPool())
+                : SpatialHashGrid.forPoints(pointArray, options.getPool());
+        return reconstruct(pointArray, mins, maxs, index, voxelSize, isoLevelPercentile, options);
+    }
+
+    /**
+     * Вариант с готовыми координатами, габаритами и индексом точек (например, общими для уровней
+     * {@link ProgressiveReconstruction}).
+     */
+    static Mesh reconstruct(double[][] pointArray, double[] mins, double[] maxs, SpatialIndex index, double voxelSize,
+                            double isoLevelPercentile, ReconstructionOptions options) {
+        ForkJoinPool pool = options.getPool();
+        int nx = MarchingCubes.gridSize(mins[0], maxs[0], voxelSize);
+        int ny = MarchingCubes.gridSize(mins[1], maxs[1], voxelSize);
+        int nz = MarchingCubes.gridSize(mins[2], maxs[2], voxelSize);
+        double isoLevel = estimateIsoLevel(index, mins, voxelSize, nx, ny, nz, isoLevelPercentile, pool);
+
+        // Лист не крупнее уровня: тогда слой d <= iso вокруг точек толщиной 2 * iso не проскакивает между углами
+        int maxLeafLevel = 0;
+        while (maxLeafLevel < options.getAdaptiveMaxLevel() && (2 << maxLeafLevel) * voxelSize <= isoLevel) {
+            maxLeafLevel++;
+        }
+        AdaptiveReconstruction reconstruction = new AdaptiveReconstruction(pointArray, index, mins, voxelSize,
+                nx, ny, nz, isoLevel, maxLeafLevel, options.getAdaptiveCurvature());
+        return reconstruction.extract(pool, options.isVertexNormals());
+    }
+
+    /**
+     * Процентиль поля по равномерной случайной выборке узлов сетки (ранг — как в {@link Percentiles}).
+     */
+    private static double estimateIsoLevel(SpatialIndex index, double[] mins, double voxelSize, int nx, int ny, int nz,
+                                           double percentile, ForkJoinPool pool) {
+        long total = (long) nx * ny * nz;
+        int samples = (int) Math.min(total, ISO_SAMPLES);
+        long[] nodes = new long[samples];
+        Random random = new Random(samples);
+        for (int s = 0; s < samples; s++) {
+            nodes[s] = samples == total ? s : (long) (random.nextDouble() * total);
+        }
+        float[] distances = new float[samples];
+        ParallelLoops.forRange(pool, 0, samples, ParallelLoops.grainFor(pool, samples), (from, to) -> {
+            for (int s = from; s < to; s++) {
+                long n = nodes[s];
+                int k = (int) (n % nz);
+                int j = (int) (n / nz % ny);
+                int i = (int) (n / ((long) ny * nz));
+                distances[s] = (float) Math.sqrt(index.nearestDistanceSquared(
+                        mins[0] + i * voxelSize, mins[1] + j * voxelSize, mins[2] + k * voxelSize));
+            }
+        });
+        Arrays.sort(distances);
+        return distances[(int) Math.round(percentile / 100.0 * (samples - 1))];
+    }
+
+    private Mesh extract(ForkJoinPool pool, boolean vertexNormals) {
+        int rootLevel = 0;
+        while ((1 << rootLevel) < Math.max(Math.max(nx, ny), nz) - 1) {
+            rootLevel++;
+        }
+        Node root = new Node(0, 0, 0, rootLevel);
+
+        // Узлы крупнее maxLeafLevel делятся всегда, если через них проходит поверхность; ниже — адаптивно,
+        // поддеревья строятся параллельно
+        List<Node> frontier = new ArrayList<>();
+        split(root, frontier);
+        ParallelLoops.forRange(pool, 0, frontier.size(), 1, (from, to) -> {
+            for (int n = from; n < to; n++) {
+                build(frontier.get(n));
+            }
+        });
+        List<Node> leaves = new ArrayList<>();
+        collectLeaves(root, leaves);
+
+        // Минимальные рёбра, пересекающие уровень; каждое обрабатывает ровно один лист вокруг него
+        int chunkCount = pool == null ? 1 : Math.max(1, Math.min(leaves.size(), pool.getParallelism() * 4));
+        List<List<Quad>> chunks = new ArrayList<>();
+        for (int c = 0; c < chunkCount; c++) {
+            chunks.add(new ArrayList<>());
+        }
+        ParallelLoops.forRange(pool, 0, chunkCount, 1, (from, to) -> {
+            for (int c = from; c < to; c++) {
+                int end = (int) ((long) leaves.size() * (c + 1) / chunkCount);
+                for (int n = (int) ((long) leaves.size() * c / chunkCount); n < end; n++) {
+                    collectQuads(root, leaves.get(n), chunks.get(c));
+                }
+            }
+        });
+
+        // Вершины листьев — среднее пересечений на их границе
+        List<Node> active = new ArrayList<>();
+        for (List<Quad> chunk : chunks) {
+            for (Quad quad : chunk) {
+                Node[] cells = quad.cells;
+                for (int c = 0; c < 4; c++) {
+                    if (c > 0 && cells[c] == cells[c - 1] || c == 3 && cells[c] == cells[0]) {
+                        continue; // Лист занимает два соседних квадранта
+                    }
+                    if (cells[c].crossings == 0) {
+                        cells[c].vertex = active.size();
+                        active.add(cells[c]);
+                    }
+                    cells[c].sumX += quad.x;
+                    cells[c].sumY += quad.y;
+                    cells[c].sumZ += quad.z;
+                    cells[c].crossings++;
+                }
+            }
+        }
+        int faceEstimate = 0;
+        for (List<Quad> chunk : chunks) {
+            faceEstimate += chunk.size() * 2;
+        }
+        Mesh mesh = new Mesh(active.size(), faceEstimate, vertexNormals);
+        float[] normals = vertexNormals ? computeNormals(active, pool) : null;
+        for (int v = 0; v < active.size(); v++) {
+            Node leaf = active.get(v);
+            float x = (float) (leaf.sumX / leaf.crossings);
+            float y = (float) (leaf.sumY / leaf.crossings);
+            float z = (float) (leaf.sumZ / leaf.crossings);
+            if (normals != null) {
+                mesh.addVertex(x, y, z, normals[v * 3], normals[v * 3 + 1], normals[v * 3 + 2]);
+            } else {
+                mesh.addVertex(x, y, z);
+            }
+        }
+        int[] ring = new int[4];
+        for (List<Quad> chunk : chunks) {
+            for (Quad quad : chunk) {
+                Node[] cells = quad.cells;
+                if (cells[0] != cells[1] && cells[1] != cells[2] && cells[2] != cells[3] && cells[3] != cells[0]) {
+                    SurfaceNets.addQuad(mesh, cells[0].vertex, cells[1].vertex, cells[2].vertex, cells[3].vertex, quad.flip);
+                    continue;
+                }
+                // Один лист с двух сторон ребра — треугольник из трёх различных листьев
+                int size = 0;
+                for (int c = 0; c < 4; c++) {
+                    Node cell = cells[quad.flip ? (4 - c) & 3 : c];
+                    if (size == 0 || cell.vertex != ring[size - 1]) {
+                        ring[size++] = cell.vertex;
+                    }
+                }
+                if (size > 1 && ring[size - 1] == ring[0]) {
+                    size--;
+                }
+                if (size == 3) {
+                    mesh.addFace(ring[0], ring[1], ring[2]);
+                }
+            }
+        }
+        return mesh;
+    }
+
+    /**
+     * Делит узлы крупнее maxLeafLevel, через которые проходит поверхность; узлы уровня maxLeafLevel
+     * собираются в frontier для параллельного построения.
+     */
+    private void split(Node node, List<Node> frontier) {
+        if (node.level <= maxLeafLevel) {
+            frontier.add(node);
+            return;
+        }
+        if (classify(node)) {
+            subdivide(node);
+            for (Node child : node.children) {
+                split(child, frontier);
+            }
+        }
+    }
+
+    private void build(Node node) {
+        if (!classify(node)) {
+            return;
+        }
+        if (node.level > 0 && (straddlesGrid(node) || isCurved(node))) {
+            subdivide(node);
+            for (Node child : node.children) {
+                build(child);
+            }
+            return;
+        }
+        node.state = SURFACE;
+        node.corners = new float[8];
+        int size = 1 << node.level;
+        for (int n = 0; n < 8; n++) {
+            node.corners[n] = value(node.x + cornerOffset[n][0] * size, node.y + cornerOffset[n][1] * size,
+                    node.z + cornerOffset[n][2] * size);
+        }
+    }
+
+    /**
+     * Помечает узел вне сетки или целиком по одну сторону уровня; true — поверхность может проходить через узел.
+     */
+    private boolean classify(Node node) {
+        if (node.x >= nx - 1 || node.y >= ny - 1 || node.z >= nz - 1) {
+            node.state = OUTSIDE;
+            return false;
+        }
+        double half = (1 << node.level) * 0.5;
+        double distance = Math.sqrt(index.nearestDistanceSquared(mins[0] + (node.x + half) * voxelSize,
+                mins[1] + (node.y + half) * voxelSize, mins[2] + (node.z + half) * voxelSize));
+        // Запас на округление значений в углах до float
+        double halfDiagonal = half * Math.sqrt(3) * voxelSize * (1 + 1e-5);
+        if (Math.abs(distance - isoLevel) > halfDiagonal) {
+            node.state = UNIFORM;
+            return false;
+        }
+        return true;
+    }
+
+    // Узел выходит за сетку: делится до листьев внутри неё, чтобы граница меша совпадала с Marching Cubes
+    private boolean straddlesGrid(Node node) {
+        int size = 1 << node.level;
+        return node.x + size > nx - 1 || node.y + size > ny - 1 || node.z + size > nz - 1;
+    }
+
+    /**
+     * Поверхностная вариация λmin / (λ1 + λ2 + λ3) точек в окрестности узла (0 — плоскость, 1/3 — изотропное
+     * облако) больше порога. При малом числе точек кривизна не оценивается и узел не делится.
+     */
+    private boolean isCurved(Node node) {
+        double half = (1 << node.level) * 0.5;
+        double cx = mins[0] + (node.x + half) * voxelSize;
+        double cy = mins[1] + (node.y + half) * voxelSize;
+        double cz = mins[2] + (node.z + half) * voxelSize;
+        double radius = half * Math.sqrt(3) * voxelSize + isoLevel;
+        RadiusCursor counter = new RadiusCursor(null, null);
+        index.radius(cx, cy, cz, radius * radius, counter);
+        if (counter.position < MIN_FIT_POINTS) {
+            return false;
+        }
+        int[] neighbors = new int[counter.position];
+        RadiusCursor cursor = new RadiusCursor(neighbors, new double[counter.position]);
+        index.radius(cx, cy, cz, radius * radius, cursor);
+
+        double mx = 0, my = 0, mz = 0;
+        for (int n : neighbors) {
+            mx += pointArray[n][0];
+            my += pointArray[n][1];
+            mz += pointArray[n][2];
+        }
+        mx /= neighbors.length;
+        my /= neighbors.length;
+        mz /= neighbors.length;
+        double xx = 0, xy = 0, xz = 0, yy = 0, yz = 0, zz = 0;
+        for (int n : neighbors) {
+            double dx = pointArray[n][0] - mx;
+            double dy = pointArray[n][1] - my;
+            double dz = pointArray[n][2] - mz;
+            xx += dx * dx;
+            xy += dx * dy;
+            xz += dx * dz;
+            yy += dy * dy;
+            yz += dy * dz;
+            zz += dz * dz;
+        }
+        double trace = xx + yy + zz;
+        return trace > 0 && smallestEigenvalue(xx, xy, xz, yy, yz, zz) / trace > curvature;
+    }
+
+    /**
+     * Наименьшее собственное значение симметричной матрицы 3x3 (тригонометрическое решение характеристического
+     * уравнения).
+     */
+    private static double smallestEigenvalue(double a00, double a01, double a02, double a11, double a12, double a22) {
+        double offDiagonal = a01 * a01 + a02 * a02 + a12 * a12;
+        if (offDiagonal == 0) {
+            return Math.min(a00, Math.min(a11, a22));
+        }
+        double q = (a00 + a11 + a22) / 3;
+        double b00 = a00 - q, b11 = a11 - q, b22 = a22 - q;
+        double p = Math.sqrt((b00 * b00 + b11 * b11 + b22 * b22 + 2 * offDiagonal) / 6);
+        double det = b00 * (b11 * b22 - a12 * a12) - a01 * (a01 * b22 - a12 * a02) + a02 * (a01 * a12 - b11 * a02);
+        double r = Math.max(-1, Math.min(1, det / (2 * p * p * p)));
+        double phi = Math.acos(r) / 3;
+        return q + 2 * p * Math.cos(phi + 2 * Math.PI / 3);
+    }
+
+    private static void subdivide(Node node) {
+        int half = 1 << (node.level - 1);
+        node.children = new Node[8];
+        for (int c = 0; c < 8; c++) {
+            node.children[c] = new Node(node.x + ((c >> 2) & 1) * half, node.y + ((c >> 1) & 1) * half,
+                    node.z + (c & 1) * half, node.level - 1);
+        }
+    }
+
+    private float value(int i, int j, int k) {
+        long key = ((long) i << 42) | ((long) j << 21) | k;
+        return values.computeIfAbsent(key, unused -> (float) Math.sqrt(index.nearestDistanceSquared(
+                mins[0] + i * voxelSize, mins[1] + j * voxelSize, mins[2] + k * voxelSize)));
+    }
+
+    private static void collectLeaves(Node node, List<Node> leaves) {
+        if (node.children != null) {
+            for (Node child : node.children) {
+                collectLeaves(child, leaves);
+            }
+        } else if (node.state == SURFACE) {
+            leaves.add(node);
+        }
+    }
+
+    /**
+     * Лист в точке с координатами в половинах вокселя (null — вне корня).
+     */
+    private static Node locate(Node root, int hx, int hy, int hz) {
+        int extent = 2 << root.level;
+        if (hx < 0 || hy < 0 || hz < 0 || hx >= extent || hy >= extent || hz >= extent) {
+            return null;
+        }
+        Node node = root;
+        while (node.children != null) {
+            int half = 1 << (node.level - 1);
+            int c = (hx >= 2 * (node.x + half) ? 4 : 0) | (hy >= 2 * (node.y + half) ? 2 : 0)
+                    | (hz >= 2 * (node.z + half) ? 1 : 0);
+            node = node.children[c];
+        }
+        return node;
+    }
+
+    /**
+     * Добавляет четырёхугольники рёбер листа, для которых он — владелец: среди четырёх листьев вокруг ребра
+     * нет меньших, и он первый из листьев своего размера в порядке обхода. Рёбра, у которых есть меньший
+     * сосед, разбиты на минимальные рёбра этого соседа и обрабатываются им.
+     */
+    private void collectQuads(Node root, Node leaf, List<Quad> quads) {
+        int size = 1 << leaf.level;
+        int[] origin = {leaf.x, leaf.y, leaf.z};
+        int[] h = new int[3];
+        int[] p = new int[3];
+        for (int a = 0; a < 3; a++) {
+            int b = (a + 1) % 3;
+            int c = (a + 2) % 3;
+            for (int u = 0; u < 2; u++) {
+                for (int v = 0; v < 2; v++) {
+                    // Ребро вдоль оси a из угла origin + u * size по b и v * size по c
+                    p[a] = origin[a];
+                    p[b] = origin[b] + u * size;
+                    p[c] = origin[c] + v * size;
+                    int c0 = corner(p, origin, size);
+                    p[a] += size;
+                    int c1 = corner(p, origin, size);
+                    p[a] -= size;
+                    float f0 = leaf.corners[c0];
+                    float f1 = leaf.corners[c1];
+                    boolean above = f0 > isoLevel;
+                    if (above == f1 > isoLevel) {
+                        continue;
+                    }
+
+                    // Листья вокруг ребра против часовой стрелки вокруг +a: (b-, c-), (b+, c-), (b+, c+), (b-, c+)
+                    Node[] cells = new Node[4];
+                    boolean owner = true;
+                    boolean sameSizeSeen = false;
+                    for (int q = 0; q < 4 && owner; q++) {
+                        h[a] = 2 * p[a] + size;
+                        h[b] = 2 * p[b] + (q == 1 || q == 2 ? 1 : -1);
+                        h[c] = 2 * p[c] + (q >= 2 ? 1 : -1);
+                        Node cell = locate(root, h[0], h[1], h[2]);
+                        if (cell == null || cell.state == OUTSIDE || cell.level < leaf.level) {
+                            owner = false;
+                        } else if (cell.level == leaf.level && !sameSizeSeen) {
+                            sameSizeSeen = true;
+                            owner = cell == leaf; // Владелец — первый лист того же размера
+                        }
+                        cells[q] = cell;
+                    }
+                    if (!owner) {
+                        continue;
+                    }
+                    double mu = Math.abs(f0 - f1) < 1e-6 ? 0.5 : Math.max(0, Math.min(1, (isoLevel - f0) / (f1 - f0)));
+                    double[] point = new double[3];
+                    point[a] = p[a] + mu * size;
+                    point[b] = p[b];
+                    point[c] = p[c];
+                    quads.add(new Quad(cells, above, mins[0] + point[0] * voxelSize, mins[1] + point[1] * voxelSize,
+                            mins[2] + point[2] * voxelSize));
+                }
+            }
+        }
+    }
+
+    private static int corner(int[] p, int[] origin, int size) {
+        return cornerIndex[(p[0] - origin[0]) / size << 2 | (p[1] - origin[1]) / size << 1 | (p[2] - origin[2]) / size];
+    }
+
+    /**
+     * Нормали вершин — градиент расстояния до ближайшей точки, то есть единичный вектор от неё к вершине.
+     */
+    private float[] computeNormals(List<Node> active, ForkJoinPool pool) {
+        float[] normals = new float[active.size() * 3];
+        ParallelLoops.forRange(pool, 0, active.size(), ParallelLoops.grainFor(pool, active.size()), (from, to) -> {
+            double[] query = new double[3];
+            for (int v = from; v < to; v++) {
+                Node leaf = active.get(v);
+                query[0] = leaf.sumX / leaf.crossings;
+                query[1] = leaf.sumY / leaf.crossings;
+                query[2] = leaf.sumZ / leaf.crossings;
+                double[] nearest = index.nearest(query).point;
+                double dx = query[0] - nearest[0];
+                double dy = query[1] - nearest[1];
+                double dz = query[2] - nearest[2];
+                double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+                if (length == 0) {
+                    dz = length = 1;
+                }
+                normals[v * 3] = (float) (dx / length);
+                normals[v * 3 + 1] = (float) (dy / length);
+                normals[v * 3 + 2] = (float) (dz / length);
+            }
+        });
+        return normals;
+    }
+}
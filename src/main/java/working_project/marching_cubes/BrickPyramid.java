@@ -0,0 +1,196 @@
+package working_project.marching_cubes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Пирамида минимумов и максимумов скалярного поля для пропуска пустого пространства при извлечении поверхности.
+ * Нижний уровень делит кубы сетки на блоки BRICK * BRICK * BRICK и хранит для каждого блока диапазон значений
+ * всех его угловых узлов (включая узлы общей границы с соседями). Каждый следующий уровень объединяет
+ * 2 * 2 * 2 блока предыдущего, пока не останется один.
+ * <p>
+ * Куб даёт треугольники, только если часть его углов выше уровня изоповерхности, а часть — нет, поэтому блок,
+ * диапазон которого не пересекает уровень, целиком пропускается. Активные блоки ищутся спуском от вершины
+ * пирамиды, так что стоимость поиска пропорциональна их числу, а не размеру сетки.
+ * Пирамида не зависит от уровня и строится один раз на поле.
+ */
+final class BrickPyramid {
+    static final int BRICK_SHIFT = 3;
+    static final int BRICK = 1 << BRICK_SHIFT;
+
+    // Уровни от блоков (0) к вершине: размеры в блоках и диапазоны значений (x, y, z — z меняется быстрее всего)
+    private final List<int[]> dims = new ArrayList<>();
+    private final List<float[]> mins = new ArrayList<>();
+    private final List<float[]> maxs = new ArrayList<>();
+
+    private BrickPyramid(int bx, int by, int bz, float[] min, float[] max) {
+        dims.add(new int[]{bx, by, bz});
+        mins.add(min);
+        maxs.add(max);
+        while (bx > 1 || by > 1 || bz > 1) {
+            int cx = (bx + 1) >> 1, cy = (by + 1) >> 1, cz = (bz + 1) >> 1;
+            float[] cmin = new float[cx * cy * cz];
+            float[] cmax = new float[cx * cy * cz];
+            Arrays.fill(cmin, Float.POSITIVE_INFINITY);
+            Arrays.fill(cmax, Float.NEGATIVE_INFINITY);
+            for (int i = 0; i < bx; i++) {
+                for (int j = 0; j < by; j++) {
+                    for (int k = 0; k < bz; k++) {
+                        int b = (i * by + j) * bz + k;
+                        int c = ((i >> 1) * cy + (j >> 1)) * cz + (k >> 1);
+                        cmin[c] = Math.min(cmin[c], min[b]);
+                        cmax[c] = Math.max(cmax[c], max[b]);
+                    }
+                }
+            }
+            bx = cx;
+            by = cy;
+            bz = cz;
+            min = cmin;
+            max = cmax;
+            dims.add(new int[]{bx, by, bz});
+            mins.add(min);
+            maxs.add(max);
+        }
+    }
+
+    /**
+     * Строит пирамиду по полю. Плотная сетка читается без копирования, остальные хранилища — плоскостями;
+     * слои блоков по X распределяются между потоками пула.
+     * @param field Скалярное поле (не меньше двух узлов по каждой оси)
+     * @param pool Пул потоков; null — в текущем потоке
+     */
+    static BrickPyramid build(ScalarField field, ForkJoinPool pool) {
+        int nx = field.getNx(), ny = field.getNy(), nz = field.getNz();
+        int bx = bricks(nx), by = bricks(ny), bz = bricks(nz);
+        int planeSize = ny * nz;
+        float[] min = new float[bx * by * bz];
+        float[] max = new float[bx * by * bz];
+        Arrays.fill(min, Float.POSITIVE_INFINITY);
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+
+        ParallelLoops.forRange(pool, 0, bx, 1, (from, to) -> {
+            float[] plane = field instanceof ScalarGrid ? null : new float[planeSize];
+            for (int b = from; b < to; b++) {
+                int rowOffset = b * by * bz;
+                // Узлы плоскостей [b * BRICK, (b + 1) * BRICK] принадлежат слою блоков b
+                for (int i = b << BRICK_SHIFT; i <= Math.min((b + 1) << BRICK_SHIFT, nx - 1); i++) {
+                    float[] values;
+                    int offset;
+                    if (plane == null) {
+                        values = ((ScalarGrid) field).values();
+                        offset = i * planeSize;
+                    } else {
+                        field.readPlane(i, plane);
+                        values = plane;
+                        offset = 0;
+                    }
+                    accumulatePlane(values, offset, ny, nz, by, bz, min, max, rowOffset);
+                }
+            }
+        });
+        return new BrickPyramid(bx, by, bz, min, max);
+    }
+
+    // Добавляет узлы одной плоскости в диапазоны блоков слоя; узел на границе блоков попадает в оба
+    private static void accumulatePlane(float[] values, int offset, int ny, int nz, int by, int bz,
+                                        float[] min, float[] max, int rowOffset) {
+        for (int cj = 0; cj < by; cj++) {
+            int jEnd = Math.min((cj + 1) << BRICK_SHIFT, ny - 1);
+            for (int ck = 0; ck < bz; ck++) {
+                int kStart = ck << BRICK_SHIFT;
+                int kEnd = Math.min((ck + 1) << BRICK_SHIFT, nz - 1);
+                float lo = Float.POSITIVE_INFINITY;
+                float hi = Float.NEGATIVE_INFINITY;
+                for (int j = cj << BRICK_SHIFT; j <= jEnd; j++) {
+                    int base = offset + j * nz;
+                    for (int k = kStart; k <= kEnd; k++) {
+                        float v = values[base + k];
+                        lo = Math.min(lo, v);
+                        hi = Math.max(hi, v);
+                    }
+                }
+                int b = rowOffset + cj * bz + ck;
+                min[b] = Math.min(min[b], lo);
+                max[b] = Math.max(max[b], hi);
+            }
+        }
+    }
+
+    // Число блоков вдоль оси с n узлами (n - 1 кубами)
+    static int bricks(int n) {
+        return Math.max(1, (n - 1 + BRICK - 1) >> BRICK_SHIFT);
+    }
+
+    /**
+     * Маска блоков нижнего уровня, диапазон которых пересекает уровень изоповерхности
+     * (индекс блока (bx, by, bz) — (bx * brickCountY + by) * brickCountZ + bz).
+     */
+    boolean[] activeBricks(double isoLevel) {
+        int[] d = dims.get(0);
+        boolean[] active = new boolean[d[0] * d[1] * d[2]];
+        collect(dims.size() - 1, 0, 0, 0, isoLevel, active);
+        return active;
+    }
+
+    /**
+     * Слои блоков по X, в которых есть хотя бы один активный блок маски {@link #activeBricks(double)}.
+     */
+    boolean[] activeLayers(boolean[] activeBricks) {
+        int[] d = dims.get(0);
+        int layerSize = d[1] * d[2];
+        boolean[] layers = new boolean[d[0]];
+        for (int b = 0; b < activeBricks.length; b++) {
+            if (activeBricks[b]) {
+                layers[b / layerSize] = true;
+            }
+        }
+        return layers;
+    }
+
+    private void collect(int level, int i, int j, int k, double isoLevel, boolean[] active) {
+        int[] d = dims.get(level);
+        int b = (i * d[1] + j) * d[2] + k;
+        // Куб активен, если есть угол выше уровня и угол не выше него (см. CubeKernel)
+        if (!(mins.get(level)[b] <= isoLevel && maxs.get(level)[b] > isoLevel)) {
+            return;
+        }
+        if (level == 0) {
+            active[b] = true;
+            return;
+        }
+        int[] child = dims.get(level - 1);
+        for (int ci = i << 1; ci < Math.min((i << 1) + 2, child[0]); ci++) {
+            for (int cj = j << 1; cj < Math.min((j << 1) + 2, child[1]); cj++) {
+                for (int ck = k << 1; ck < Math.min((k << 1) + 2, child[2]); ck++) {
+                    collect(level - 1, ci, cj, ck, isoLevel, active);
+                }
+            }
+        }
+    }
+
+    int getBrickCountX() {
+        return dims.get(0)[0];
+    }
+
+    int getBrickCountY() {
+        return dims.get(0)[1];
+    }
+
+    int getBrickCountZ() {
+        return dims.get(0)[2];
+    }
+
+    /**
+     * Оценка памяти всех уровней в байтах.
+     */
+    long estimateMemoryBytes() {
+        long bytes = 0;
+        for (float[] level : mins) {
+            bytes += 2L * level.length * Float.BYTES;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,77 @@
+package working_project.marching_cubes;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Буферизованная запись двоичных little-endian данных в файл через {@link FileChannel}.
+ * Записи кладутся в прямой буфер, который сбрасывается в канал при заполнении.
+ */
+final class ChannelOutput implements Closeable {
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+    ChannelOutput(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Возвращает буфер, в котором свободно не меньше bytes байт, сбрасывая его при необходимости.
+     */
+    ByteBuffer reserve(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+        return buffer;
+    }
+
+    void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Перезаписывает данные с позиции position (например, заголовок со счётчиками после записи тела).
+     */
+    void writeAt(ByteBuffer data, long position) throws IOException {
+        flush();
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    /**
+     * Дописывает в конец содержимое другого файла, не копируя его через кучу.
+     */
+    void append(Path file) throws IOException {
+        flush();
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = source.size();
+            long position = channel.position();
+            for (long done = 0; done < size; ) {
+                done += channel.transferFrom(source, position + done, size - done);
+            }
+            channel.position(position + size);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
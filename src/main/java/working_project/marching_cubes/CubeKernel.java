@@ -0,0 +1,279 @@
+package working_project.marching_cubes;
+
+import java.util.Arrays;
+
+/**
+ * Ядро Marching Cubes для одного потока: обрабатывает сетку слоями кубов между двумя соседними
+ * плоскостями x = i и x = i + 1, не выделяя память на каждый куб.
+ * Значения углов читаются прямо из массивов плоскостей, индексы вершин кэшируются по положению
+ * ребра в решётке, а вершины и грани передаются в {@link MeshSink}.
+ * <p>
+ * По запросу вершины получают нормали: градиент поля в узлах ребра считается центральными разностями
+ * (на границах сетки — односторонними) и интерполируется с тем же коэффициентом, что и положение вершины.
+ * Для разностей по X ядру нужны ещё плоскости x = i - 1 и x = i + 2 ({@link #setOuterPlanes}).
+ */
+final class CubeKernel {
+    // Пустая ячейка кэша рёбер (отрицательные индексы заняты ссылками на шов)
+    static final int NO_VERTEX = Integer.MIN_VALUE;
+
+    // Смещения 8 вершин куба от узла (i, j, k)
+    private static final int[][] cornerOffset = new int[][]{
+            {0, 0, 0}, {1, 0, 0}, {1, 1, 0}, {0, 1, 0},
+            {0, 0, 1}, {1, 0, 1}, {1, 1, 1}, {0, 1, 1}
+    };
+
+    // Для каждого из 12 рёбер куба: ось ребра (0=x, 1=y, 2=z) и смещение его начального узла от узла (i, j, k)
+    private static final int[] edgeAxis = {0, 1, 0, 1, 0, 1, 0, 1, 2, 2, 2, 2};
+    private static final int[][] edgeOrigin = new int[][]{
+            {0, 0, 0}, {1, 0, 0}, {0, 1, 0}, {0, 0, 0},
+            {0, 0, 1}, {1, 0, 1}, {0, 1, 1}, {0, 0, 1},
+            {0, 0, 0}, {1, 0, 0}, {1, 1, 0}, {0, 1, 0}
+    };
+
+    private final int ny, nz, planeSize;
+    private final int brickCountZ;
+    private final double isoLevel;
+    private final double voxelSize;
+    private final double[] mins;
+    private final MeshSink out;
+    private final boolean vertexNormals;
+
+    // Рабочие буферы, переиспользуемые для каждого куба
+    private final double[] cubeVals = new double[8];
+    private final int[] vertList = new int[12];
+    private final double[] gradient1 = new double[3];
+    private final double[] gradient2 = new double[3];
+
+    // Плоскости текущего слоя (x = i - 1 .. i + 2) для вычисления градиента
+    private float[] previous, left, right, next;
+    private int previousOffset, leftOffset, rightOffset, nextOffset;
+
+    // Кэши индексов вершин: рёбра по X текущего слоя, рёбра по Y и Z в левой и правой плоскостях
+    private final int[] xEdges;
+    private int[] leftY, leftZ, rightY, rightZ;
+
+    // Рёбра левой границы, вершины которых создаёт соседний слэб (j * nz + k для Y, planeSize + j * nz + k для Z)
+    private final IntArrayList seamEdges = new IntArrayList();
+
+    CubeKernel(int ny, int nz, double[] mins, double voxelSize, double isoLevel, MeshSink out) {
+        this(ny, nz, mins, voxelSize, isoLevel, out, false);
+    }
+
+    /**
+     * @param vertexNormals Передавать в out нормали вершин по градиенту поля
+     */
+    CubeKernel(int ny, int nz, double[] mins, double voxelSize, double isoLevel, MeshSink out, boolean vertexNormals) {
+        this.ny = ny;
+        this.nz = nz;
+        this.planeSize = ny * nz;
+        this.brickCountZ = BrickPyramid.bricks(nz);
+        this.mins = mins;
+        this.voxelSize = voxelSize;
+        this.isoLevel = isoLevel;
+        this.out = out;
+        this.vertexNormals = vertexNormals;
+        xEdges = new int[planeSize];
+        leftY = new int[planeSize];
+        leftZ = new int[planeSize];
+        rightY = new int[planeSize];
+        rightZ = new int[planeSize];
+        Arrays.fill(leftY, NO_VERTEX);
+        Arrays.fill(leftZ, NO_VERTEX);
+        Arrays.fill(rightY, NO_VERTEX);
+        Arrays.fill(rightZ, NO_VERTEX);
+    }
+
+    /**
+     * Задаёт плоскости x = i - 1 и x = i + 2 для градиента следующего обрабатываемого слоя i
+     * (в той же раскладке, что и плоскости {@link #processLayer}); null — плоскость вне сетки.
+     * Нужно только ядру с нормалями вершин.
+     */
+    void setOuterPlanes(float[] previous, int previousOffset, float[] next, int nextOffset) {
+        this.previous = previous;
+        this.previousOffset = previousOffset;
+        this.next = next;
+        this.nextOffset = nextOffset;
+    }
+
+    /**
+     * Обрабатывает слой кубов между плоскостями x = i и x = i + 1 и сдвигает кэш на следующий слой.
+     * Значение узла (j, k) левой плоскости лежит в left[leftOffset + j * nz + k], правой — аналогично в right.
+     * @param seamLeft Рёбра левой плоскости принадлежат соседнему слэбу и записываются как ссылки -(r + 1)
+     */
+    void processLayer(int i, float[] left, int leftOffset, float[] right, int rightOffset, boolean seamLeft) {
+        processLayer(i, left, leftOffset, right, rightOffset, seamLeft, null, 0);
+    }
+
+    /**
+     * Обрабатывает слой кубов, пропуская блоки {@link BrickPyramid}, не пересекающие уровень изоповерхности.
+     * Такие кубы не дают ни вершин, ни граней, поэтому меш совпадает с полным перебором.
+     * @param activeBricks Маска активных блоков; блок (by, bz) слоя блоков, содержащего слой i, —
+     *                     activeBricks[activeOffset + by * brickCountZ + bz]. null — перебираются все кубы
+     */
+    void processLayer(int i, float[] left, int leftOffset, float[] right, int rightOffset, boolean seamLeft,
+                      boolean[] activeBricks, int activeOffset) {
+        this.left = left;
+        this.leftOffset = leftOffset;
+        this.right = right;
+        this.rightOffset = rightOffset;
+        Arrays.fill(xEdges, NO_VERTEX);
+        for (int j = 0; j < ny - 1; j++) {
+            int brickRow = activeOffset + (j >> BrickPyramid.BRICK_SHIFT) * brickCountZ;
+            for (int k = 0; k < nz - 1; k++) {
+                if (activeBricks != null && !activeBricks[brickRow + (k >> BrickPyramid.BRICK_SHIFT)]) {
+                    k |= BrickPyramid.BRICK - 1; // Сразу к последнему кубу блока
+                    continue;
+                }
+                int l = leftOffset + j * nz + k;
+                int r = rightOffset + j * nz + k;
+                cubeVals[0] = left[l];
+                cubeVals[1] = right[r];
+                cubeVals[2] = right[r + nz];
+                cubeVals[3] = left[l + nz];
+                cubeVals[4] = left[l + 1];
+                cubeVals[5] = right[r + 1];
+                cubeVals[6] = right[r + nz + 1];
+                cubeVals[7] = left[l + nz + 1];
+
+                // Вычисляем конфигурацию куба (битовая маска)
+                int cubeIndex = 0;
+                for (int n = 0; n < 8; n++) {
+                    if (cubeVals[n] > isoLevel) {
+                        cubeIndex |= 1 << n;
+                    }
+                }
+                int edges = MarchingCubes.edgeTable[cubeIndex];
+                if (edges == 0) {
+                    continue;
+                }
+
+                for (int edge = 0; edge < 12; edge++) {
+                    if ((edges & (1 << edge)) == 0) {
+                        continue;
+                    }
+                    int axis = edgeAxis[edge];
+                    boolean onLeftPlane = edgeOrigin[edge][0] == 0;
+                    int cell = (j + edgeOrigin[edge][1]) * nz + k + edgeOrigin[edge][2];
+                    int[] cache = axis == 0 ? xEdges
+                            : axis == 1 ? (onLeftPlane ? leftY : rightY)
+                            : (onLeftPlane ? leftZ : rightZ);
+
+                    int vertexIndex = cache[cell];
+                    if (vertexIndex == NO_VERTEX) {
+                        if (seamLeft && axis != 0 && onLeftPlane) {
+                            // Ребро на шве: вершину создаёт предыдущий слэб
+                            seamEdges.add(axis == 1 ? cell : planeSize + cell);
+                            vertexIndex = -seamEdges.size();
+                        } else {
+                            vertexIndex = addEdgeVertex(i, j, k, edge);
+                        }
+                        cache[cell] = vertexIndex;
+                    }
+                    vertList[edge] = vertexIndex;
+                }
+
+                // Формируем треугольники из таблицы triTable
+                int[] triIndices = MarchingCubes.triTable[cubeIndex];
+                for (int t = 0; t + 2 < triIndices.length && triIndices[t] != -1; t += 3) {
+                    out.addFace(vertList[triIndices[t]], vertList[triIndices[t + 1]], vertList[triIndices[t + 2]]);
+                }
+            }
+        }
+
+        shiftCaches();
+    }
+
+    /**
+     * Пропускает слой, в котором нет пересечений с изоповерхностью, сдвигая кэш так же, как {@link #processLayer}.
+     */
+    void skipLayer() {
+        shiftCaches();
+    }
+
+    // Сдвигаем кэш: правая плоскость становится левой для следующего слоя
+    private void shiftCaches() {
+        int[] tmp = leftY;
+        leftY = rightY;
+        rightY = tmp;
+        tmp = leftZ;
+        leftZ = rightZ;
+        rightZ = tmp;
+        Arrays.fill(rightY, NO_VERTEX);
+        Arrays.fill(rightZ, NO_VERTEX);
+    }
+
+    /**
+     * Интерполирует вершину на ребре куба и сразу записывает её в мировых координатах.
+     */
+    private int addEdgeVertex(int i, int j, int k, int edge) {
+        int v1 = MarchingCubes.edgeToVertices[edge][0];
+        int v2 = MarchingCubes.edgeToVertices[edge][1];
+        double val1 = cubeVals[v1];
+        double val2 = cubeVals[v2];
+        // Если значения почти равны, берём середину ребра (mu = 0.5)
+        double mu = Math.abs(val1 - val2) < 1e-6 ? 0.5 : Math.max(0, Math.min(1, (isoLevel - val1) / (val2 - val1)));
+        double x = (i + cornerOffset[v1][0]) + mu * (cornerOffset[v2][0] - cornerOffset[v1][0]);
+        double y = (j + cornerOffset[v1][1]) + mu * (cornerOffset[v2][1] - cornerOffset[v1][1]);
+        double z = (k + cornerOffset[v1][2]) + mu * (cornerOffset[v2][2] - cornerOffset[v1][2]);
+        if (!vertexNormals) {
+            return out.addVertex(
+                    (float) (x * voxelSize + mins[0]),
+                    (float) (y * voxelSize + mins[1]),
+                    (float) (z * voxelSize + mins[2]));
+        }
+
+        nodeGradient(cornerOffset[v1][0], j + cornerOffset[v1][1], k + cornerOffset[v1][2], gradient1);
+        nodeGradient(cornerOffset[v2][0], j + cornerOffset[v2][1], k + cornerOffset[v2][2], gradient2);
+        double gx = gradient1[0] + mu * (gradient2[0] - gradient1[0]);
+        double gy = gradient1[1] + mu * (gradient2[1] - gradient1[1]);
+        double gz = gradient1[2] + mu * (gradient2[2] - gradient1[2]);
+        double length = Math.sqrt(gx * gx + gy * gy + gz * gz);
+        // Поле растёт наружу от точек, поэтому нормаль направлена по градиенту
+        if (length == 0) {
+            gz = length = 1;
+        }
+        return out.addVertex(
+                (float) (x * voxelSize + mins[0]),
+                (float) (y * voxelSize + mins[1]),
+                (float) (z * voxelSize + mins[2]),
+                (float) (gx / length), (float) (gy / length), (float) (gz / length));
+    }
+
+    /**
+     * Градиент поля (в единицах значения на воксель) в узле (j, k) левой (plane = 0) или правой (plane = 1) плоскости слоя.
+     */
+    private void nodeGradient(int plane, int j, int k, double[] gradient) {
+        int cell = j * nz + k;
+        float[] own = plane == 0 ? left : right;
+        int ownOffset = plane == 0 ? leftOffset : rightOffset;
+        if (plane == 0) {
+            gradient[0] = previous != null
+                    ? (right[rightOffset + cell] - previous[previousOffset + cell]) * 0.5
+                    : right[rightOffset + cell] - left[leftOffset + cell];
+        } else {
+            gradient[0] = next != null
+                    ? (next[nextOffset + cell] - left[leftOffset + cell]) * 0.5
+                    : right[rightOffset + cell] - left[leftOffset + cell];
+        }
+        int j0 = Math.max(j - 1, 0), j1 = Math.min(j + 1, ny - 1);
+        gradient[1] = (double) (own[ownOffset + j1 * nz + k] - own[ownOffset + j0 * nz + k]) / (j1 - j0);
+        int k0 = Math.max(k - 1, 0), k1 = Math.min(k + 1, nz - 1);
+        gradient[2] = (double) (own[ownOffset + j * nz + k1] - own[ownOffset + j * nz + k0]) / (k1 - k0);
+    }
+
+    int getSeamEdgeCount() {
+        return seamEdges.size();
+    }
+
+    int getSeamEdge(int r) {
+        return seamEdges.get(r);
+    }
+
+    /**
+     * Индекс вершины на ребре правой границы последнего обработанного слоя
+     * (в той же нумерации, что и ссылки на шов), либо NO_VERTEX.
+     */
+    int getBoundaryVertex(int edgeId) {
+        return edgeId < planeSize ? leftY[edgeId] : leftZ[edgeId - planeSize];
+    }
+}
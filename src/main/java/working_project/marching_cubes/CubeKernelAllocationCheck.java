@@ -0,0 +1,108 @@
+package working_project.marching_cubes;
+
+import com.sun.management.ThreadMXBean;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Проверка того, что {@link CubeKernel} в установившемся режиме не выделяет память на куб.
+ * Ядро обрабатывает слои синтетического поля (расстояние до сферы, уровень 2 — две концентрические
+ * оболочки) с приёмником, который только считает вершины и грани; после прогрева JIT выделенная
+ * потоком память измеряется через
+ * {@link ThreadMXBean#getThreadAllocatedBytes(long)} вокруг вызовов {@link CubeKernel#processLayer}.
+ * Проверяются оба режима — без нормалей и с нормалями по градиенту.
+ * <p>
+ * Запуск: {@code java working_project.marching_cubes.CubeKernelAllocationCheck [размер сетки]};
+ * при ненулевом выделении программа завершается с кодом 1.
+ */
+final class CubeKernelAllocationCheck {
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 5;
+
+    private CubeKernelAllocationCheck() {
+    }
+
+    /**
+     * Приёмник, который ничего не хранит, чтобы измерялась только память самого ядра.
+     */
+    private static final class CountingSink implements MeshSink {
+        long vertices;
+        long faces;
+
+        @Override
+        public int addVertex(float x, float y, float z) {
+            return (int) vertices++;
+        }
+
+        @Override
+        public void addFace(int a, int b, int c) {
+            faces++;
+        }
+    }
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 96;
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("Thread allocation counters are not supported by this JVM");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        float[][] planes = sphereField(n);
+
+        boolean ok = true;
+        for (boolean normals : new boolean[]{false, true}) {
+            CountingSink sink = new CountingSink();
+            CubeKernel kernel = new CubeKernel(n, n, new double[3], 1.0, 2.0, sink, normals);
+            for (int round = 0; round < WARMUP_ROUNDS; round++) {
+                run(kernel, planes, normals);
+            }
+            long thread = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int round = 0; round < MEASURED_ROUNDS; round++) {
+                run(kernel, planes, normals);
+            }
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+            long cubes = (long) MEASURED_ROUNDS * (n - 1) * (n - 1) * (n - 1);
+            System.out.printf("normals=%b: %d cubes, %d faces per round, %d bytes allocated (%.4f per cube)%n",
+                    normals, cubes, sink.faces / (WARMUP_ROUNDS + MEASURED_ROUNDS), allocated,
+                    (double) allocated / cubes);
+            ok &= allocated == 0;
+        }
+        if (!ok) {
+            System.out.println("CubeKernel allocates memory in steady state");
+            System.exit(1);
+        }
+        System.out.println("CubeKernel is allocation-free in steady state");
+    }
+
+    private static void run(CubeKernel kernel, float[][] planes, boolean normals) {
+        int nx = planes.length;
+        for (int i = 0; i < nx - 1; i++) {
+            if (normals) {
+                kernel.setOuterPlanes(i > 0 ? planes[i - 1] : null, 0, i + 2 < nx ? planes[i + 2] : null, 0);
+            }
+            kernel.processLayer(i, planes[i], 0, planes[i + 1], 0, false);
+        }
+        // Следующий проход начинается с пустого кэша, как новый слэб
+        kernel.skipLayer();
+    }
+
+    /**
+     * Расстояние от узлов сетки n³ до сферы радиуса n / 3 с центром в середине сетки, по плоскостям x.
+     */
+    private static float[][] sphereField(int n) {
+        float[][] planes = new float[n][n * n];
+        double center = (n - 1) / 2.0;
+        double radius = n / 3.0;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                for (int k = 0; k < n; k++) {
+                    double dx = i - center, dy = j - center, dz = k - center;
+                    planes[i][j * n + k] = (float) Math.abs(Math.sqrt(dx * dx + dy * dy + dz * dz) - radius);
+                }
+            }
+        }
+        return planes;
+    }
+}
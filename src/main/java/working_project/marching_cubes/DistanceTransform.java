@@ -0,0 +1,135 @@
+package working_project.marching_cubes;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Точное евклидово преобразование расстояний (алгоритм Felzenszwalb–Huttenlocher).
+ * Точки растеризуются в ближайшие узлы сетки, после чего квадрат расстояния до ближайшего
+ * занятого узла вычисляется тремя независимыми одномерными проходами (по Z, Y и X) за O(V).
+ * Каждый проход распараллеливается по линиям сетки.
+ * <p>
+ * Расстояние измеряется до центра занятого вокселя, а не до самой точки, поэтому отличается
+ * от точного не больше чем на половину диагонали вокселя (voxelSize * sqrt(3) / 2).
+ * Точки за последним узлом сетки прижимаются к нему, и рядом с ними погрешность может быть больше.
+ */
+final class DistanceTransform {
+    // "Бесконечность" для незанятых узлов: конечна, чтобы арифметика парабол оставалась корректной
+    private static final double INF = 1e30;
+
+    private DistanceTransform() {
+    }
+
+    /**
+     * Строит поле расстояний от узлов сетки до ближайших точек облака.
+     */
+    static ScalarGrid compute(double[][] points, double voxelSize, double[] mins, int nx, int ny, int nz, ForkJoinPool pool) {
+        ScalarGrid grid = new ScalarGrid(nx, ny, nz, mins, voxelSize);
+        float[] values = grid.values();
+        Arrays.fill(values, (float) INF);
+
+        // Растеризация: каждая точка занимает ближайший к ней узел
+        for (double[] p : points) {
+            int i = clamp((int) Math.round((p[0] - mins[0]) / voxelSize), nx);
+            int j = clamp((int) Math.round((p[1] - mins[1]) / voxelSize), ny);
+            int k = clamp((int) Math.round((p[2] - mins[2]) / voxelSize), nz);
+            values[grid.index(i, j, k)] = 0f;
+        }
+
+        int planeSize = ny * nz;
+        // Проход по Z: линии непрерывны в памяти
+        ParallelLoops.forRange(pool, 0, nx, ParallelLoops.grainFor(pool, nx), (from, to) -> {
+            Scratch scratch = new Scratch(nz);
+            for (int i = from; i < to; i++) {
+                for (int j = 0; j < ny; j++) {
+                    transformLine(values, i * planeSize + j * nz, 1, nz, scratch);
+                }
+            }
+        });
+        // Проход по Y: шаг nz
+        ParallelLoops.forRange(pool, 0, nx, ParallelLoops.grainFor(pool, nx), (from, to) -> {
+            Scratch scratch = new Scratch(ny);
+            for (int i = from; i < to; i++) {
+                for (int k = 0; k < nz; k++) {
+                    transformLine(values, i * planeSize + k, nz, ny, scratch);
+                }
+            }
+        });
+        // Проход по X: шаг ny * nz, распараллеливаем по Y; заодно переводим квадраты в расстояния
+        ParallelLoops.forRange(pool, 0, ny, ParallelLoops.grainFor(pool, ny), (from, to) -> {
+            Scratch scratch = new Scratch(nx);
+            for (int j = from; j < to; j++) {
+                for (int k = 0; k < nz; k++) {
+                    int start = j * nz + k;
+                    transformLine(values, start, planeSize, nx, scratch);
+                    for (int i = 0, idx = start; i < nx; i++, idx += planeSize) {
+                        values[idx] = (float) (Math.sqrt(values[idx]) * voxelSize);
+                    }
+                }
+            }
+        });
+        return grid;
+    }
+
+    private static int clamp(int index, int size) {
+        return Math.max(0, Math.min(size - 1, index));
+    }
+
+    /**
+     * Рабочие массивы одномерного преобразования, выделяются один раз на поток.
+     */
+    private static class Scratch {
+        final double[] f;
+        final int[] v;
+        final double[] z;
+
+        Scratch(int n) {
+            f = new double[n];
+            v = new int[n];
+            z = new double[n + 1];
+        }
+    }
+
+    /**
+     * Одномерное преобразование расстояний линии values[start + q * stride], q = 0..n-1:
+     * d(q) = min_p ((q - p)^2 + f(p)), через нижнюю огибающую парабол.
+     */
+    private static void transformLine(float[] values, int start, int stride, int n, Scratch s) {
+        double[] f = s.f;
+        int[] v = s.v;
+        double[] z = s.z;
+        for (int q = 0, idx = start; q < n; q++, idx += stride) {
+            f[q] = values[idx];
+        }
+
+        int k = 0;
+        v[0] = 0;
+        z[0] = Double.NEGATIVE_INFINITY;
+        z[1] = Double.POSITIVE_INFINITY;
+        for (int q = 1; q < n; q++) {
+            double sIntersect;
+            while (true) {
+                int p = v[k];
+                sIntersect = ((f[q] + (double) q * q) - (f[p] + (double) p * p)) / (2.0 * (q - p));
+                if (sIntersect <= z[k]) {
+                    k--;
+                } else {
+                    break;
+                }
+            }
+            k++;
+            v[k] = q;
+            z[k] = sIntersect;
+            z[k + 1] = Double.POSITIVE_INFINITY;
+        }
+
+        k = 0;
+        for (int q = 0, idx = start; q < n; q++, idx += stride) {
+            while (z[k + 1] < q) {
+                k++;
+            }
+            double d = q - v[k];
+            values[idx] = (float) Math.min(INF, d * d + f[v[k]]);
+        }
+    }
+}
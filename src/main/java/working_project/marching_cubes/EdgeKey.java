@@ -5,6 +5,8 @@ import java.util.Arrays;
 /**
  * Класс для уникального представления ребра между двумя точками, чтобы избежать дублирования вершин.
  * Точки сортируются по координатам.
+ * Используется только для нерегулярных сеток с явными координатами узлов; регулярная сетка
+ * ({@link ScalarGrid}) идентифицирует рёбра по положению в решётке.
  */
 class EdgeKey {
     final double[] p1;
@@ -0,0 +1,421 @@
+package working_project.marching_cubes;
+
+import working_project.rendering.Point3D;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Кеш построенных пространственных индексов и скалярных полей облаков точек.
+ * Облако опознаётся по отпечатку координат всех точек, поэтому одинаковое содержимое в разных списках
+ * даёт попадание в кеш, а изменённое облако — промах. Поле хранится (вместе с пирамидой {@link BrickPyramid}) по облаку,
+ * размеру вокселя и влияющим на него настройкам; при смене только процентиля уровня изоповерхности поле берётся из кеша
+ * и заново выполняется лишь извлечение поверхности.
+ * <p>
+ * Записи вытесняются в порядке давности использования (LRU), пока суммарная оценка их памяти
+ * превышает бюджет. Запись больше всего бюджета не кешируется. Методы потокобезопасны.
+ * <p>
+ * Если задан каталог, построенные плотные поля ({@link GridStorage#DENSE}) дополнительно сохраняются
+ * в нём файлами {@link MappedField} и при промахе в памяти открываются оттуда (в том числе в следующих
+ * сеансах), так что повторная реконструкция того же облака пропускает построение поля. Разрежённые
+ * и квантованные поля не сохраняются: файл хранит все узлы в float и был бы больше самого поля.
+ * Поле, файл которого больше дискового бюджета, тоже не сохраняется. Сохранённое поле извлекается
+ * прямо из отображения файла и не занимает кучу, но его страницы учитываются в бюджете памяти.
+ * Файлы сверх дискового бюджета удаляются, начиная с давно не использованных; файлы полей,
+ * которые ещё лежат в кеше, не удаляются.
+ */
+public class FieldCache {
+    private static final String FIELD_FILE_SUFFIX = ".sfld";
+
+    private final long budgetBytes;
+    private final Path directory;
+    private final long diskBudgetBytes;
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes;
+
+    private static class Entry {
+        final Object value;
+        final long bytes;
+
+        Entry(Object value, long bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Ключ облака: отпечаток координат и число точек.
+     */
+    static class CloudKey {
+        final long fingerprint;
+        final int size;
+
+        CloudKey(long fingerprint, int size) {
+            this.fingerprint = fingerprint;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            CloudKey other = (CloudKey) o;
+            return fingerprint == other.fingerprint && size == other.size;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fingerprint, size);
+        }
+    }
+
+    /**
+     * Ключ поля: облако, размер вокселя и настройки, от которых зависят значения поля.
+     */
+    private static class FieldKey {
+        final CloudKey cloud;
+        final double voxelSize;
+        final FieldEngine engine;
+        final GridStorage storage;
+        final double narrowBandWidth;
+        final double epsilon;
+        final double quantizationRange;
+        final boolean quantizePerBrick;
+
+        FieldKey(CloudKey cloud, double voxelSize, ReconstructionOptions options) {
+            this.cloud = cloud;
+            this.voxelSize = voxelSize;
+            this.engine = options.getFieldEngine();
+            this.storage = options.getStorage();
+            this.narrowBandWidth = options.getNarrowBandWidth();
+            this.epsilon = options.getNearestNeighborEpsilon();
+            this.quantizationRange = options.getQuantizationRange();
+            this.quantizePerBrick = options.isQuantizePerBrick();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            FieldKey other = (FieldKey) o;
+            return cloud.equals(other.cloud) && voxelSize == other.voxelSize && engine == other.engine
+                    && storage == other.storage && narrowBandWidth == other.narrowBandWidth && epsilon == other.epsilon
+                    && quantizationRange == other.quantizationRange && quantizePerBrick == other.quantizePerBrick;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(cloud, voxelSize, engine, storage, narrowBandWidth, epsilon,
+                    quantizationRange, quantizePerBrick);
+        }
+
+        /**
+         * Отпечаток настроек, не зависящий от сеанса (в отличие от {@link #hashCode()}, где хеши перечислений
+         * меняются между запусками), — для сверки с сохранённым полем.
+         */
+        long settings() {
+            long hash = 0xcbf29ce484222325L;
+            hash = mix(hash, engine.name().hashCode());
+            hash = mix(hash, storage.name().hashCode());
+            hash = mix(hash, Double.doubleToLongBits(narrowBandWidth));
+            hash = mix(hash, Double.doubleToLongBits(epsilon));
+            hash = mix(hash, Double.doubleToLongBits(quantizationRange));
+            return mix(hash, quantizePerBrick ? 1 : 0);
+        }
+
+        /**
+         * Имя файла поля: отпечаток облака, размера вокселя и настроек.
+         */
+        String fileName() {
+            long hash = mix(mix(mix(cloud.fingerprint, cloud.size), Double.doubleToLongBits(voxelSize)), settings());
+            return "field-" + Long.toHexString(hash) + FIELD_FILE_SUFFIX;
+        }
+
+        private static long mix(long hash, long value) {
+            return (hash ^ value) * 0x100000001b3L;
+        }
+    }
+
+    /**
+     * Кешированное поле вместе с его пирамидой минимумов и максимумов, чтобы повторное извлечение
+     * поверхности с другим уровнем перебирало только активные блоки.
+     */
+    static final class CachedField {
+        final ScalarField field;
+        final BrickPyramid pyramid;
+
+        CachedField(ScalarField field, BrickPyramid pyramid) {
+            this.field = field;
+            this.pyramid = pyramid;
+        }
+    }
+
+    /**
+     * @param budgetBytes Предельная суммарная оценка памяти кешированных индексов и полей
+     */
+    public FieldCache(long budgetBytes) {
+        this(budgetBytes, null, 0);
+    }
+
+    /**
+     * @param budgetBytes Предельная суммарная оценка памяти кешированных индексов и полей
+     * @param directory Каталог для файлов полей (создаётся при первой записи) или null, чтобы не сохранять поля
+     * @param diskBudgetBytes Предельный суммарный размер файлов полей в каталоге
+     */
+    public FieldCache(long budgetBytes, Path directory, long diskBudgetBytes) {
+        if (budgetBytes <= 0) {
+            throw new IllegalArgumentException("Cache budget must be positive: " + budgetBytes);
+        }
+        if (directory != null && diskBudgetBytes <= 0) {
+            throw new IllegalArgumentException("Disk cache budget must be positive: " + diskBudgetBytes);
+        }
+        this.budgetBytes = budgetBytes;
+        this.directory = directory;
+        this.diskBudgetBytes = diskBudgetBytes;
+    }
+
+    /**
+     * Возвращает скалярное поле облака из кеша или строит его (переиспользуя кешированный индекс точек).
+     * @param points Облако точек
+     * @param voxelSize Размер вокселя
+     * @param options Настройки построения поля
+     * @return Скалярное поле
+     */
+    public ScalarField getField(List<Point3D> points, double voxelSize, ReconstructionOptions options) {
+        return getCachedField(points, voxelSize, options).field;
+    }
+
+    CachedField getCachedField(List<Point3D> points, double voxelSize, ReconstructionOptions options) {
+        CloudKey cloud = cloudKey(points);
+        CachedField cached = cachedField(cloud, voxelSize, options);
+        if (cached != null) {
+            ScalarField field = cached.field;
+            System.out.println("Scalar field cache hit: " + field.getNx() + "x" + field.getNy() + "x" + field.getNz());
+            return cached;
+        }
+
+        double[] mins = new double[3];
+        double[] maxs = new double[3];
+        double[][] pointArray = MarchingCubes.toPointArray(points, mins, maxs);
+        ScalarField field = MarchingCubes.computeField(pointArray, mins, maxs, voxelSize, options, index(cloud, pointArray, options));
+        return putField(cloud, voxelSize, options, field);
+    }
+
+    static CloudKey cloudKey(List<Point3D> points) {
+        return new CloudKey(fingerprint(points), points.size());
+    }
+
+    CachedField cachedField(CloudKey cloud, double voxelSize, ReconstructionOptions options) {
+        FieldKey key = new FieldKey(cloud, voxelSize, options);
+        CachedField cached = (CachedField) get(key);
+        if (cached == null && persists(options)) {
+            MappedField field = loadField(key);
+            if (field != null) {
+                cached = putField(key, field, options);
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Строит пирамиду поля и сохраняет их вместе. Если задан каталог и поле плотное и помещается
+     * в дисковый бюджет, поле записывается в файл и в памяти остаётся его отображение.
+     */
+    CachedField putField(CloudKey cloud, double voxelSize, ReconstructionOptions options, ScalarField field) {
+        FieldKey key = new FieldKey(cloud, voxelSize, options);
+        if (persists(options) && MappedField.fileBytes(field) <= diskBudgetBytes) {
+            ScalarField saved = saveField(key, field);
+            if (saved != null) {
+                field = saved;
+            }
+        }
+        return putField(key, field, options);
+    }
+
+    private boolean persists(ReconstructionOptions options) {
+        return directory != null && options.getStorage() == GridStorage.DENSE;
+    }
+
+    private CachedField putField(FieldKey key, ScalarField field, ReconstructionOptions options) {
+        CachedField cached = new CachedField(field, BrickPyramid.build(field, options.getPool()));
+        put(key, cached, field.estimateMemoryBytes() + cached.pyramid.estimateMemoryBytes());
+        return cached;
+    }
+
+    /**
+     * Открывает сохранённое поле; null, если файла нет, он повреждён или построен для другого облака или настроек.
+     */
+    private MappedField loadField(FieldKey key) {
+        Path file = directory.resolve(key.fileName());
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            MappedField field = MappedField.open(file);
+            if (field.getCloudFingerprint() != key.cloud.fingerprint || field.getPointCount() != key.cloud.size
+                    || field.getVoxelSize() != key.voxelSize || field.getSettings() != key.settings()) {
+                return null;
+            }
+            touch(file);
+            System.out.println("Scalar field loaded from " + file + ": "
+                    + field.getNx() + "x" + field.getNy() + "x" + field.getNz());
+            return field;
+        } catch (IOException e) {
+            System.out.println("Failed to open cached scalar field " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Отмечает файл как использованный: время изменения служит временем последнего использования
+     * при очистке каталога. Ошибка не мешает пользоваться уже открытым полем.
+     */
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            System.out.println("Failed to update time of cached scalar field " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Записывает поле в каталог и возвращает его отображение; null, если запись не удалась.
+     */
+    private MappedField saveField(FieldKey key, ScalarField field) {
+        Path file = directory.resolve(key.fileName());
+        try {
+            Files.createDirectories(directory);
+            MappedField mapped = MappedField.write(file, field, key.cloud.fingerprint, key.cloud.size, key.settings());
+            System.out.println("Scalar field saved to " + file + " (" + mapped.getFileBytes() / (1024 * 1024) + " MB)");
+            pruneDirectory(file);
+            return mapped;
+        } catch (IOException e) {
+            System.out.println("Failed to save scalar field " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Удаляет давно не использованные файлы полей, пока их суммарный размер превышает дисковый бюджет.
+     * Только что записанный файл и файлы полей, лежащих в кеше, не удаляются. Файл, который не удалось
+     * удалить (например, в Windows — пока он отображён), пропускается.
+     */
+    private synchronized void pruneDirectory(Path keep) {
+        Set<Path> live = new HashSet<>();
+        live.add(keep);
+        for (Entry entry : entries.values()) {
+            if (entry.value instanceof CachedField && ((CachedField) entry.value).field instanceof MappedField) {
+                live.add(((MappedField) ((CachedField) entry.value).field).getFile());
+            }
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + FIELD_FILE_SUFFIX)) {
+            stream.forEach(files::add);
+        } catch (IOException e) {
+            System.out.println("Failed to list cached scalar fields in " + directory + ": " + e.getMessage());
+            return;
+        }
+        long total = 0;
+        for (Path file : files) {
+            total += file.toFile().length();
+        }
+        files.sort(Comparator.comparing(file -> file.toFile().lastModified()));
+        for (Path file : files) {
+            if (total <= diskBudgetBytes) break;
+            if (live.contains(file)) continue;
+            long size = file.toFile().length();
+            try {
+                Files.deleteIfExists(file);
+                total -= size;
+            } catch (IOException e) {
+                System.out.println("Failed to delete cached scalar field " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Индекс точек облака из кеша или построенный заново; null, если при этих настройках поле строится без индекса.
+     */
+    SpatialIndex index(CloudKey cloud, double[][] pointArray, ReconstructionOptions options) {
+        if (!options.usesSpatialIndex()) {
+            return null;
+        }
+        return spatialIndex(cloud, pointArray, options.getPool());
+    }
+
+    /**
+     * Индекс точек облака из кеша или построенный заново независимо от настроек поля.
+     */
+    SpatialIndex spatialIndex(CloudKey cloud, double[][] pointArray, ForkJoinPool pool) {
+        SpatialIndex index = (SpatialIndex) get(cloud);
+        if (index == null) {
+            index = SpatialHashGrid.forPoints(pointArray, pool);
+            put(cloud, index, index.estimateMemoryBytes());
+        }
+        return index;
+    }
+
+    /**
+     * Удаляет все записи.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    private synchronized Object get(Object key) {
+        Entry entry = entries.get(key);
+        return entry == null ? null : entry.value;
+    }
+
+    private synchronized void put(Object key, Object value, long bytes) {
+        if (bytes > budgetBytes) return;
+        Entry previous = entries.put(key, new Entry(value, bytes));
+        if (previous != null) {
+            usedBytes -= previous.bytes;
+        }
+        usedBytes += bytes;
+        // Вытесняем давно не использованные записи, не трогая только что добавленную
+        Iterator<Map.Entry<Object, Entry>> it = entries.entrySet().iterator();
+        while (usedBytes > budgetBytes && it.hasNext()) {
+            Map.Entry<Object, Entry> eldest = it.next();
+            if (eldest.getKey().equals(key)) continue;
+            usedBytes -= eldest.getValue().bytes;
+            it.remove();
+        }
+    }
+
+    /**
+     * 64-битный отпечаток координат облака (FNV-1a по битам float).
+     */
+    static long fingerprint(List<Point3D> points) {
+        long hash = 0xcbf29ce484222325L;
+        for (Point3D p : points) {
+            hash = (hash ^ Float.floatToIntBits(p.x)) * 0x100000001b3L;
+            hash = (hash ^ Float.floatToIntBits(p.y)) * 0x100000001b3L;
+            hash = (hash ^ Float.floatToIntBits(p.z)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,21 @@
+package working_project.marching_cubes;
+
+/**
+ * Способ построения скалярного поля расстояний до облака точек.
+ */
+public enum FieldEngine {
+    /**
+     * Запрос ближайшего соседа в KD-дереве для каждого вокселя: точное расстояние, O(V log N).
+     */
+    KD_TREE,
+    /**
+     * Растеризация точек в сетку и точное евклидово преобразование расстояний (Felzenszwalb–Huttenlocher):
+     * O(V) независимо от числа точек, расстояния измеряются до центров занятых вокселей.
+     */
+    DISTANCE_TRANSFORM,
+    /**
+     * Каждая точка обновляет только узлы в узкой полосе вокруг себя: O(N * объём полосы),
+     * узлы вне полосы получают значение её ширины.
+     */
+    NARROW_BAND
+}
@@ -0,0 +1,20 @@
+package working_project.marching_cubes;
+
+/**
+ * Способ хранения скалярного поля при реконструкции.
+ */
+public enum GridStorage {
+    /**
+     * Плотный массив float на все узлы сетки ({@link ScalarGrid}).
+     */
+    DENSE,
+    /**
+     * Разреженные блоки 8³ только вокруг точек ({@link SparseGrid}); поле строится в узкой полосе.
+     */
+    SPARSE,
+    /**
+     * Плотный массив 16-битных кодов с масштабом по блокам 8³ ({@link QuantizedGrid}): вдвое меньше памяти,
+     * чем {@link #DENSE}, с погрешностью не больше половины шага квантования.
+     */
+    QUANTIZED
+}
@@ -0,0 +1,298 @@
+package working_project.marching_cubes;
+
+import working_project.marching_cubes.MarchingCubes.Mesh;
+import working_project.rendering.Point3D;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Инкрементальная реконструкция облака, поступающего порциями (например, со сканера).
+ * <p>
+ * Поле расстояний хранится в узкой полосе (как у {@link NarrowBandField}) на неограниченной решётке
+ * с началом в начале координат, блоками по BLOCK * BLOCK * BLOCK узлов, которые создаются при первой записи.
+ * Добавление точек может только уменьшить расстояния, поэтому новая порция обновляет лишь узлы в полосе
+ * вокруг своих точек, а заново извлекаются только блоки кубов, затронутые этими узлами. Стоимость
+ * обновления пропорциональна размеру порции, а не всего скана.
+ * <p>
+ * Поэтому уровень изоповерхности задаётся не процентилем (он зависит от всего поля), а абсолютным расстоянием.
+ * Ширина полосы — уровень плюс два вокселя: оба конца любого ребра, пересекающего поверхность, лежат внутри
+ * полосы, так что меш совпадает с извлечённым из точного поля расстояний на той же решётке.
+ * <p>
+ * Меш хранится по блокам; вершины на границах блоков дублируются в каждом из соседних блоков
+ * (их координаты совпадают, поэтому швов нет).
+ */
+public final class IncrementalReconstruction {
+    static final int BLOCK_LOG2 = 3;
+    static final int BLOCK = 1 << BLOCK_LOG2;
+    private static final int BLOCK_MASK = BLOCK - 1;
+    private static final int BLOCK_SIZE = BLOCK * BLOCK * BLOCK;
+    // Узлы блока кубов вместе с правыми границами, которые принадлежат соседним блокам
+    private static final int GATHER = BLOCK + 1;
+    // Бит на координату блока в ключе
+    private static final int KEY_BITS = 21;
+    private static final long KEY_MASK = (1L << KEY_BITS) - 1;
+
+    private final double voxelSize;
+    private final double isoLevel;
+    private final float band;
+    private final ForkJoinPool pool;
+
+    // Блоки узлов поля и непустые меши блоков кубов по ключу блока
+    private final Map<Long, float[]> blocks = new ConcurrentHashMap<>();
+    private final Map<Long, Mesh> meshes = new HashMap<>();
+    private long pointCount;
+    private long faceCount;
+
+    /**
+     * Изменение меша одного блока после добавления порции: треугольники removed заменяются на added.
+     * Блок (blockX, blockY, blockZ) содержит кубы с узлами начала от (blockX * BLOCK, ...) до (blockX * BLOCK + BLOCK - 1, ...).
+     */
+    public static final class BlockUpdate {
+        public final int blockX, blockY, blockZ;
+        public final Mesh removed;
+        public final Mesh added;
+
+        BlockUpdate(int blockX, int blockY, int blockZ, Mesh removed, Mesh added) {
+            this.blockX = blockX;
+            this.blockY = blockY;
+            this.blockZ = blockZ;
+            this.removed = removed;
+            this.added = added;
+        }
+    }
+
+    /**
+     * @param voxelSize Размер вокселя
+     * @param isoLevel Уровень изоповерхности — расстояние до ближайшей точки в мировых единицах
+     * @param pool Пул потоков для обработки порций; null — в текущем потоке
+     */
+    public IncrementalReconstruction(double voxelSize, double isoLevel, ForkJoinPool pool) {
+        if (voxelSize <= 0 || isoLevel <= 0) {
+            throw new IllegalArgumentException("Voxel size and iso level must be positive: " + voxelSize + ", " + isoLevel);
+        }
+        this.voxelSize = voxelSize;
+        this.isoLevel = isoLevel;
+        this.band = (float) (isoLevel + 2 * voxelSize);
+        this.pool = pool;
+    }
+
+    /**
+     * Добавляет порцию точек: обновляет поле в полосе вокруг них и заново извлекает затронутые блоки.
+     * @param batch Новые точки
+     * @return Изменения мешей блоков (только блоков, меш которых изменился)
+     */
+    public synchronized List<BlockUpdate> append(List<Point3D> batch) {
+        long start = System.nanoTime();
+        double[][] points = new double[batch.size()][];
+        for (int n = 0; n < points.length; n++) {
+            Point3D p = batch.get(n);
+            points[n] = new double[]{p.x, p.y, p.z};
+        }
+
+        // Наносим точки на поле, запоминая блоки кубов, углы которых изменились
+        Set<Long> dirty = ConcurrentHashMap.newKeySet();
+        double bandSquared = (double) band * band;
+        ParallelLoops.forRange(pool, 0, points.length, Math.max(1024, ParallelLoops.grainFor(pool, points.length)), (from, to) -> {
+            for (int n = from; n < to; n++) {
+                double[] p = points[n];
+                int iMin = (int) Math.ceil((p[0] - band) / voxelSize);
+                int iMax = (int) Math.floor((p[0] + band) / voxelSize);
+                int jMin = (int) Math.ceil((p[1] - band) / voxelSize);
+                int jMax = (int) Math.floor((p[1] + band) / voxelSize);
+                int kMin = (int) Math.ceil((p[2] - band) / voxelSize);
+                int kMax = (int) Math.floor((p[2] + band) / voxelSize);
+                if (splat(p, iMin, iMax, jMin, jMax, kMin, kMax, bandSquared)) {
+                    // Узел (i, j, k) — угол кубов с началом от (i - 1, j - 1, k - 1) до (i, j, k)
+                    for (int bi = (iMin - 1) >> BLOCK_LOG2; bi <= iMax >> BLOCK_LOG2; bi++) {
+                        for (int bj = (jMin - 1) >> BLOCK_LOG2; bj <= jMax >> BLOCK_LOG2; bj++) {
+                            for (int bk = (kMin - 1) >> BLOCK_LOG2; bk <= kMax >> BLOCK_LOG2; bk++) {
+                                dirty.add(key(bi, bj, bk));
+                            }
+                        }
+                    }
+                }
+            }
+        });
+
+        // Заново извлекаем затронутые блоки; каждый блок независим
+        long[] keys = new long[dirty.size()];
+        int count = 0;
+        for (long key : dirty) {
+            keys[count++] = key;
+        }
+        Arrays.sort(keys); // Порядок изменений не зависит от распределения по потокам
+        Mesh[] extracted = new Mesh[keys.length];
+        ParallelLoops.forRange(pool, 0, keys.length, ParallelLoops.grainFor(pool, keys.length), (from, to) -> {
+            float[] nodes = new float[GATHER * GATHER * GATHER];
+            for (int n = from; n < to; n++) {
+                extracted[n] = extractBlock(keys[n], nodes);
+            }
+        });
+
+        List<BlockUpdate> updates = new ArrayList<>();
+        for (int n = 0; n < keys.length; n++) {
+            Mesh added = extracted[n];
+            Mesh removed = added.getFaceCount() > 0 ? meshes.put(keys[n], added) : meshes.remove(keys[n]);
+            if (removed == null) {
+                if (added.getFaceCount() == 0) continue;
+                removed = new Mesh(0, 0);
+            }
+            faceCount += added.getFaceCount() - removed.getFaceCount();
+            updates.add(new BlockUpdate(blockX(keys[n]), blockY(keys[n]), blockZ(keys[n]), removed, added));
+        }
+        pointCount += points.length;
+        System.out.println("Incremental update: " + points.length + " points, " + keys.length + " dirty blocks, "
+                + updates.size() + " changed, " + faceCount + " faces in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return updates;
+    }
+
+    /**
+     * Записывает расстояния от точки p в узлы полосы; возвращает true, если хотя бы одно значение уменьшилось.
+     */
+    private boolean splat(double[] p, int iMin, int iMax, int jMin, int jMax, int kMin, int kMax, double bandSquared) {
+        boolean changed = false;
+        for (int i = iMin; i <= iMax; i++) {
+            double dx = i * voxelSize - p[0];
+            double dx2 = dx * dx;
+            for (int j = jMin; j <= jMax; j++) {
+                double dy = j * voxelSize - p[1];
+                double dxy2 = dx2 + dy * dy;
+                if (dxy2 >= bandSquared) continue;
+                float[] block = null;
+                for (int k = kMin; k <= kMax; k++) {
+                    double dz = k * voxelSize - p[2];
+                    double d2 = dxy2 + dz * dz;
+                    if (d2 >= bandSquared) continue;
+                    // Блок ищем заново только при переходе через его границу по Z
+                    if (block == null || (k & BLOCK_MASK) == 0) {
+                        block = touchBlock(i >> BLOCK_LOG2, j >> BLOCK_LOG2, k >> BLOCK_LOG2);
+                    }
+                    int slot = slot(i, j, k);
+                    float d = (float) Math.sqrt(d2);
+                    if (d < block[slot]) {
+                        NarrowBandField.atomicMin(block, slot, d);
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Извлекает поверхность из кубов блока; nodes — рабочий буфер на GATHER³ узлов.
+     */
+    private Mesh extractBlock(long key, float[] nodes) {
+        int bx = blockX(key), by = blockY(key), bz = blockZ(key);
+        // Узлы блока и правых границ: соседние блоки по каждой оси (отсутствующие — фон)
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int di = 0; di < 2; di++) {
+            for (int dj = 0; dj < 2; dj++) {
+                for (int dk = 0; dk < 2; dk++) {
+                    float[] block = blocks.get(key(bx + di, by + dj, bz + dk));
+                    for (int li = di * BLOCK; li < (di == 0 ? BLOCK : GATHER); li++) {
+                        for (int lj = dj * BLOCK; lj < (dj == 0 ? BLOCK : GATHER); lj++) {
+                            for (int lk = dk * BLOCK; lk < (dk == 0 ? BLOCK : GATHER); lk++) {
+                                float v = block == null ? band : block[slot(li, lj, lk)];
+                                nodes[(li * GATHER + lj) * GATHER + lk] = v;
+                                min = Math.min(min, v);
+                                max = Math.max(max, v);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        Mesh mesh = new Mesh(0, 0);
+        if (!(min <= isoLevel && max > isoLevel)) {
+            return mesh; // Блок не пересекает поверхность (см. BrickPyramid)
+        }
+        double[] origin = {bx * BLOCK * voxelSize, by * BLOCK * voxelSize, bz * BLOCK * voxelSize};
+        CubeKernel kernel = new CubeKernel(GATHER, GATHER, origin, voxelSize, isoLevel, mesh);
+        int planeSize = GATHER * GATHER;
+        for (int li = 0; li < BLOCK; li++) {
+            kernel.processLayer(li, nodes, li * planeSize, nodes, (li + 1) * planeSize, false);
+        }
+        return mesh;
+    }
+
+    private float[] touchBlock(int bx, int by, int bz) {
+        return blocks.computeIfAbsent(key(bx, by, bz), k -> {
+            float[] block = new float[BLOCK_SIZE];
+            Arrays.fill(block, band);
+            return block;
+        });
+    }
+
+    // Индекс узла внутри блока; для координат вне [0, BLOCK) берутся младшие биты
+    private static int slot(int i, int j, int k) {
+        return (((i & BLOCK_MASK) << BLOCK_LOG2 | (j & BLOCK_MASK)) << BLOCK_LOG2) | (k & BLOCK_MASK);
+    }
+
+    private static long key(int bx, int by, int bz) {
+        return (bx & KEY_MASK) << (2 * KEY_BITS) | (by & KEY_MASK) << KEY_BITS | (bz & KEY_MASK);
+    }
+
+    // Координаты блока из ключа с восстановлением знака
+    private static int blockX(long key) {
+        return (int) (key << (64 - 3 * KEY_BITS) >> (64 - KEY_BITS));
+    }
+
+    private static int blockY(long key) {
+        return (int) (key << (64 - 2 * KEY_BITS) >> (64 - KEY_BITS));
+    }
+
+    private static int blockZ(long key) {
+        return (int) (key << (64 - KEY_BITS) >> (64 - KEY_BITS));
+    }
+
+    /**
+     * Собирает текущий меш всех блоков в один (вершины на границах блоков не объединяются).
+     */
+    public synchronized Mesh toMesh() {
+        int vertices = 0;
+        for (Mesh mesh : meshes.values()) {
+            vertices += mesh.getVertexCount();
+        }
+        Mesh result = new Mesh(vertices, (int) faceCount);
+        for (Mesh mesh : meshes.values()) {
+            int offset = result.getVertexCount();
+            float[] v = mesh.getVertices();
+            for (int n = 0; n < mesh.getVertexCount(); n++) {
+                result.addVertex(v[n * 3], v[n * 3 + 1], v[n * 3 + 2]);
+            }
+            int[] f = mesh.getFaces();
+            for (int n = 0; n < mesh.getFaceCount() * 3; n += 3) {
+                result.addFace(f[n] + offset, f[n + 1] + offset, f[n + 2] + offset);
+            }
+        }
+        return result;
+    }
+
+    public synchronized long getPointCount() {
+        return pointCount;
+    }
+
+    public synchronized long getFaceCount() {
+        return faceCount;
+    }
+
+    public double getIsoLevel() {
+        return isoLevel;
+    }
+
+    /**
+     * Оценка памяти блоков поля в байтах.
+     */
+    public long estimateMemoryBytes() {
+        return (long) blocks.size() * BLOCK_SIZE * Float.BYTES;
+    }
+}
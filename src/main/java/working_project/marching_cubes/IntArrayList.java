@@ -0,0 +1,42 @@
+package working_project.marching_cubes;
+
+import java.util.Arrays;
+
+/**
+ * Растущий список примитивных int без упаковки в Integer.
+ */
+final class IntArrayList {
+    private int[] data;
+    private int size;
+
+    IntArrayList() {
+        this(16);
+    }
+
+    IntArrayList(int capacity) {
+        data = new int[Math.max(1, capacity)];
+    }
+
+    void add(int value) {
+        if (size == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        data[size++] = value;
+    }
+
+    int get(int index) {
+        return data[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+}
@@ -1,98 +1,289 @@
 package working_project.marching_cubes;
 
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
- * Простая реализация KD-дерева для быстрого поиска ближайшей точки в 3D-пространстве.
+ * KD-дерево для быстрого поиска ближайшей точки в 3D-пространстве.
+ * Дерево неявное: координаты точек лежат в одном массиве float (x, y, z подряд), переупорядоченном так,
+ * что корень поддерева на отрезке [lo, hi) — элемент с индексом (lo + hi) / 2, левое поддерево — [lo, mid),
+ * правое — [mid + 1, hi). Ось разделения чередуется по глубине (x, y, z). Отрезки не длиннее
+ * {@link #LEAF_SIZE} не разделяются и просматриваются целиком.
+ * <p>
+ * Построение — поиск медианы на месте (nth_element) на каждом уровне, то есть O(n log n) без копирования
+ * подмассивов; поддеревья строятся параллельно. Поиск сравнивает квадраты расстояний и не выделяет память.
+ * Координаты хранятся во float без потерь, так как точки облака ({@code Point3D}) имеют точность float.
  */
-class KDTree {
-    private static class Node {
-        double[] point;
-        int axis;       // Ось разделения (0=x, 1=y, 2=z)
-        Node left, right; // Дочерние узлы (левое и правое поддерево)
-
-        Node(double[] point, int axis) {
-            this.point = point;
-            this.axis = axis;
-        }
-    }
+class KDTree implements SpatialIndex {
+    private static final int LEAF_SIZE = 8;
+    // Поддеревья меньшего размера строятся в текущем потоке
+    private static final int PARALLEL_BUILD_SIZE = 1 << 15;
 
-    private final Node root;
+    private final float[] coords;
+    private final int[] indices; // Индекс точки во входном массиве для каждой позиции дерева
+    private final int size;
 
     public KDTree(double[][] points) {
-        root = buildTree(points, 0);
+        this(points, null);
     }
 
     /**
-     * Рекурсивно строит KD-дерево, разделяя точки по медиане.
-     * @param points Точки для текущего поддерева
-     * @param depth Текущая глубина (определяет ось разделения)
-     * @return Корневой узел поддерева
+     * Строит дерево, распределяя построение поддеревьев между потоками пула.
+     * @param points Точки облака
+     * @param pool Пул потоков; null — построение в текущем потоке
      */
-    private Node buildTree(double[][] points, int depth) {
-        if (points.length == 0) return null;
-        if (points.length == 1) return new Node(points[0], depth % 3);
+    public KDTree(double[][] points, ForkJoinPool pool) {
+        size = points.length;
+        coords = new float[size * 3];
+        indices = new int[size];
+        for (int n = 0; n < size; n++) {
+            coords[3 * n] = (float) points[n][0];
+            coords[3 * n + 1] = (float) points[n][1];
+            coords[3 * n + 2] = (float) points[n][2];
+            indices[n] = n;
+        }
+        boolean parallel = pool != null && size > PARALLEL_BUILD_SIZE;
+        BuildTask root = new BuildTask(this, 0, size, 0, parallel);
+        if (parallel) {
+            pool.invoke(root);
+        } else {
+            root.compute();
+        }
+    }
+
+    /**
+     * Рекурсивно строит поддерево на отрезке [lo, hi): медиана по оси axis ставится в середину отрезка.
+     */
+    private static class BuildTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final KDTree tree;
+        private final int lo, hi, axis;
+        private final boolean parallel;
+
+        BuildTask(KDTree tree, int lo, int hi, int axis, boolean parallel) {
+            this.tree = tree;
+            this.lo = lo;
+            this.hi = hi;
+            this.axis = axis;
+            this.parallel = parallel;
+        }
 
-        int axis = depth % 3; // Выбираем ось (x, y, z чередуются по глубине)
-        Arrays.sort(points, Comparator.comparingDouble(a -> a[axis]));
-        int mid = points.length / 2;
-        Node node = new Node(points[mid], axis);
-        node.left = buildTree(Arrays.copyOfRange(points, 0, mid), depth + 1);
-        node.right = buildTree(Arrays.copyOfRange(points, mid + 1, points.length), depth + 1);
-        return node;
+        @Override
+        protected void compute() {
+            if (hi - lo <= LEAF_SIZE) return;
+            int mid = (lo + hi) >>> 1;
+            tree.select(lo, hi - 1, mid, axis);
+            int next = axis == 2 ? 0 : axis + 1;
+            BuildTask left = new BuildTask(tree, lo, mid, next, parallel);
+            BuildTask right = new BuildTask(tree, mid + 1, hi, next, parallel);
+            if (parallel && hi - lo > PARALLEL_BUILD_SIZE) {
+                invokeAll(left, right);
+            } else {
+                left.compute();
+                right.compute();
+            }
+        }
+    }
+
+    /**
+     * Переставляет точки отрезка [lo, hi] так, что на позиции k оказывается k-я по оси axis,
+     * слева от неё — не большие, справа — не меньшие (quickselect с медианой из трёх).
+     */
+    private void select(int lo, int hi, int k, int axis) {
+        while (hi > lo) {
+            int mid = (lo + hi) >>> 1;
+            if (key(mid, axis) < key(lo, axis)) swap(mid, lo);
+            if (key(hi, axis) < key(lo, axis)) swap(hi, lo);
+            if (key(hi, axis) < key(mid, axis)) swap(hi, mid);
+            float pivot = key(mid, axis);
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (key(i, axis) < pivot) i++;
+                while (key(j, axis) > pivot) j--;
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
     }
 
+    private float key(int n, int axis) {
+        return coords[3 * n + axis];
+    }
 
-    public static class NearestNeighbor {
-        public double[] point;
-        public double distance;
-        NearestNeighbor(double[] point, double distance) {
-            this.point = point;
-            this.distance = distance;
+    private void swap(int a, int b) {
+        int ca = 3 * a, cb = 3 * b;
+        for (int d = 0; d < 3; d++) {
+            float t = coords[ca + d];
+            coords[ca + d] = coords[cb + d];
+            coords[cb + d] = t;
         }
+        int t = indices[a];
+        indices[a] = indices[b];
+        indices[b] = t;
     }
 
+    @Override
     public NearestNeighbor nearest(double[] query) {
-        NearestNeighbor nn = new NearestNeighbor(null, Double.POSITIVE_INFINITY); // Инициализируем с бесконечным расстоянием
-        nearest(root, query, nn);
-        return nn;
+        int best = nearest(0, size, 0, query[0], query[1], query[2], -1, Double.POSITIVE_INFINITY, 1.0);
+        if (best < 0) {
+            return new NearestNeighbor(null, Double.POSITIVE_INFINITY, -1);
+        }
+        double[] point = {coords[3 * best], coords[3 * best + 1], coords[3 * best + 2]};
+        return new NearestNeighbor(point, Math.sqrt(distanceSquared(best, query[0], query[1], query[2])), indices[best]);
+    }
+
+    @Override
+    public double nearestDistanceSquared(double x, double y, double z) {
+        int best = nearest(0, size, 0, x, y, z, -1, Double.POSITIVE_INFINITY, 1.0);
+        return best < 0 ? Double.POSITIVE_INFINITY : distanceSquared(best, x, y, z);
     }
 
     /**
-     * Рекурсивно ищет ближайшую точку.
-     * @param node Текущий узел
-     * @param query Точка запроса
-     * @param nn Результат поиска (обновляется)
+     * Приближённый поиск: дальнее поддерево пропускается, если разделяющая плоскость дальше
+     * лучшего найденного расстояния, делённого на (1 + epsilon).
      */
-    private void nearest(Node node, double[] query, NearestNeighbor nn) {
-        if (node == null) return;
+    @Override
+    public double nearestDistanceSquared(double x, double y, double z, double epsilon) {
+        double scale = (1 + epsilon) * (1 + epsilon);
+        int best = nearest(0, size, 0, x, y, z, -1, Double.POSITIVE_INFINITY, scale);
+        return best < 0 ? Double.POSITIVE_INFINITY : distanceSquared(best, x, y, z);
+    }
 
-        // Вычисляем расстояние до точки текущего узла
-        double dist = distance(query, node.point);
-        if (dist < nn.distance) {
-            nn.point = node.point;
-            nn.distance = dist;
+    /**
+     * Рекурсивно ищет ближайшую точку в поддереве [lo, hi).
+     * @param best Позиция лучшей найденной точки (-1, если её нет)
+     * @param bestD2 Квадрат расстояния до неё
+     * @param pruneScale (1 + epsilon)^2 для приближённого поиска, 1 для точного
+     * @return Позиция лучшей точки с учётом поддерева
+     */
+    private int nearest(int lo, int hi, int axis, double x, double y, double z, int best, double bestD2,
+                        double pruneScale) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int n = lo; n < hi; n++) {
+                double d2 = distanceSquared(n, x, y, z);
+                if (d2 < bestD2) {
+                    best = n;
+                    bestD2 = d2;
+                }
+            }
+            return best;
+        }
+
+        int mid = (lo + hi) >>> 1;
+        double d2 = distanceSquared(mid, x, y, z);
+        if (d2 < bestD2) {
+            best = mid;
+            bestD2 = d2;
+        }
+
+        int next = axis == 2 ? 0 : axis + 1;
+        // Знак diff определяет ближнее поддерево: левое, если запрос меньше разделяющей координаты
+        double diff = (axis == 0 ? x : axis == 1 ? y : z) - coords[3 * mid + axis];
+        boolean leftNear = diff < 0;
+        int found = leftNear
+                ? nearest(lo, mid, next, x, y, z, best, bestD2, pruneScale)
+                : nearest(mid + 1, hi, next, x, y, z, best, bestD2, pruneScale);
+        if (found != best) {
+            best = found;
+            bestD2 = distanceSquared(best, x, y, z);
+        }
+        // Дальнее поддерево проверяем, если разделяющая плоскость ближе текущего минимума
+        if (diff * diff * pruneScale < bestD2) {
+            best = leftNear
+                    ? nearest(mid + 1, hi, next, x, y, z, best, bestD2, pruneScale)
+                    : nearest(lo, mid, next, x, y, z, best, bestD2, pruneScale);
+        }
+        return best;
+    }
+
+    @Override
+    public void knn(double x, double y, double z, KnnHeap heap) {
+        knn(0, size, 0, x, y, z, heap);
+    }
+
+    @Override
+    public void radius(double x, double y, double z, double radiusSquared, RadiusCursor cursor) {
+        radius(0, size, 0, x, y, z, radiusSquared, cursor);
+    }
+
+    private void knn(int lo, int hi, int axis, double x, double y, double z, KnnHeap heap) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int n = lo; n < hi; n++) {
+                double d2 = distanceSquared(n, x, y, z);
+                if (d2 < heap.bound()) {
+                    heap.offer(indices[n], d2);
+                }
+            }
+            return;
+        }
+
+        int mid = (lo + hi) >>> 1;
+        double d2 = distanceSquared(mid, x, y, z);
+        if (d2 < heap.bound()) {
+            heap.offer(indices[mid], d2);
+        }
+        int next = axis == 2 ? 0 : axis + 1;
+        double diff = (axis == 0 ? x : axis == 1 ? y : z) - coords[3 * mid + axis];
+        if (diff < 0) {
+            knn(lo, mid, next, x, y, z, heap);
+            if (diff * diff < heap.bound()) knn(mid + 1, hi, next, x, y, z, heap);
+        } else {
+            knn(mid + 1, hi, next, x, y, z, heap);
+            if (diff * diff < heap.bound()) knn(lo, mid, next, x, y, z, heap);
+        }
+    }
+
+    private void radius(int lo, int hi, int axis, double x, double y, double z, double r2, RadiusCursor cursor) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int n = lo; n < hi; n++) {
+                collect(n, x, y, z, r2, cursor);
+            }
+            return;
         }
 
-        int axis = node.axis; // Ось разделения текущего узла
-        // Выбираем, в какое поддерево идти: левое, если query[axis] < node.point[axis]
-        Node near = query[axis] < node.point[axis] ? node.left : node.right;
-        Node far = query[axis] < node.point[axis] ? node.right : node.left;
+        int mid = (lo + hi) >>> 1;
+        collect(mid, x, y, z, r2, cursor);
+        int next = axis == 2 ? 0 : axis + 1;
+        double diff = (axis == 0 ? x : axis == 1 ? y : z) - coords[3 * mid + axis];
+        // Левое поддерево не правее разделяющей плоскости, правое — не левее
+        if (diff <= 0 || diff * diff <= r2) radius(lo, mid, next, x, y, z, r2, cursor);
+        if (diff >= 0 || diff * diff <= r2) radius(mid + 1, hi, next, x, y, z, r2, cursor);
+    }
 
-        nearest(near, query, nn); // Сначала проверяем ближнее поддерево
-        // Проверяем дальнее поддерево, если расстояние до разделяющей плоскости меньше текущего минимума
-        double axisDist = Math.abs(query[axis] - node.point[axis]);
-        if (axisDist < nn.distance) {
-            nearest(far, query, nn);
+    private void collect(int n, double x, double y, double z, double r2, RadiusCursor cursor) {
+        double d2 = distanceSquared(n, x, y, z);
+        if (d2 <= r2) {
+            cursor.add(indices[n], d2);
         }
     }
 
-    // евклидово расстояние между двумя точками
-    private double distance(double[] p1, double[] p2) {
-        double dx = p1[0] - p2[0];
-        double dy = p1[1] - p2[1];
-        double dz = p1[2] - p2[2];
-        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    // квадрат евклидова расстояния от точки на позиции n до (x, y, z)
+    private double distanceSquared(int n, double x, double y, double z) {
+        int c = 3 * n;
+        double dx = x - coords[c];
+        double dy = y - coords[c + 1];
+        double dz = z - coords[c + 2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long estimateMemoryBytes() {
+        return (long) coords.length * Float.BYTES + (long) indices.length * Integer.BYTES;
     }
 }
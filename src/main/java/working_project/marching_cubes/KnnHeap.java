@@ -0,0 +1,78 @@
+package working_project.marching_cubes;
+
+/**
+ * Ограниченная max-куча k лучших кандидатов одного запроса, хранящаяся прямо в строке массивов результата
+ * пакетного поиска ({@link SpatialIndex#knn(double[][], int, int[], double[], java.util.concurrent.ForkJoinPool)}).
+ * Объект переиспользуется для всех запросов блока.
+ */
+final class KnnHeap {
+    private final int[] indices;
+    private final double[] d2;
+    private final int k;
+    private int base, count;
+
+    KnnHeap(int[] indices, double[] d2, int k) {
+        this.indices = indices;
+        this.d2 = d2;
+        this.k = k;
+    }
+
+    void reset(int base) {
+        this.base = base;
+        count = 0;
+    }
+
+    // Квадрат расстояния, с которым должен сравниться кандидат, чтобы попасть в кучу
+    double bound() {
+        return count < k ? Double.POSITIVE_INFINITY : d2[base];
+    }
+
+    void offer(int index, double distance) {
+        if (count < k) {
+            int c = count++;
+            // Просеивание вверх
+            while (c > 0) {
+                int parent = (c - 1) >> 1;
+                if (d2[base + parent] >= distance) break;
+                move(c, parent);
+                c = parent;
+            }
+            indices[base + c] = index;
+            d2[base + c] = distance;
+        } else if (distance < d2[base]) {
+            siftDown(0, count, index, distance);
+        }
+    }
+
+    private void siftDown(int c, int n, int index, double distance) {
+        while (true) {
+            int child = 2 * c + 1;
+            if (child >= n) break;
+            if (child + 1 < n && d2[base + child + 1] > d2[base + child]) child++;
+            if (d2[base + child] <= distance) break;
+            move(c, child);
+            c = child;
+        }
+        indices[base + c] = index;
+        d2[base + c] = distance;
+    }
+
+    private void move(int to, int from) {
+        indices[base + to] = indices[base + from];
+        d2[base + to] = d2[base + from];
+    }
+
+    // Сортирует кучу по возрастанию и дополняет хвост
+    void finish() {
+        for (int n = count - 1; n > 0; n--) {
+            int index = indices[base + n];
+            double distance = d2[base + n];
+            move(n, 0);
+            siftDown(0, n, index, distance);
+        }
+        for (int n = count; n < k; n++) {
+            indices[base + n] = -1;
+            d2[base + n] = Double.POSITIVE_INFINITY;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package working_project.marching_cubes;
+
+import java.util.Arrays;
+
+/**
+ * Потокобезопасное отображение неотрицательных ключей long в значения float без упаковки.
+ * Ключи распределены по {@link #SEGMENTS} сегментам, каждый — таблица с открытой адресацией
+ * (линейное пробирование) из параллельных массивов long и float под собственной блокировкой.
+ * Пара занимает 12 байт в таблице, заполненной не более чем на {@link #MAX_LOAD}, вместо узла
+ * {@code ConcurrentHashMap} с упакованными Long и Float (около 80 байт).
+ */
+final class LongFloatMap {
+    private static final int SEGMENTS = 64;
+    private static final double MAX_LOAD = 0.6;
+    private static final long EMPTY = -1;
+
+    /**
+     * Вычисление значения отсутствующего ключа.
+     */
+    interface Loader {
+        float load(long key);
+    }
+
+    private static final class Segment {
+        long[] keys;
+        float[] values;
+        int size;
+
+        Segment(int capacity) {
+            keys = new long[capacity];
+            values = new float[capacity];
+            Arrays.fill(keys, EMPTY);
+        }
+
+        // Позиция ключа или пустой ячейки, где он должен лежать
+        int slot(long key, long hash) {
+            int mask = keys.length - 1;
+            int n = (int) hash & mask;
+            while (keys[n] != key && keys[n] != EMPTY) {
+                n = (n + 1) & mask;
+            }
+            return n;
+        }
+
+        void grow() {
+            long[] oldKeys = keys;
+            float[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new float[oldKeys.length * 2];
+            Arrays.fill(keys, EMPTY);
+            for (int n = 0; n < oldKeys.length; n++) {
+                if (oldKeys[n] != EMPTY) {
+                    int slot = slot(oldKeys[n], hash(oldKeys[n]));
+                    keys[slot] = oldKeys[n];
+                    values[slot] = oldValues[n];
+                }
+            }
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    LongFloatMap() {
+        for (int s = 0; s < SEGMENTS; s++) {
+            segments[s] = new Segment(64);
+        }
+    }
+
+    /**
+     * Значение ключа; если его нет, вычисляет его loader вне блокировки и сохраняет. Если два потока
+     * вычислили значение одного ключа одновременно, сохраняется первое, поэтому loader должен
+     * возвращать для ключа всегда одно и то же.
+     * @param key Неотрицательный ключ
+     */
+    float computeIfAbsent(long key, Loader loader) {
+        long hash = hash(key);
+        Segment segment = segments[(int) (hash >>> 58)];
+        synchronized (segment) {
+            int slot = segment.slot(key, hash);
+            if (segment.keys[slot] == key) {
+                return segment.values[slot];
+            }
+        }
+        float value = loader.load(key);
+        synchronized (segment) {
+            int slot = segment.slot(key, hash);
+            if (segment.keys[slot] == key) {
+                return segment.values[slot];
+            }
+            if (segment.size + 1 > segment.keys.length * MAX_LOAD) {
+                segment.grow();
+                slot = segment.slot(key, hash);
+            }
+            segment.keys[slot] = key;
+            segment.values[slot] = value;
+            segment.size++;
+            return value;
+        }
+    }
+
+    // Перемешивание Фибоначчи: старшие биты выбирают сегмент, младшие — ячейку в нём
+    private static long hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+}
@@ -0,0 +1,241 @@
+package working_project.marching_cubes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Скалярное поле, отображённое в память из файла. Значения не загружаются в кучу: плоскости читаются
+ * прямо из отображения, а страницы подгружает операционная система, поэтому поле может быть больше кучи.
+ * <p>
+ * Формат файла (little-endian): заголовок {@link #HEADER_BYTES} байт — сигнатура, версия, размеры сетки,
+ * mins, размер вокселя, отпечаток и число точек облака, отпечаток настроек построения поля; затем значения
+ * float в порядке {@link ScalarGrid} (x, y, z — z меняется быстрее всего).
+ * Файл больше 2 ГБ отображается несколькими частями по целым плоскостям.
+ */
+public final class MappedField implements ScalarField {
+    private static final int MAGIC = 0x444C4653; // "SFLD"
+    private static final int VERSION = 1;
+    static final int HEADER_BYTES = 80;
+    private static final long MAX_CHUNK_BYTES = Integer.MAX_VALUE & ~7L;
+
+    private final Path file;
+    private final int nx, ny, nz;
+    private final double[] mins;
+    private final double voxelSize;
+    private final long cloudFingerprint;
+    private final int pointCount;
+    private final long settings;
+    private final int planesPerChunk;
+    private final FloatBuffer[] chunks;
+
+    private MappedField(Path file, int nx, int ny, int nz, double[] mins, double voxelSize, long cloudFingerprint,
+                        int pointCount, long settings, int planesPerChunk, FloatBuffer[] chunks) {
+        this.file = file;
+        this.nx = nx;
+        this.ny = ny;
+        this.nz = nz;
+        this.mins = mins;
+        this.voxelSize = voxelSize;
+        this.cloudFingerprint = cloudFingerprint;
+        this.pointCount = pointCount;
+        this.settings = settings;
+        this.planesPerChunk = planesPerChunk;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Записывает поле в файл по плоскостям и отображает записанный файл. Запись идёт во временный файл,
+     * который затем переименовывается, поэтому прерванная запись не оставляет повреждённого поля.
+     * Если файловая система не поддерживает атомарное переименование, выполняется обычная замена;
+     * при любой ошибке временный файл удаляется.
+     * @param file Путь к файлу поля
+     * @param field Поле для сохранения
+     * @param cloudFingerprint Отпечаток облака, по которому построено поле
+     * @param pointCount Число точек облака
+     * @param settings Отпечаток настроек, от которых зависят значения поля
+     * @return Поле, отображённое из записанного файла
+     */
+    public static MappedField write(Path file, ScalarField field, long cloudFingerprint, int pointCount,
+                                    long settings) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            writeTo(tmp, field, cloudFingerprint, pointCount, settings);
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return open(file);
+    }
+
+    private static void writeTo(Path tmp, ScalarField field, long cloudFingerprint, int pointCount,
+                                long settings) throws IOException {
+        int nx = field.getNx();
+        int planeSize = field.getNy() * field.getNz();
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            double[] mins = field.getMins();
+            header.putInt(MAGIC).putInt(VERSION)
+                    .putInt(nx).putInt(field.getNy()).putInt(field.getNz())
+                    .putDouble(mins[0]).putDouble(mins[1]).putDouble(mins[2]).putDouble(field.getVoxelSize())
+                    .putLong(cloudFingerprint).putInt(pointCount).putLong(settings);
+            header.clear();
+            writeFully(channel, header);
+
+            float[] plane = new float[planeSize];
+            ByteBuffer bytes = ByteBuffer.allocateDirect(planeSize * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            FloatBuffer floats = bytes.asFloatBuffer();
+            for (int i = 0; i < nx; i++) {
+                field.readPlane(i, plane);
+                floats.clear();
+                floats.put(plane);
+                bytes.clear();
+                writeFully(channel, bytes);
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Отображает файл поля в память.
+     * @throws IOException Если файл не является полем этого формата или обрезан
+     */
+    public static MappedField open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    throw new IOException("Truncated scalar field header: " + file);
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a scalar field file: " + file);
+            }
+            int nx = header.getInt();
+            int ny = header.getInt();
+            int nz = header.getInt();
+            double[] mins = {header.getDouble(), header.getDouble(), header.getDouble()};
+            double voxelSize = header.getDouble();
+            long cloudFingerprint = header.getLong();
+            int pointCount = header.getInt();
+            long settings = header.getLong();
+            long planeBytes = (long) ny * nz * Float.BYTES;
+            if (nx <= 0 || ny <= 0 || nz <= 0 || planeBytes > MAX_CHUNK_BYTES
+                    || channel.size() != HEADER_BYTES + nx * planeBytes) {
+                throw new IOException("Corrupted scalar field file: " + file);
+            }
+
+            int planesPerChunk = (int) Math.min(nx, MAX_CHUNK_BYTES / planeBytes);
+            FloatBuffer[] chunks = new FloatBuffer[(nx + planesPerChunk - 1) / planesPerChunk];
+            for (int c = 0; c < chunks.length; c++) {
+                int planes = Math.min(planesPerChunk, nx - c * planesPerChunk);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_BYTES + c * planesPerChunk * planeBytes, planes * planeBytes);
+                chunks[c] = mapped.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+            // Отображение остаётся действительным и после закрытия канала
+            return new MappedField(file, nx, ny, nz, mins, voxelSize, cloudFingerprint, pointCount, settings,
+                    planesPerChunk, chunks);
+        }
+    }
+
+    @Override
+    public float get(int i, int j, int k) {
+        return chunks[i / planesPerChunk].get(((i % planesPerChunk) * ny + j) * nz + k);
+    }
+
+    @Override
+    public void readPlane(int i, float[] plane) {
+        // Абсолютное чтение не меняет позицию буфера, поэтому плоскости можно читать из разных потоков
+        chunks[i / planesPerChunk].get((i % planesPerChunk) * ny * nz, plane, 0, ny * nz);
+    }
+
+    public long getCloudFingerprint() {
+        return cloudFingerprint;
+    }
+
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    /**
+     * Отпечаток настроек, с которыми построено поле.
+     */
+    public long getSettings() {
+        return settings;
+    }
+
+    @Override
+    public int getNx() {
+        return nx;
+    }
+
+    @Override
+    public int getNy() {
+        return ny;
+    }
+
+    @Override
+    public int getNz() {
+        return nz;
+    }
+
+    @Override
+    public double[] getMins() {
+        return mins.clone();
+    }
+
+    @Override
+    public double getVoxelSize() {
+        return voxelSize;
+    }
+
+    /**
+     * Значения лежат вне кучи, но прочитанные страницы отображения занимают физическую память,
+     * поэтому учитывается полный размер значений.
+     */
+    @Override
+    public long estimateMemoryBytes() {
+        return (long) nx * ny * nz * Float.BYTES;
+    }
+
+    /**
+     * Файл, из которого отображено поле.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Размер файла поля в байтах.
+     */
+    public long getFileBytes() {
+        return fileBytes(this);
+    }
+
+    /**
+     * Размер файла, который займёт поле после {@link #write}.
+     */
+    public static long fileBytes(ScalarField field) {
+        return HEADER_BYTES + (long) field.getNx() * field.getNy() * field.getNz() * Float.BYTES;
+    }
+}
@@ -4,20 +4,23 @@ import working_project.rendering.Point3D;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Реализует алгоритм Marching Cubes для построения 3D-поверхности из облака точек
  */
 public class MarchingCubes {
+    // Число вокселей, по которым измеряется погрешность приближённого поля
+    private static final int APPROXIMATION_SAMPLES = 4096;
 
     // Таблицы для алгоритма Marching Cubes
 
     // Таблица определяет, какие рёбра куба пересекаются поверхностью для каждой из 256 конфигураций куба
-    private static final int[] edgeTable = new int[]{
+    static final int[] edgeTable = new int[]{
             0x0, 0x109, 0x203, 0x30a, 0x406, 0x50f, 0x605, 0x70c,
             0x80c, 0x905, 0xa0f, 0xb06, 0xc0a, 0xd03, 0xe09, 0xf00,
             0x190, 0x99, 0x393, 0x29a, 0x596, 0x49f, 0x795, 0x69c,
@@ -53,7 +56,7 @@ public class MarchingCubes {
     };
 
     // Таблица задаёт, какие рёбра формируют треугольники для каждой конфигурации куба
-    private static final int[][] triTable = new int[][]{
+    static final int[][] triTable = new int[][]{
             {-1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1},
             {0, 8, 3, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1},
             {0, 1, 9, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1},
@@ -312,7 +315,7 @@ public class MarchingCubes {
             {-1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1}
     };
 
-    private static final int[][] edgeToVertices = new int[][]{
+    static final int[][] edgeToVertices = new int[][]{
             {0, 1}, {1, 2}, {2, 3}, {3, 0}, // Рёбра нижней грани куба
             {4, 5}, {5, 6}, {6, 7}, {7, 4}, // Рёбра верхней грани куба
             {0, 4}, {1, 5}, {2, 6}, {3, 7}  // Рёбра, соединяющие грани
@@ -340,14 +343,107 @@ public class MarchingCubes {
     }
 
     /**
-     * Класс для представления 3D-меша с вершинами и треугольными гранями.
+     * Класс для представления 3D-меша с вершинами и треугольными гранями в примитивных массивах.
+     * Координаты вершин хранятся подряд (x, y, z), грани — тройками индексов вершин.
+     * Массивы растут по мере добавления; значимы первые 3 * count элементов.
+     * Меш может хранить нормали вершин (в том же порядке, что и координаты).
      */
-    public static class Mesh {
-        public List<double[]> vertices; // Список координат вершин
-        public List<int[]> faces;       // Список треугольных граней (индексы вершин)
-        Mesh() {
-            vertices = new ArrayList<>();
-            faces = new ArrayList<>();
+    public static class Mesh implements MeshSink {
+        private float[] vertices; // Координаты вершин
+        private float[] normals;  // Нормали вершин или null
+        private int vertexCount;
+        private int[] faces;      // Треугольные грани (индексы вершин)
+        private int faceCount;
+
+        public Mesh() {
+            this(1024, 2048);
+        }
+
+        Mesh(int vertexCapacity, int faceCapacity) {
+            this(vertexCapacity, faceCapacity, false);
+        }
+
+        Mesh(int vertexCapacity, int faceCapacity, boolean withNormals) {
+            vertices = new float[Math.max(1, vertexCapacity) * 3];
+            normals = withNormals ? new float[vertices.length] : null;
+            faces = new int[Math.max(1, faceCapacity) * 3];
+        }
+
+        /**
+         * Добавляет вершину и возвращает её индекс.
+         */
+        @Override
+        public int addVertex(float x, float y, float z) {
+            if (vertexCount * 3 + 3 > vertices.length) {
+                vertices = Arrays.copyOf(vertices, vertices.length * 2);
+                if (normals != null) {
+                    normals = Arrays.copyOf(normals, vertices.length);
+                }
+            }
+            int base = vertexCount * 3;
+            vertices[base] = x;
+            vertices[base + 1] = y;
+            vertices[base + 2] = z;
+            return vertexCount++;
+        }
+
+        /**
+         * Добавляет вершину с нормалью; если меш создан без нормалей, нормаль отбрасывается.
+         */
+        @Override
+        public int addVertex(float x, float y, float z, float nx, float ny, float nz) {
+            int index = addVertex(x, y, z);
+            if (normals != null) {
+                normals[index * 3] = nx;
+                normals[index * 3 + 1] = ny;
+                normals[index * 3 + 2] = nz;
+            }
+            return index;
+        }
+
+        @Override
+        public void addFace(int a, int b, int c) {
+            if (faceCount * 3 + 3 > faces.length) {
+                faces = Arrays.copyOf(faces, faces.length * 2);
+            }
+            int base = faceCount * 3;
+            faces[base] = a;
+            faces[base + 1] = b;
+            faces[base + 2] = c;
+            faceCount++;
+        }
+
+        public int getVertexCount() {
+            return vertexCount;
+        }
+
+        public int getFaceCount() {
+            return faceCount;
+        }
+
+        /**
+         * Массив координат вершин без копирования; значимы первые 3 * getVertexCount() элементов.
+         */
+        public float[] getVertices() {
+            return vertices;
+        }
+
+        /**
+         * Массив индексов граней без копирования; значимы первые 3 * getFaceCount() элементов.
+         */
+        public int[] getFaces() {
+            return faces;
+        }
+
+        public boolean hasNormals() {
+            return normals != null;
+        }
+
+        /**
+         * Массив нормалей вершин без копирования (null, если меш без нормалей).
+         */
+        public float[] getNormals() {
+            return normals;
         }
     }
 
@@ -358,81 +454,380 @@ public class MarchingCubes {
      * @param voxelSize Размер вокселя
      * @param mins Минимальные координаты облака
      * @param maxs Максимальные координаты облака
-     * @return трехмерный массив скалярных значений (расстояний)
+     * @return Сетка скалярных значений (расстояний)
+     */
+    public static ScalarGrid computeScalarField(double[][] points, double voxelSize, double[] mins, double[] maxs) {
+        return computeScalarField(points, voxelSize, mins, maxs, (ForkJoinPool) null);
+    }
+
+    /**
+     * Строит скалярное поле, распределяя слои сетки по X между потоками пула.
+     * Каждый воксель вычисляется независимо, поэтому результат побитово совпадает с последовательным.
+     * @param points Облако точек
+     * @param voxelSize Размер вокселя
+     * @param mins Минимальные координаты облака
+     * @param maxs Максимальные координаты облака
+     * @param pool Пул потоков; null — вычисление в текущем потоке
+     * @return Сетка скалярных значений (расстояний)
+     */
+    public static ScalarGrid computeScalarField(double[][] points, double voxelSize, double[] mins, double[] maxs, ForkJoinPool pool) {
+        return computeScalarField(points, voxelSize, mins, maxs, pool, 0.0);
+    }
+
+    /**
+     * Строит скалярное поле с приближённым поиском ближайших точек: каждое значение не больше
+     * точного расстояния, умноженного на (1 + epsilon). При epsilon > 0 измеряет фактическую погрешность
+     * на выборке вокселей и выводит её в лог.
+     * @param points Облако точек
+     * @param voxelSize Размер вокселя
+     * @param mins Минимальные координаты облака
+     * @param maxs Максимальные координаты облака
+     * @param pool Пул потоков; null — вычисление в текущем потоке
+     * @param epsilon Допустимая относительная погрешность расстояний (0 — точный поиск)
+     * @return Сетка скалярных значений (расстояний)
      */
-    public static double[][][] computeScalarField(double[][] points, double voxelSize, double[] mins, double[] maxs) {
+    public static ScalarGrid computeScalarField(double[][] points, double voxelSize, double[] mins, double[] maxs,
+                                                ForkJoinPool pool, double epsilon) {
         // Вычисляем размеры воксельной сетки
-        int nx = (int) Math.ceil((maxs[0] - mins[0]) / voxelSize);
-        int ny = (int) Math.ceil((maxs[1] - mins[1]) / voxelSize);
-        int nz = (int) Math.ceil((maxs[2] - mins[2]) / voxelSize);
-
-        // Создаём массивы для координат центров вокселей
-        double[][][] x = new double[nx][ny][nz];
-        double[][][] y = new double[nx][ny][nz];
-        double[][][] z = new double[nx][ny][nz];
-
-        // Массив для скалярного поля
-        double[][][] scalarField = new double[nx][ny][nz];
-
-        // Заполняем координаты центров вокселей
-        for (int i = 0; i < nx; i++) {
-            for (int j = 0; j < ny; j++) {
-                for (int k = 0; k < nz; k++) {
-                    x[i][j][k] = mins[0] + i * voxelSize;
-                    y[i][j][k] = mins[1] + j * voxelSize;
-                    z[i][j][k] = mins[2] + k * voxelSize;
-                }
+        int nx = gridSize(mins[0], maxs[0], voxelSize);
+        int ny = gridSize(mins[1], maxs[1], voxelSize);
+        int nz = gridSize(mins[2], maxs[2], voxelSize);
+        // Строим индекс для быстрого поиска ближайших точек (после построения используется только на чтение):
+        // равномерную сетку для облаков, заполняющих габариты, иначе KD-дерево
+        return computeScalarField(SpatialHashGrid.forPoints(points, pool), voxelSize, mins, nx, ny, nz, pool, epsilon);
+    }
+
+    /**
+     * Строит скалярное поле размера nx * ny * nz по готовому индексу точек (например, из {@link FieldCache}).
+     */
+    static ScalarGrid computeScalarField(SpatialIndex tree, double voxelSize, double[] mins, int nx, int ny, int nz,
+                                         ForkJoinPool pool, double epsilon) {
+        ScalarGrid grid = new ScalarGrid(nx, ny, nz, mins, voxelSize);
+        float[] values = grid.values();
+        int planeSize = ny * nz;
+
+        // Вычисляем расстояние до ближайшей точки для каждого вокселя
+        ParallelLoops.forRange(pool, 0, nx, ParallelLoops.grainFor(pool, nx), (from, to) -> {
+            for (int i = from; i < to; i++) {
+                computeDistancePlane(tree, voxelSize, mins, i, ny, nz, epsilon, values, i * planeSize);
             }
+        });
+
+        if (epsilon > 0) {
+            reportApproximationError(grid, tree, epsilon);
         }
+        return grid;
+    }
 
-        // Строим KD-дерево для быстрого поиска ближайших точек
-        KDTree tree = new KDTree(points);
-        // Вычисляем расстояние до ближайшей точки для каждого вокселя
-        for (int i = 0; i < nx; i++) {
-            for (int j = 0; j < ny; j++) {
-                for (int k = 0; k < nz; k++) {
-                    double[] query = new double[]{x[i][j][k], y[i][j][k], z[i][j][k]};
-                    scalarField[i][j][k] = tree.nearest(query).distance;
-                }
+    /**
+     * Строит квантованное поле размера nx * ny * nz по готовому индексу точек. Расстояния вычисляются
+     * по плоскостям и сразу кодируются, поэтому поле float целиком не создаётся.
+     */
+    static QuantizedGrid computeQuantizedField(SpatialIndex tree, double voxelSize, double[] mins, int nx, int ny, int nz,
+                                               ReconstructionOptions options) {
+        double epsilon = options.getNearestNeighborEpsilon();
+        QuantizedGrid grid = QuantizedGrid.build(nx, ny, nz, mins, voxelSize, options.getQuantizationRange(),
+                options.isQuantizePerBrick(), options.getPool(),
+                (i, plane) -> computeDistancePlane(tree, voxelSize, mins, i, ny, nz, epsilon, plane, 0));
+        if (epsilon > 0) {
+            reportApproximationError(grid, tree, epsilon);
+        }
+        return grid;
+    }
+
+    /**
+     * Записывает расстояния до ближайших точек в узлах плоскости x = i в out, начиная с offset
+     * (узел (j, k) — в out[offset + j * nz + k]).
+     */
+    private static void computeDistancePlane(SpatialIndex tree, double voxelSize, double[] mins, int i, int ny, int nz,
+                                             double epsilon, float[] out, int offset) {
+        double x = mins[0] + i * voxelSize;
+        for (int j = 0; j < ny; j++) {
+            double y = mins[1] + j * voxelSize;
+            int row = offset + j * nz;
+            for (int k = 0; k < nz; k++) {
+                double z = mins[2] + k * voxelSize;
+                double d2 = epsilon > 0
+                        ? tree.nearestDistanceSquared(x, y, z, epsilon)
+                        : tree.nearestDistanceSquared(x, y, z);
+                out[row + k] = (float) Math.sqrt(d2);
             }
         }
+    }
 
-        return scalarField;
+    /**
+     * Сравнивает приближённое поле с точными расстояниями в равномерной выборке вокселей.
+     */
+    private static void reportApproximationError(ScalarField grid, SpatialIndex tree, double epsilon) {
+        long total = (long) grid.getNx() * grid.getNy() * grid.getNz();
+        long step = Math.max(1, total / APPROXIMATION_SAMPLES);
+        double maxError = 0;
+        double sumError = 0;
+        int samples = 0;
+        int changed = 0;
+        int plane = grid.getNy() * grid.getNz();
+        double[] mins = grid.getMins();
+        double voxelSize = grid.getVoxelSize();
+        for (long n = step / 2; n < total; n += step) {
+            int i = (int) (n / plane);
+            int j = (int) (n % plane) / grid.getNz();
+            int k = (int) (n % grid.getNz());
+            float exact = (float) Math.sqrt(tree.nearestDistanceSquared(
+                    mins[0] + i * voxelSize, mins[1] + j * voxelSize, mins[2] + k * voxelSize));
+            float approximate = grid.get(i, j, k);
+            if (approximate != exact) changed++;
+            if (exact > 0) {
+                double error = (approximate - exact) / exact;
+                maxError = Math.max(maxError, error);
+                sumError += error;
+            }
+            samples++;
+        }
+        System.out.printf("Approximate nearest neighbours (epsilon %.3f): %d of %d sampled voxels differ, "
+                        + "max relative error %.4f%%, mean %.4f%%%n",
+                epsilon, changed, samples, maxError * 100, samples == 0 ? 0 : sumError / samples * 100);
+    }
+
+    /**
+     * Строит плотное скалярное поле способом, выбранным в настройках. Только для
+     * {@link GridStorage#DENSE}; поле с другим хранилищем строит
+     * {@link #computeField(double[][], double, double[], double[], ReconstructionOptions)}.
+     * @param points Облако точек
+     * @param voxelSize Размер вокселя
+     * @param mins Минимальные координаты облака
+     * @param maxs Максимальные координаты облака
+     * @param options Настройки (способ построения поля, ширина полосы, пул потоков)
+     * @return Сетка скалярных значений (расстояний)
+     * @throws IllegalArgumentException Если в настройках выбрано не плотное хранилище
+     */
+    public static ScalarGrid computeScalarField(double[][] points, double voxelSize, double[] mins, double[] maxs,
+                                                ReconstructionOptions options) {
+        if (options.getStorage() != GridStorage.DENSE) {
+            throw new IllegalArgumentException("Dense scalar grid requested with " + options.getStorage()
+                    + " storage; use computeField instead");
+        }
+        return computeDenseField(points, mins, voxelSize,
+                gridSize(mins[0], maxs[0], voxelSize),
+                gridSize(mins[1], maxs[1], voxelSize),
+                gridSize(mins[2], maxs[2], voxelSize),
+                options, null);
+    }
+
+    /**
+     * Строит скалярное поле с хранилищем и способом построения из настроек.
+     * @param points Облако точек
+     * @param voxelSize Размер вокселя
+     * @param mins Минимальные координаты облака
+     * @param maxs Максимальные координаты облака
+     * @param options Настройки реконструкции
+     * @return Скалярное поле
+     */
+    public static ScalarField computeField(double[][] points, double voxelSize, double[] mins, double[] maxs,
+                                           ReconstructionOptions options) {
+        return computeField(points, mins, maxs, voxelSize, options, null);
     }
 
     /**
      * Вычисляет уровень изоповерхности на основе процентиля скалярных значений.
-     * @param scalarField Скалярное поле
+     * @param field Скалярное поле
      * @param percentile Процентиль (0-100) для выбора уровня
      * @return Значение уровня изоповерхности
      */
-    public static double computeIsoLevel(double[][][] scalarField, double percentile) {
-        List<Double> distances = new ArrayList<>();
-        for (double[][] plane : scalarField) {
-            for (double[] row : plane) {
-                for (double val : row) {
-                    distances.add(val);
+    public static double computeIsoLevel(ScalarField field, double percentile) {
+        return computeIsoLevels(field, null, percentile)[0];
+    }
+
+    /**
+     * Вычисляет значения нескольких процентилей поля за одни и те же проходы по нему.
+     * Значения не сортируются целиком: нужный ранг находится уточнением гистограммы
+     * (см. {@link Percentiles}), результат совпадает с полной сортировкой.
+     * @param field Скалярное поле
+     * @param pool Пул потоков для проходов по полю (null — последовательно)
+     * @param percentiles Процентили (0-100)
+     * @return Значения процентилей в том же порядке
+     */
+    public static double[] computeIsoLevels(ScalarField field, ForkJoinPool pool, double... percentiles) {
+        return Percentiles.select(field, percentiles, pool);
+    }
+
+    /**
+     * Генерирует меш с помощью алгоритма Marching Cubes непосредственно по регулярной сетке.
+     * Координаты вершин куба берутся в индексах сетки и переводятся в мировые координаты один раз в конце.
+     * @param grid Скалярное поле
+     * @param isoLevel Уровень изоповерхности
+     * @return Сгенерированный меш
+     */
+    public static Mesh marchingCubesCustomOptimized(ScalarField grid, double isoLevel) {
+        return marchingCubesCustomOptimized(grid, isoLevel, null);
+    }
+
+    /**
+     * Генерирует меш с помощью Marching Cubes, распределяя слои кубов по X между потоками пула.
+     * Каждый поток обрабатывает свой слэб собственным {@link CubeKernel} со своей таблицей вершин. Вершины на левой границе слэба
+     * создаёт предыдущий слэб, а текущий лишь ссылается на них; при детерминированном слиянии ссылки
+     * разрешаются через таблицу соседа. Поэтому меш получается без швов и совпадает с последовательным.
+     * Плотная сетка ({@link ScalarGrid}) читается без копирования, остальные хранилища — плоскостями
+     * через {@link ScalarField#readPlane}, так что на поток приходится лишь два буфера плоскости.
+     * Блоки кубов, не пересекающие уровень изоповерхности, пропускаются по пирамиде минимумов и максимумов
+     * ({@link BrickPyramid}), которая строится здесь же за один проход по полю.
+     * @param grid Скалярное поле
+     * @param isoLevel Уровень изоповерхности
+     * @param pool Пул потоков; null — один слэб в текущем потоке
+     * @return Сгенерированный меш
+     */
+    public static Mesh marchingCubesCustomOptimized(ScalarField grid, double isoLevel, ForkJoinPool pool) {
+        return marchingCubesCustomOptimized(grid, isoLevel, pool, false);
+    }
+
+    /**
+     * То же, но с нормалями вершин по градиенту поля (см. {@link CubeKernel}), если vertexNormals = true.
+     * Нормали вычисляются при интерполяции вершин, поэтому отдельный проход по мешу для них не нужен.
+     */
+    public static Mesh marchingCubesCustomOptimized(ScalarField grid, double isoLevel, ForkJoinPool pool, boolean vertexNormals) {
+        return marchingCubesCustomOptimized(grid, BrickPyramid.build(grid, pool), isoLevel, pool, vertexNormals);
+    }
+
+    /**
+     * Вариант с готовой пирамидой поля (например, сохранённой в {@link FieldCache} вместе с полем):
+     * при повторном извлечении с другим уровнем перебираются только активные блоки.
+     */
+    static Mesh marchingCubesCustomOptimized(ScalarField grid, BrickPyramid pyramid, double isoLevel, ForkJoinPool pool,
+                                             boolean vertexNormals) {
+        int nx = grid.getNx();
+        int cubeLayers = nx - 1;
+        double voxelSize = grid.getVoxelSize();
+        double[] mins = grid.getMins();
+
+        // Активные блоки и слои блоков по X, в которых есть хотя бы один активный блок
+        boolean[] activeBricks = pyramid.activeBricks(isoLevel);
+        int brickLayerSize = pyramid.getBrickCountY() * pyramid.getBrickCountZ();
+        boolean[] activeLayers = new boolean[pyramid.getBrickCountX()];
+        int activeCount = 0;
+        for (int b = 0; b < activeBricks.length; b++) {
+            if (activeBricks[b]) {
+                activeLayers[b / brickLayerSize] = true;
+                activeCount++;
+            }
+        }
+
+        // Границы слэбов по слоям кубов: слэб s обрабатывает слои [bounds[s], bounds[s + 1])
+        int slabCount = pool == null ? 1 : Math.max(1, Math.min(cubeLayers, pool.getParallelism() * 4));
+        int[] bounds = new int[slabCount + 1];
+        for (int s = 0; s <= slabCount; s++) {
+            bounds[s] = (int) ((long) cubeLayers * s / slabCount);
+        }
+
+        int ny = grid.getNy();
+        int nz = grid.getNz();
+        int planeSize = ny * nz;
+        CubeKernel[] slabs = new CubeKernel[slabCount];
+        Mesh[] locals = new Mesh[slabCount];
+        ParallelLoops.forRange(pool, 0, slabCount, 1, (from, to) -> {
+            for (int s = from; s < to; s++) {
+                locals[s] = new Mesh(1024, 2048, vertexNormals);
+                CubeKernel kernel = new CubeKernel(ny, nz, mins, voxelSize, isoLevel, locals[s], vertexNormals);
+                float[] values = grid instanceof ScalarGrid ? ((ScalarGrid) grid).values() : null;
+                // Для нормалей нужны ещё плоскости i - 1 и i + 2
+                PlaneWindow window = values == null ? new PlaneWindow(grid, vertexNormals ? 4 : 2) : null;
+                for (int i = bounds[s]; i < bounds[s + 1]; i++) {
+                    int brickLayer = i >> BrickPyramid.BRICK_SHIFT;
+                    if (!activeLayers[brickLayer]) {
+                        kernel.skipLayer();
+                        continue;
+                    }
+                    boolean seamLeft = s > 0 && i == bounds[s];
+                    int activeOffset = brickLayer * brickLayerSize;
+                    if (values != null) {
+                        if (vertexNormals) {
+                            kernel.setOuterPlanes(i > 0 ? values : null, (i - 1) * planeSize,
+                                    i + 2 < nx ? values : null, (i + 2) * planeSize);
+                        }
+                        kernel.processLayer(i, values, i * planeSize, values, (i + 1) * planeSize, seamLeft,
+                                activeBricks, activeOffset);
+                    } else {
+                        if (vertexNormals) {
+                            kernel.setOuterPlanes(i > 0 ? window.get(i - 1) : null, 0,
+                                    i + 2 < nx ? window.get(i + 2) : null, 0);
+                        }
+                        kernel.processLayer(i, window.get(i), 0, window.get(i + 1), 0, seamLeft,
+                                activeBricks, activeOffset);
+                    }
                 }
+                slabs[s] = kernel;
             }
+        });
+
+        // Слияние: вершины слэбов идут подряд, ссылки на левую границу берутся из предыдущего слэба
+        int totalVertices = 0;
+        int totalFaces = 0;
+        for (Mesh local : locals) {
+            totalVertices += local.getVertexCount();
+            totalFaces += local.getFaceCount();
         }
-        Collections.sort(distances);
-        // Вычисляем индекс для заданного процентиля
-        int index = (int) Math.round(percentile / 100.0 * (distances.size() - 1));
-        return distances.get(index);
+        Mesh mesh = new Mesh(totalVertices, totalFaces, vertexNormals);
+        int offset = 0;
+        int previousOffset = 0;
+        for (int s = 0; s < slabCount; s++) {
+            CubeKernel slab = slabs[s];
+            int[] seamIndices = new int[slab.getSeamEdgeCount()];
+            for (int r = 0; r < seamIndices.length; r++) {
+                int shared = slabs[s - 1].getBoundaryVertex(slab.getSeamEdge(r));
+                if (shared < 0) {
+                    throw new IllegalStateException("Unresolved seam vertex between slabs " + (s - 1) + " and " + s);
+                }
+                seamIndices[r] = shared + previousOffset;
+            }
+            Mesh local = locals[s];
+            float[] localVertices = local.getVertices();
+            float[] localNormals = local.getNormals();
+            for (int v = 0; v < local.getVertexCount(); v++) {
+                if (localNormals != null) {
+                    mesh.addVertex(localVertices[v * 3], localVertices[v * 3 + 1], localVertices[v * 3 + 2],
+                            localNormals[v * 3], localNormals[v * 3 + 1], localNormals[v * 3 + 2]);
+                } else {
+                    mesh.addVertex(localVertices[v * 3], localVertices[v * 3 + 1], localVertices[v * 3 + 2]);
+                }
+            }
+            int[] localFaces = local.getFaces();
+            for (int f = 0; f < local.getFaceCount() * 3; f += 3) {
+                int a = localFaces[f], b = localFaces[f + 1], c = localFaces[f + 2];
+                mesh.addFace(
+                        a >= 0 ? a + offset : seamIndices[-a - 1],
+                        b >= 0 ? b + offset : seamIndices[-b - 1],
+                        c >= 0 ? c + offset : seamIndices[-c - 1]);
+            }
+            previousOffset = offset;
+            offset += local.getVertexCount();
+        }
+
+        System.out.println("Generated " + mesh.getVertexCount() + " vertices and " + mesh.getFaceCount() + " faces"
+                + " (" + activeCount + " of " + activeBricks.length + " bricks active)");
+        return mesh;
+    }
+
+    /**
+     * Прежняя сигнатура варианта для нерегулярных сеток. Раньше вершины, уже интерполированные
+     * в мировых координатах x/y/z, дополнительно масштабировались (vert * voxelSize + mins);
+     * теперь voxelSize и mins не используются, вершины выдаются в координатах x/y/z.
+     * @deprecated Используйте {@link #marchingCubesCustomOptimized(double[][][], double, double[][][], double[][][], double[][][])}
+     */
+    @Deprecated
+    public static Mesh marchingCubesCustomOptimized(double[][][] scalarField, double isoLevel, double[][][] x, double[][][] y, double[][][] z, double voxelSize, double[] mins) {
+        return marchingCubesCustomOptimized(scalarField, isoLevel, x, y, z);
     }
 
     /**
      * Генерирует меш с помощью алгоритма Marching Cubes, убирая дубли вершин.
+     * Вариант для произвольных (нерегулярных) сеток с явно заданными координатами узлов.
+     * Вершины интерполируются между координатами узлов, поэтому выдаются в той же (мировой) системе.
      * @param scalarField Скалярное поле
      * @param isoLevel Уровень изоповерхности
-     * @param x X-координаты центров вокселей
+     * @param x X-координаты узлов в мировой системе
      * @param y Y-координаты
      * @param z Z-координаты
-     * @param voxelSize Размер вокселя
-     * @param mins Минимальные координаты для масштабирования
      * @return Сгенерированный меш
      */
-    public static Mesh marchingCubesCustomOptimized(double[][][] scalarField, double isoLevel, double[][][] x, double[][][] y, double[][][] z, double voxelSize, double[] mins) {
+    public static Mesh marchingCubesCustomOptimized(double[][][] scalarField, double isoLevel, double[][][] x, double[][][] y, double[][][] z) {
         int nx = scalarField.length;
         int ny = scalarField[0].length;
         int nz = scalarField[0][0].length;
@@ -489,11 +884,10 @@ public class MarchingCubes {
                             double[] p2 = cubeVerts[v2Idx];
                             EdgeKey edgeKey = new EdgeKey(p1, p2);
 
-                            // Если вершина для ребра ещё не создана
+                            // Если вершина для ребра ещё не создана; координаты узлов уже мировые
                             if (!vertexMap.containsKey(edgeKey)) {
                                 double[] vert = interpolateVertex(p1, p2, cubeVals[v1Idx], cubeVals[v2Idx], isoLevel);
-                                mesh.vertices.add(vert);
-                                vertexMap.put(edgeKey, mesh.vertices.size() - 1);
+                                vertexMap.put(edgeKey, mesh.addVertex((float) vert[0], (float) vert[1], (float) vert[2]));
                             }
                             vertList[edge] = vertexMap.get(edgeKey);
                         }
@@ -511,7 +905,7 @@ public class MarchingCubes {
                             }
                             // Если грань — треугольник, добавляем в меш
                             if (face.size() == 3) {
-                                mesh.faces.add(new int[]{face.get(0), face.get(1), face.get(2)});
+                                mesh.addFace(face.get(0), face.get(1), face.get(2));
                             }
                         }
                     }
@@ -519,17 +913,7 @@ public class MarchingCubes {
             }
         }
 
-        // Масштабируем вершины в мировые координаты
-        for (int i = 0; i < mesh.vertices.size(); i++) {
-            double[] vert = mesh.vertices.get(i);
-            mesh.vertices.set(i, new double[]{
-                    vert[0] * voxelSize + mins[0],
-                    vert[1] * voxelSize + mins[1],
-                    vert[2] * voxelSize + mins[2]
-            });
-        }
-
-        System.out.println("Generated " + mesh.vertices.size() + " vertices and " + mesh.faces.size() + " faces");
+        System.out.println("Generated " + mesh.getVertexCount() + " vertices and " + mesh.getFaceCount() + " faces");
         return mesh;
     }
 
@@ -543,11 +927,150 @@ public class MarchingCubes {
      */
 
     public static Mesh processPointCloud(List<Point3D> points, double voxelSize, double isoLevelPercentile) {
+        return processPointCloud(points, voxelSize, isoLevelPercentile, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Обрабатывает точки, генерируя меш с помощью Marching Cubes; поле и меш строятся в пуле pool.
+     * @param voxelSize Размер вокселя
+     * @param isoLevelPercentile Процентиль для уровня изоповерхности
+     * @param pool Пул потоков; null — вычисление в текущем потоке
+     * @return Сгенерированный меш
+     */
+    public static Mesh processPointCloud(List<Point3D> points, double voxelSize, double isoLevelPercentile, ForkJoinPool pool) {
+        return processPointCloud(points, voxelSize, isoLevelPercentile, new ReconstructionOptions().pool(pool));
+    }
+
+    /**
+     * Обрабатывает точки, генерируя меш с помощью Marching Cubes с заданными настройками.
+     * @param voxelSize Размер вокселя
+     * @param isoLevelPercentile Процентиль для уровня изоповерхности
+     * @param options Настройки реконструкции
+     * @return Сгенерированный меш
+     */
+    public static Mesh processPointCloud(List<Point3D> points, double voxelSize, double isoLevelPercentile, ReconstructionOptions options) {
+        if (options.getSurfaceEngine() == SurfaceEngine.ADAPTIVE) {
+            return AdaptiveReconstruction.reconstruct(points, voxelSize, isoLevelPercentile, options);
+        }
+        ForkJoinPool pool = options.getPool();
+
+        // Вычисляем скалярное поле или берём готовое из кеша вместе с его пирамидой
+        ScalarField grid;
+        BrickPyramid pyramid;
+        if (options.getFieldCache() != null) {
+            FieldCache.CachedField cached = options.getFieldCache().getCachedField(points, voxelSize, options);
+            grid = cached.field;
+            pyramid = cached.pyramid;
+        } else {
+            double[] mins = new double[3];
+            double[] maxs = new double[3];
+            double[][] pointArray = toPointArray(points, mins, maxs);
+            grid = computeField(pointArray, mins, maxs, voxelSize, options, null);
+            pyramid = BrickPyramid.build(grid, pool);
+        }
+        double isoLevel = computeIsoLevels(grid, pool, isoLevelPercentile)[0];
+
+        return extractSurface(grid, pyramid, isoLevel, options);
+    }
+
+    /**
+     * Извлекает поверхность уровня isoLevel способом {@link ReconstructionOptions#getSurfaceEngine()}.
+     * {@link SurfaceEngine#ADAPTIVE} строит поверхность по облаку, а не по готовому полю, и здесь не поддерживается.
+     * Surface Nets при уровне меньше вокселя даёт неманифолдный меш (см. {@link SurfaceNets}), поэтому
+     * в этом случае поверхность извлекается Marching Cubes.
+     */
+    static Mesh extractSurface(ScalarField grid, BrickPyramid pyramid, double isoLevel, ReconstructionOptions options) {
+        if (options.getSurfaceEngine() == SurfaceEngine.ADAPTIVE) {
+            throw new IllegalArgumentException("Adaptive reconstruction works on the point cloud, not on a computed field");
+        }
+        if (options.getSurfaceEngine() == SurfaceEngine.SURFACE_NETS) {
+            if (isoLevel >= grid.getVoxelSize()) {
+                return SurfaceNets.extract(grid, pyramid, isoLevel, options.getPool(), options.isVertexNormals());
+            }
+            System.out.printf("Iso level %.5f is below the voxel size %.5f: using marching cubes instead of surface nets%n",
+                    isoLevel, grid.getVoxelSize());
+        }
+        return marchingCubesCustomOptimized(grid, pyramid, isoLevel, options.getPool(), options.isVertexNormals());
+    }
+
+    /**
+     * Строит скалярное поле облака с заданными настройками (хранилище, способ построения).
+     * @param pointArray Координаты точек
+     * @param mins Минимальные координаты облака
+     * @param maxs Максимальные координаты облака
+     * @param voxelSize Размер вокселя
+     * @param options Настройки реконструкции
+     * @param index Готовый индекс точек для {@link FieldEngine#KD_TREE} или null, чтобы построить его
+     * @return Скалярное поле
+     */
+    static ScalarField computeField(double[][] pointArray, double[] mins, double[] maxs, double voxelSize,
+                                    ReconstructionOptions options, SpatialIndex index) {
+        return computeField(pointArray, mins, voxelSize,
+                gridSize(mins[0], maxs[0], voxelSize),
+                gridSize(mins[1], maxs[1], voxelSize),
+                gridSize(mins[2], maxs[2], voxelSize),
+                options, index);
+    }
+
+    /**
+     * Строит скалярное поле размера nx * ny * nz с началом в mins (например, прореженную копию
+     * основной сетки с шагом, кратным voxelSize).
+     */
+    static ScalarField computeField(double[][] pointArray, double[] mins, double voxelSize, int nx, int ny, int nz,
+                                    ReconstructionOptions options, SpatialIndex index) {
+        ForkJoinPool pool = options.getPool();
+        if (options.getStorage() == GridStorage.SPARSE) {
+            SparseGrid sparse = NarrowBandField.computeSparse(pointArray, voxelSize, mins, nx, ny, nz,
+                    options.getNarrowBandWidth(), pool);
+            System.out.println("Sparse grid: " + sparse.getLeafCount() + " bricks, ~"
+                    + sparse.estimateMemoryBytes() / (1024 * 1024) + " MB");
+            return sparse;
+        }
+        if (options.getStorage() == GridStorage.QUANTIZED) {
+            QuantizedGrid quantized;
+            if (options.getFieldEngine() == FieldEngine.KD_TREE) {
+                SpatialIndex tree = index != null ? index : SpatialHashGrid.forPoints(pointArray, pool);
+                quantized = computeQuantizedField(tree, voxelSize, mins, nx, ny, nz, options);
+            } else {
+                // Остальные способы строят поле целиком, поэтому квантуем готовую сетку
+                quantized = QuantizedGrid.quantize(computeDenseField(pointArray, mins, voxelSize, nx, ny, nz, options, null),
+                        options.getQuantizationRange(), options.isQuantizePerBrick(), pool);
+            }
+            System.out.printf("Quantized grid: ~%d MB, max error %.6f%n",
+                    quantized.estimateMemoryBytes() / (1024 * 1024), quantized.getMaxError());
+            return quantized;
+        }
+        return computeDenseField(pointArray, mins, voxelSize, nx, ny, nz, options, index);
+    }
+
+    private static ScalarGrid computeDenseField(double[][] pointArray, double[] mins, double voxelSize, int nx, int ny, int nz,
+                                                ReconstructionOptions options, SpatialIndex index) {
+        ForkJoinPool pool = options.getPool();
+        switch (options.getFieldEngine()) {
+            case DISTANCE_TRANSFORM:
+                return DistanceTransform.compute(pointArray, voxelSize, mins, nx, ny, nz, pool);
+            case NARROW_BAND:
+                return NarrowBandField.compute(pointArray, voxelSize, mins, nx, ny, nz, options.getNarrowBandWidth(), pool);
+            case KD_TREE:
+            default:
+                SpatialIndex tree = index != null ? index : SpatialHashGrid.forPoints(pointArray, pool);
+                return computeScalarField(tree, voxelSize, mins, nx, ny, nz, pool, options.getNearestNeighborEpsilon());
+        }
+    }
+
+    /**
+     * Переводит облако точек в массив координат и находит его границы.
+     * @param points Облако точек
+     * @param mins Заполняется минимальными координатами облака
+     * @param maxs Заполняется максимальными координатами облака
+     * @return Массив координат точек
+     */
+    static double[][] toPointArray(List<Point3D> points, double[] mins, double[] maxs) {
         double[][] pointArray = new double[points.size()][3];
 
         // Находим границы облака точек
-        double[] mins = new double[]{Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
-        double[] maxs = new double[]{Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        mins[0] = mins[1] = mins[2] = Double.POSITIVE_INFINITY;
+        maxs[0] = maxs[1] = maxs[2] = Double.NEGATIVE_INFINITY;
 
         for (int i = 0; i < points.size(); i++) {
             Point3D p = points.get(i);
@@ -561,30 +1084,13 @@ public class MarchingCubes {
             maxs[1] = Math.max(maxs[1], pointArray[i][1]);
             maxs[2] = Math.max(maxs[2], pointArray[i][2]);
         }
+        return pointArray;
+    }
 
-        // Вычисляем скалярное поле
-        double[][][] scalarField = computeScalarField(pointArray, voxelSize, mins, maxs);
-        double isoLevel = computeIsoLevel(scalarField, isoLevelPercentile);
-        int nx = scalarField.length, ny = scalarField[0].length, nz = scalarField[0][0].length;
-
-        // Создаём массивы координат вокселей
-        double[][][] x = new double[nx][ny][nz];
-        double[][][] y = new double[nx][ny][nz];
-        double[][][] z = new double[nx][ny][nz];
-        for (int i = 0; i < nx; i++) {
-            for (int j = 0; j < ny; j++) {
-                for (int k = 0; k < nz; k++) {
-                    x[i][j][k] = mins[0] + i * voxelSize;
-                    y[i][j][k] = mins[1] + j * voxelSize;
-                    z[i][j][k] = mins[2] + k * voxelSize;
-                }
-            }
-        }
-
-        return marchingCubesCustomOptimized(scalarField, isoLevel, x, y, z, voxelSize, mins);
+    /**
+     * Число узлов воксельной сетки вдоль одной оси.
+     */
+    static int gridSize(double min, double max, double voxelSize) {
+        return (int) Math.ceil((max - min) / voxelSize);
     }
 }
-
-
-
-
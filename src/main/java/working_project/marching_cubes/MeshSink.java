@@ -0,0 +1,34 @@
+package working_project.marching_cubes;
+
+/**
+ * Приёмник вершин и треугольников, которые выдаёт Marching Cubes.
+ * Позволяет собирать меш в памяти ({@link MarchingCubes.Mesh}) или сразу писать его в файл.
+ */
+public interface MeshSink {
+
+    /**
+     * Добавляет вершину в мировых координатах.
+     * @return Индекс вершины, по которому на неё будут ссылаться грани
+     */
+    int addVertex(float x, float y, float z);
+
+    /**
+     * Добавляет вершину с единичной нормалью. Приёмники, которым нормали не нужны, их отбрасывают.
+     * @return Индекс вершины
+     */
+    default int addVertex(float x, float y, float z, float nx, float ny, float nz) {
+        return addVertex(x, y, z);
+    }
+
+    /**
+     * Добавляет треугольную грань по индексам ранее добавленных вершин.
+     */
+    void addFace(int a, int b, int c);
+
+    /**
+     * Marching Cubes закончил очередной слой кубов: дальнейшие грани ссылаются только на вершины,
+     * добавленные после предыдущего вызова. Потоковые приёмники могут забыть более старые вершины.
+     */
+    default void layerFinished() {
+    }
+}
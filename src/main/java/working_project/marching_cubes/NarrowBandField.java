@@ -0,0 +1,125 @@
+package working_project.marching_cubes;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Поле расстояний в узкой полосе вокруг облака точек.
+ * Каждая точка обновляет только узлы в радиусе bandWidth вокселей, поэтому стоимость пропорциональна
+ * числу точек, умноженному на объём полосы, а не объёму всей сетки. Узлы вне полосы получают
+ * значение ширины полосы. Точки распределяются между потоками, а минимум в общем массиве
+ * обновляется атомарно (CAS), поэтому результат не зависит от порядка обработки.
+ * <p>
+ * Внутри полосы расстояния точные; уровень изоповерхности должен быть меньше ширины полосы,
+ * иначе процентиль попадёт на плато обрезанных значений.
+ */
+final class NarrowBandField {
+    private static final VarHandle FLOATS = MethodHandles.arrayElementVarHandle(float[].class);
+
+    private NarrowBandField() {
+    }
+
+    /**
+     * Строит поле расстояний в полосе ширины bandWidth вокселей вокруг точек.
+     */
+    static ScalarGrid compute(double[][] points, double voxelSize, double[] mins, int nx, int ny, int nz,
+                              double bandWidth, ForkJoinPool pool) {
+        ScalarGrid grid = new ScalarGrid(nx, ny, nz, mins, voxelSize);
+        float[] values = grid.values();
+        double band = bandWidth * voxelSize;
+        double bandSquared = band * band;
+        Arrays.fill(values, (float) band);
+
+        ParallelLoops.forRange(pool, 0, points.length, Math.max(1024, ParallelLoops.grainFor(pool, points.length)), (from, to) -> {
+            for (int n = from; n < to; n++) {
+                double[] p = points[n];
+                int iMin = Math.max(0, (int) Math.ceil((p[0] - band - mins[0]) / voxelSize));
+                int iMax = Math.min(nx - 1, (int) Math.floor((p[0] + band - mins[0]) / voxelSize));
+                int jMin = Math.max(0, (int) Math.ceil((p[1] - band - mins[1]) / voxelSize));
+                int jMax = Math.min(ny - 1, (int) Math.floor((p[1] + band - mins[1]) / voxelSize));
+                int kMin = Math.max(0, (int) Math.ceil((p[2] - band - mins[2]) / voxelSize));
+                int kMax = Math.min(nz - 1, (int) Math.floor((p[2] + band - mins[2]) / voxelSize));
+                for (int i = iMin; i <= iMax; i++) {
+                    double dx = grid.x(i) - p[0];
+                    double dx2 = dx * dx;
+                    for (int j = jMin; j <= jMax; j++) {
+                        double dy = grid.y(j) - p[1];
+                        double dxy2 = dx2 + dy * dy;
+                        if (dxy2 >= bandSquared) continue;
+                        int row = grid.index(i, j, 0);
+                        for (int k = kMin; k <= kMax; k++) {
+                            double dz = grid.z(k) - p[2];
+                            double d2 = dxy2 + dz * dz;
+                            if (d2 < bandSquared) {
+                                atomicMin(values, row + k, (float) Math.sqrt(d2));
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        return grid;
+    }
+
+    /**
+     * Строит то же поле в разреженной сетке: создаются только блоки, которых касается полоса
+     * хотя бы одной точки, остальные узлы равны ширине полосы (фону сетки).
+     */
+    static SparseGrid computeSparse(double[][] points, double voxelSize, double[] mins, int nx, int ny, int nz,
+                                    double bandWidth, ForkJoinPool pool) {
+        double band = bandWidth * voxelSize;
+        double bandSquared = band * band;
+        SparseGrid grid = new SparseGrid(nx, ny, nz, mins, voxelSize, (float) band);
+
+        ParallelLoops.forRange(pool, 0, points.length, Math.max(1024, ParallelLoops.grainFor(pool, points.length)), (from, to) -> {
+            for (int n = from; n < to; n++) {
+                double[] p = points[n];
+                int iMin = Math.max(0, (int) Math.ceil((p[0] - band - mins[0]) / voxelSize));
+                int iMax = Math.min(nx - 1, (int) Math.floor((p[0] + band - mins[0]) / voxelSize));
+                int jMin = Math.max(0, (int) Math.ceil((p[1] - band - mins[1]) / voxelSize));
+                int jMax = Math.min(ny - 1, (int) Math.floor((p[1] + band - mins[1]) / voxelSize));
+                int kMin = Math.max(0, (int) Math.ceil((p[2] - band - mins[2]) / voxelSize));
+                int kMax = Math.min(nz - 1, (int) Math.floor((p[2] + band - mins[2]) / voxelSize));
+                for (int i = iMin; i <= iMax; i++) {
+                    double dx = mins[0] + i * voxelSize - p[0];
+                    double dx2 = dx * dx;
+                    for (int j = jMin; j <= jMax; j++) {
+                        double dy = mins[1] + j * voxelSize - p[1];
+                        double dxy2 = dx2 + dy * dy;
+                        if (dxy2 >= bandSquared) continue;
+                        float[] leaf = null;
+                        for (int k = kMin; k <= kMax; k++) {
+                            double dz = mins[2] + k * voxelSize - p[2];
+                            double d2 = dxy2 + dz * dz;
+                            if (d2 < bandSquared) {
+                                // Блок ищем заново только при переходе через его границу по Z
+                                if (leaf == null || (k & SparseGrid.LEAF_MASK) == 0) {
+                                    leaf = grid.touchLeaf(i, j, k);
+                                }
+                                atomicMin(leaf, SparseGrid.voxelSlot(i, j, k), (float) Math.sqrt(d2));
+                            } else {
+                                leaf = null;
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        return grid;
+    }
+
+    /**
+     * Атомарно записывает value в values[index], если оно меньше текущего значения.
+     */
+    static void atomicMin(float[] values, int index, float value) {
+        float current = (float) FLOATS.getVolatile(values, index);
+        while (value < current) {
+            if (FLOATS.weakCompareAndSet(values, index, current, value)) {
+                return;
+            }
+            current = (float) FLOATS.getVolatile(values, index);
+        }
+    }
+}
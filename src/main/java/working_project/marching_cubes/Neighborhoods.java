@@ -0,0 +1,24 @@
+package working_project.marching_cubes;
+
+/**
+ * Результат пакетного поиска по радиусу в формате CSR: соседи запроса q лежат в позициях
+ * [offsets[q], offsets[q + 1]) массивов indices и distancesSquared (без упорядочивания по расстоянию).
+ */
+public final class Neighborhoods {
+    public final int[] offsets;
+    public final int[] indices;
+    public final double[] distancesSquared;
+
+    Neighborhoods(int[] offsets, int[] indices, double[] distancesSquared) {
+        this.offsets = offsets;
+        this.indices = indices;
+        this.distancesSquared = distancesSquared;
+    }
+
+    /**
+     * Число соседей запроса q.
+     */
+    public int count(int q) {
+        return offsets[q + 1] - offsets[q];
+    }
+}
@@ -0,0 +1,57 @@
+package working_project.marching_cubes;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+
+/**
+ * Приёмник меша, который сразу пишет вершины и грани в OBJ-файл, не храня их в памяти.
+ * Формат OBJ допускает чередование строк v и f, поэтому грань можно записать сразу после её вершин.
+ */
+public class ObjMeshWriter implements MeshSink, Closeable {
+    private final BufferedWriter out;
+    private int vertexCount;
+    private int faceCount;
+
+    public ObjMeshWriter(File file) throws IOException {
+        out = new BufferedWriter(new FileWriter(file), 1 << 16);
+    }
+
+    @Override
+    public int addVertex(float x, float y, float z) {
+        try {
+            out.write(String.format(Locale.US, "v %.6f %.6f %.6f\n", x, y, z));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return vertexCount++;
+    }
+
+    @Override
+    public void addFace(int a, int b, int c) {
+        try {
+            // Индексы вершин в OBJ начинаются с 1
+            out.write("f " + (a + 1) + " " + (b + 1) + " " + (c + 1) + "\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        faceCount++;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getFaceCount() {
+        return faceCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
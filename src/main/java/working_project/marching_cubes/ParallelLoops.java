@@ -0,0 +1,67 @@
+package working_project.marching_cubes;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Вспомогательные параллельные циклы по диапазону индексов на ForkJoinPool.
+ * Диапазон рекурсивно делится пополам до блоков не больше grain элементов.
+ */
+final class ParallelLoops {
+
+    /**
+     * Тело цикла, обрабатывающее полуинтервал индексов [from, to).
+     */
+    interface RangeBody {
+        void run(int from, int to);
+    }
+
+    private ParallelLoops() {
+    }
+
+    /**
+     * Выполняет body над [from, to) в пуле pool. Если pool равен null или диапазон
+     * не больше grain, выполняет всё в текущем потоке.
+     */
+    static void forRange(ForkJoinPool pool, int from, int to, int grain, RangeBody body) {
+        if (to <= from) return;
+        int g = Math.max(1, grain);
+        if (pool == null || to - from <= g) {
+            body.run(from, to);
+            return;
+        }
+        pool.invoke(new RangeTask(from, to, g, body));
+    }
+
+    /**
+     * Подбирает размер блока так, чтобы на каждый поток пула приходилось несколько задач.
+     */
+    static int grainFor(ForkJoinPool pool, int size) {
+        int parallelism = pool == null ? 1 : pool.getParallelism();
+        return Math.max(1, size / (parallelism * 4));
+    }
+
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to, grain;
+        private final RangeBody body;
+
+        RangeTask(int from, int to, int grain, RangeBody body) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                body.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeTask(from, mid, grain, body), new RangeTask(mid, to, grain, body));
+        }
+    }
+}
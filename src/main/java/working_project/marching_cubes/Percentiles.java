@@ -0,0 +1,349 @@
+package working_project.marching_cubes;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Точный выбор процентилей скалярного поля без сортировки и упаковки значений.
+ * Используется уточнение гистограммой: проход по полю строит гистограмму значений в текущем
+ * диапазоне, после чего диапазон сужается до корзины, содержащей нужный ранг. Для каждой корзины
+ * запоминаются минимум и максимум попавших в неё значений, поэтому границы следующего диапазона точные.
+ * Когда в корзине остаётся мало значений, они собираются и сортируются. Обычно хватает двух-трёх
+ * проходов по полю; все запрошенные процентили уточняются в одних и тех же проходах.
+ * Проходы распараллеливаются по плоскостям x = const с локальными гистограммами на задачу.
+ * У {@link SparseGrid} перебираются только созданные блоки, а фоновые узлы учитываются одним
+ * значением с кратностью, поэтому проход не зависит от объёма габаритов.
+ */
+final class Percentiles {
+    private static final int BINS = 1 << 12;
+    private static final int SORT_THRESHOLD = 1 << 16;
+
+    private Percentiles() {
+    }
+
+    /**
+     * Обработчик значений поля внутри одной задачи прохода.
+     */
+    private interface Visitor {
+        void visit(float[] data, int from, int to);
+
+        /**
+         * Учитывает count узлов с одинаковым значением value.
+         */
+        void visitRepeated(float value, long count);
+
+        void mergeInto(Visitor total);
+    }
+
+    private interface VisitorFactory {
+        Visitor create();
+    }
+
+    /**
+     * Значения заданных процентилей (0-100). Ранг процентиля p — round(p / 100 * (V - 1)) в отсортированном
+     * порядке, как и в прежней реализации с полной сортировкой, поэтому результат совпадает с ней.
+     */
+    static double[] select(ScalarField field, double[] percentiles, ForkJoinPool pool) {
+        long total = (long) field.getNx() * field.getNy() * field.getNz();
+        int targets = percentiles.length;
+        double[] result = new double[targets];
+
+        MinMax range = (MinMax) scan(field, pool, MinMax::new);
+        float[] lo = new float[targets];
+        float[] hi = new float[targets];
+        long[] rank = new long[targets];
+        long[] below = new long[targets];
+        boolean[] done = new boolean[targets];
+        for (int t = 0; t < targets; t++) {
+            rank[t] = Math.round(percentiles[t] / 100.0 * (total - 1));
+            lo[t] = range.min;
+            hi[t] = range.max;
+        }
+
+        while (true) {
+            // Цели, у которых диапазон сжался до одного значения, готовы без прохода
+            boolean active = false;
+            for (int t = 0; t < targets; t++) {
+                if (!done[t] && lo[t] == hi[t]) {
+                    result[t] = lo[t];
+                    done[t] = true;
+                }
+                active |= !done[t];
+            }
+            if (!active) {
+                return result;
+            }
+
+            Histogram histogram = (Histogram) scan(field, pool, () -> new Histogram(lo, hi, done));
+            boolean[] collect = new boolean[targets];
+            int[] collectSize = new int[targets];
+            boolean needsCollect = false;
+            for (int t = 0; t < targets; t++) {
+                if (done[t]) continue;
+                long[] counts = histogram.counts[t];
+                long seen = below[t];
+                int b = 0;
+                while (seen + counts[b] <= rank[t]) {
+                    seen += counts[b];
+                    b++;
+                }
+                below[t] = seen;
+                lo[t] = histogram.binMin[t][b];
+                hi[t] = histogram.binMax[t][b];
+                if (lo[t] != hi[t] && counts[b] <= SORT_THRESHOLD) {
+                    collect[t] = true;
+                    collectSize[t] = (int) counts[b];
+                    needsCollect = true;
+                }
+            }
+
+            if (needsCollect) {
+                Collector collected = (Collector) scan(field, pool, () -> new Collector(lo, hi, collect, collectSize));
+                for (int t = 0; t < targets; t++) {
+                    if (!collect[t]) continue;
+                    float[] values = collected.values[t];
+                    Arrays.sort(values, 0, collected.sizes[t]);
+                    result[t] = values[(int) (rank[t] - below[t])];
+                    done[t] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Проход по всем значениям поля: плоскости x распределяются между задачами пула,
+     * у каждой задачи свой обработчик, результаты сливаются в общий.
+     */
+    private static Visitor scan(ScalarField field, ForkJoinPool pool, VisitorFactory factory) {
+        if (field instanceof SparseGrid) {
+            return scanSparse((SparseGrid) field, pool, factory);
+        }
+        Visitor total = factory.create();
+        int nx = field.getNx();
+        int planeSize = field.getNy() * field.getNz();
+        ParallelLoops.forRange(pool, 0, nx, ParallelLoops.grainFor(pool, nx), (from, to) -> {
+            Visitor local = factory.create();
+            if (field instanceof ScalarGrid) {
+                local.visit(((ScalarGrid) field).values(), from * planeSize, to * planeSize);
+            } else {
+                float[] plane = new float[planeSize];
+                for (int i = from; i < to; i++) {
+                    field.readPlane(i, plane);
+                    local.visit(plane, 0, planeSize);
+                }
+            }
+            synchronized (total) {
+                local.mergeInto(total);
+            }
+        });
+        return total;
+    }
+
+    /**
+     * Проход по разреженной сетке: созданные блоки распределяются между задачами пула
+     * (у крайних блоков берутся только узлы внутри сетки), остальные узлы равны фону.
+     */
+    private static Visitor scanSparse(SparseGrid grid, ForkJoinPool pool, VisitorFactory factory) {
+        Visitor total = factory.create();
+        int nx = grid.getNx(), ny = grid.getNy(), nz = grid.getNz();
+        List<SparseGrid.Leaf> leaves = grid.leaves();
+        AtomicLong stored = new AtomicLong();
+        ParallelLoops.forRange(pool, 0, leaves.size(), ParallelLoops.grainFor(pool, leaves.size()), (from, to) -> {
+            Visitor local = factory.create();
+            float[] inside = new float[SparseGrid.LEAF_SIZE];
+            long count = 0;
+            for (int n = from; n < to; n++) {
+                SparseGrid.Leaf leaf = leaves.get(n);
+                int di = Math.min(SparseGrid.LEAF_DIM, nx - leaf.i0);
+                int dj = Math.min(SparseGrid.LEAF_DIM, ny - leaf.j0);
+                int dk = Math.min(SparseGrid.LEAF_DIM, nz - leaf.k0);
+                if (di == SparseGrid.LEAF_DIM && dj == SparseGrid.LEAF_DIM && dk == SparseGrid.LEAF_DIM) {
+                    local.visit(leaf.values, 0, SparseGrid.LEAF_SIZE);
+                    count += SparseGrid.LEAF_SIZE;
+                    continue;
+                }
+                int size = 0;
+                for (int i = 0; i < di; i++) {
+                    for (int j = 0; j < dj; j++) {
+                        for (int k = 0; k < dk; k++) {
+                            inside[size++] = leaf.values[SparseGrid.voxelSlot(i, j, k)];
+                        }
+                    }
+                }
+                local.visit(inside, 0, size);
+                count += size;
+            }
+            stored.addAndGet(count);
+            synchronized (total) {
+                local.mergeInto(total);
+            }
+        });
+        long background = (long) nx * ny * nz - stored.get();
+        if (background > 0) {
+            total.visitRepeated(grid.getBackground(), background);
+        }
+        return total;
+    }
+
+    private static class MinMax implements Visitor {
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+
+        @Override
+        public void visit(float[] data, int from, int to) {
+            for (int n = from; n < to; n++) {
+                float v = data[n];
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+        }
+
+        @Override
+        public void visitRepeated(float value, long count) {
+            if (value < min) min = value;
+            if (value > max) max = value;
+        }
+
+        @Override
+        public void mergeInto(Visitor total) {
+            MinMax other = (MinMax) total;
+            other.min = Math.min(other.min, min);
+            other.max = Math.max(other.max, max);
+        }
+    }
+
+    /**
+     * Гистограммы значений в диапазонах [lo[t], hi[t]] с точными минимумом и максимумом каждой корзины.
+     * Отображение значения в корзину монотонно, поэтому диапазон [binMin, binMax] содержит ровно её значения.
+     */
+    private static class Histogram implements Visitor {
+        final float[] lo, hi;
+        final double[] scale;
+        final boolean[] skip;
+        final long[][] counts;
+        final float[][] binMin, binMax;
+
+        Histogram(float[] lo, float[] hi, boolean[] skip) {
+            int targets = lo.length;
+            this.lo = lo;
+            this.hi = hi;
+            this.skip = skip;
+            scale = new double[targets];
+            counts = new long[targets][];
+            binMin = new float[targets][];
+            binMax = new float[targets][];
+            for (int t = 0; t < targets; t++) {
+                if (skip[t]) continue;
+                scale[t] = BINS / ((double) hi[t] - lo[t]);
+                counts[t] = new long[BINS];
+                binMin[t] = new float[BINS];
+                binMax[t] = new float[BINS];
+                Arrays.fill(binMin[t], Float.POSITIVE_INFINITY);
+                Arrays.fill(binMax[t], Float.NEGATIVE_INFINITY);
+            }
+        }
+
+        @Override
+        public void visit(float[] data, int from, int to) {
+            for (int t = 0; t < lo.length; t++) {
+                if (skip[t]) continue;
+                float low = lo[t], high = hi[t];
+                double s = scale[t];
+                long[] c = counts[t];
+                float[] bMin = binMin[t], bMax = binMax[t];
+                for (int n = from; n < to; n++) {
+                    float v = data[n];
+                    if (v < low || v > high) continue;
+                    int b = Math.min(BINS - 1, (int) ((v - (double) low) * s));
+                    c[b]++;
+                    if (v < bMin[b]) bMin[b] = v;
+                    if (v > bMax[b]) bMax[b] = v;
+                }
+            }
+        }
+
+        @Override
+        public void visitRepeated(float value, long count) {
+            for (int t = 0; t < lo.length; t++) {
+                if (skip[t] || value < lo[t] || value > hi[t]) continue;
+                int b = Math.min(BINS - 1, (int) ((value - (double) lo[t]) * scale[t]));
+                counts[t][b] += count;
+                binMin[t][b] = Math.min(binMin[t][b], value);
+                binMax[t][b] = Math.max(binMax[t][b], value);
+            }
+        }
+
+        @Override
+        public void mergeInto(Visitor total) {
+            Histogram other = (Histogram) total;
+            for (int t = 0; t < lo.length; t++) {
+                if (skip[t]) continue;
+                for (int b = 0; b < BINS; b++) {
+                    other.counts[t][b] += counts[t][b];
+                    other.binMin[t][b] = Math.min(other.binMin[t][b], binMin[t][b]);
+                    other.binMax[t][b] = Math.max(other.binMax[t][b], binMax[t][b]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Собирает значения из диапазонов [lo[t], hi[t]] для окончательной сортировки.
+     */
+    private static class Collector implements Visitor {
+        final float[] lo, hi;
+        final boolean[] enabled;
+        final float[][] values;
+        final int[] sizes;
+
+        Collector(float[] lo, float[] hi, boolean[] enabled, int[] capacity) {
+            this.lo = lo;
+            this.hi = hi;
+            this.enabled = enabled;
+            values = new float[lo.length][];
+            sizes = new int[lo.length];
+            for (int t = 0; t < lo.length; t++) {
+                if (enabled[t]) values[t] = new float[Math.max(1, capacity[t])];
+            }
+        }
+
+        @Override
+        public void visit(float[] data, int from, int to) {
+            for (int t = 0; t < lo.length; t++) {
+                if (!enabled[t]) continue;
+                float low = lo[t], high = hi[t];
+                float[] out = values[t];
+                int size = sizes[t];
+                for (int n = from; n < to; n++) {
+                    float v = data[n];
+                    if (v >= low && v <= high) {
+                        out[size++] = v;
+                    }
+                }
+                sizes[t] = size;
+            }
+        }
+
+        @Override
+        public void visitRepeated(float value, long count) {
+            // Корзина собирается, только если в ней не больше SORT_THRESHOLD значений, так что count мал
+            for (int t = 0; t < lo.length; t++) {
+                if (!enabled[t] || value < lo[t] || value > hi[t]) continue;
+                Arrays.fill(values[t], sizes[t], sizes[t] + (int) count, value);
+                sizes[t] += (int) count;
+            }
+        }
+
+        @Override
+        public void mergeInto(Visitor total) {
+            Collector other = (Collector) total;
+            for (int t = 0; t < lo.length; t++) {
+                if (!enabled[t]) continue;
+                System.arraycopy(values[t], 0, other.values[t], other.sizes[t], sizes[t]);
+                other.sizes[t] += sizes[t];
+            }
+        }
+    }
+}
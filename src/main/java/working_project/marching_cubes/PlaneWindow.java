@@ -0,0 +1,36 @@
+package working_project.marching_cubes;
+
+import java.util.Arrays;
+
+/**
+ * Несколько последних плоскостей поля, прочитанных через {@link ScalarField#readPlane}:
+ * при переходе к следующему слою читаются только недостающие плоскости, вытесняется плоскость
+ * с наименьшим номером (слои обходятся по возрастанию, поэтому она больше не понадобится).
+ */
+final class PlaneWindow {
+    private final ScalarField field;
+    private final float[][] buffers;
+    private final int[] planes;
+
+    PlaneWindow(ScalarField field, int capacity) {
+        this.field = field;
+        this.buffers = new float[capacity][field.getNy() * field.getNz()];
+        this.planes = new int[capacity];
+        Arrays.fill(planes, -1);
+    }
+
+    float[] get(int plane) {
+        int victim = 0;
+        for (int b = 0; b < planes.length; b++) {
+            if (planes[b] == plane) {
+                return buffers[b];
+            }
+            if (planes[b] < planes[victim]) {
+                victim = b;
+            }
+        }
+        field.readPlane(plane, buffers[victim]);
+        planes[victim] = plane;
+        return buffers[victim];
+    }
+}
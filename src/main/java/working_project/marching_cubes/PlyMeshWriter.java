@@ -0,0 +1,97 @@
+package working_project.marching_cubes;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Приёмник меша, который сразу пишет вершины и грани в двоичный PLY (binary_little_endian), не храня их в памяти.
+ * В PLY все вершины идут перед гранями, а их число указано в заголовке, поэтому вершины пишутся
+ * в итоговый файл после зарезервированного места под заголовок, грани — во временный файл рядом,
+ * а при закрытии заголовок записывается на своё место и к вершинам дописываются грани.
+ * Незанятый остаток зарезервированного места заполняется строкой комментария.
+ */
+public class PlyMeshWriter implements MeshSink, Closeable {
+    private static final int VERTEX_BYTES = 3 * Float.BYTES;
+    private static final int FACE_BYTES = 1 + 3 * Integer.BYTES;
+    private static final String COMMENT = "comment streamed by marching cubes";
+    // Заголовок с наибольшими возможными счётчиками
+    private static final int HEADER_BYTES = header(Integer.MAX_VALUE, Integer.MAX_VALUE, 0).length();
+
+    private final ChannelOutput out;
+    private final Path facesFile;
+    private final ChannelOutput faces;
+    private int vertexCount;
+    private int faceCount;
+
+    public PlyMeshWriter(File file) throws IOException {
+        Path path = file.toPath().toAbsolutePath();
+        out = new ChannelOutput(path);
+        out.reserve(HEADER_BYTES).position(HEADER_BYTES);
+        facesFile = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".faces");
+        faces = new ChannelOutput(facesFile);
+    }
+
+    private static String header(int vertices, int faces, int padding) {
+        return "ply\n"
+                + "format binary_little_endian 1.0\n"
+                + COMMENT + " ".repeat(padding) + "\n"
+                + "element vertex " + vertices + "\n"
+                + "property float x\n"
+                + "property float y\n"
+                + "property float z\n"
+                + "element face " + faces + "\n"
+                + "property list uchar int vertex_indices\n"
+                + "end_header\n";
+    }
+
+    @Override
+    public int addVertex(float x, float y, float z) {
+        try {
+            out.reserve(VERTEX_BYTES).putFloat(x).putFloat(y).putFloat(z);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return vertexCount++;
+    }
+
+    @Override
+    public void addFace(int a, int b, int c) {
+        try {
+            faces.reserve(FACE_BYTES).put((byte) 3).putInt(a).putInt(b).putInt(c);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        faceCount++;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getFaceCount() {
+        return faceCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            faces.close();
+            String text = header(vertexCount, faceCount, 0);
+            text = header(vertexCount, faceCount, HEADER_BYTES - text.length());
+            out.writeAt(ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)), 0);
+            out.append(facesFile);
+        } finally {
+            try {
+                out.close();
+            } finally {
+                Files.deleteIfExists(facesFile);
+            }
+        }
+    }
+}
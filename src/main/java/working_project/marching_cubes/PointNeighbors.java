@@ -0,0 +1,84 @@
+package working_project.marching_cubes;
+
+import working_project.rendering.Point3D;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Поиск соседей точек облака для кода вне пакета (удаление выбросов, оценка нормалей): пакетные запросы
+ * k ближайших соседей и соседей в радиусе поверх того же индекса, что и при построении поля
+ * ({@link SpatialHashGrid#forPoints}). Индекс после построения только читается, поэтому запросы
+ * можно выполнять из нескольких потоков.
+ */
+public final class PointNeighbors {
+    private final double[][] points;
+    private final SpatialIndex index;
+
+    private PointNeighbors(double[][] points, SpatialIndex index) {
+        this.points = points;
+        this.index = index;
+    }
+
+    /**
+     * Строит индекс облака.
+     * @param points Облако точек
+     * @param pool Пул потоков для построения; null — в текущем потоке
+     */
+    public static PointNeighbors build(List<Point3D> points, ForkJoinPool pool) {
+        double[][] pointArray = MarchingCubes.toPointArray(points, new double[3], new double[3]);
+        return build(pointArray, pool);
+    }
+
+    /**
+     * Строит индекс по координатам точек; массив не копируется и не должен изменяться.
+     * @param points Координаты точек (x, y, z)
+     * @param pool Пул потоков для построения; null — в текущем потоке
+     */
+    public static PointNeighbors build(double[][] points, ForkJoinPool pool) {
+        return new PointNeighbors(points, SpatialHashGrid.forPoints(points, pool));
+    }
+
+    /**
+     * Координаты точек облака в исходном порядке — например, запросы для поиска соседей всех точек.
+     */
+    public double[][] getPoints() {
+        return points;
+    }
+
+    /**
+     * Пакетный поиск k ближайших соседей; результат для запроса q — в indices и distancesSquared
+     * на позициях [q * k, q * k + k) по возрастанию расстояния, недостающие соседи — -1 и бесконечность.
+     * Если запросы — сами точки облака, первым соседом будет сама точка.
+     * @param queries Точки запросов
+     * @param k Число соседей
+     * @param indices Индексы соседей в облаке, длина не меньше queries.length * k
+     * @param distancesSquared Квадраты расстояний, длина не меньше queries.length * k
+     * @param pool Пул потоков; null — в текущем потоке
+     */
+    public void knn(double[][] queries, int k, int[] indices, double[] distancesSquared, ForkJoinPool pool) {
+        index.knn(queries, k, indices, distancesSquared, pool);
+    }
+
+    /**
+     * Пакетный поиск всех точек на расстоянии не больше radius от каждого запроса.
+     * @param queries Точки запросов
+     * @param radius Радиус поиска
+     * @param pool Пул потоков; null — в текущем потоке
+     * @return Соседи всех запросов в формате CSR
+     */
+    public Neighborhoods radius(double[][] queries, double radius, ForkJoinPool pool) {
+        return index.radius(queries, radius, pool);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Оценка памяти индекса в байтах (без массива координат).
+     */
+    public long estimateMemoryBytes() {
+        return index.estimateMemoryBytes();
+    }
+}
@@ -0,0 +1,170 @@
+package working_project.marching_cubes;
+
+import working_project.marching_cubes.MarchingCubes.Mesh;
+import working_project.rendering.Point3D;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Прогрессивная реконструкция: сначала строится грубый меш с увеличенным в несколько раз вокселем,
+ * затем в фоне — всё более подробные уровни, вплоть до итогового. Каждый готовый уровень передаётся
+ * слушателю, так что первый результат виден за малую долю времени полной реконструкции.
+ * <p>
+ * Узлы грубого уровня с множителем f совпадают с каждым f-м узлом итоговой сетки, а индекс точек
+ * строится один раз и используется всеми уровнями. Если итоговое поле уже есть в кеше
+ * ({@link ReconstructionOptions#getFieldCache()}), грубые уровни пропускаются.
+ * При {@link SurfaceEngine#ADAPTIVE} каждый уровень строится {@link AdaptiveReconstruction} с общим индексом точек.
+ */
+public final class ProgressiveReconstruction {
+    private static final int[] DEFAULT_LEVELS = {8, 4, 1};
+
+    /**
+     * Получатель готовых уровней. Вызывается в фоновом потоке.
+     */
+    public interface LevelListener {
+        /**
+         * @param factor Во сколько раз воксель уровня больше итогового (1 — итоговый уровень)
+         * @param mesh Меш уровня
+         */
+        void onLevel(int factor, Mesh mesh);
+    }
+
+    private volatile boolean cancelled;
+    private CompletableFuture<Mesh> result;
+
+    private ProgressiveReconstruction() {
+    }
+
+    /**
+     * Запускает реконструкцию с уровнями 8x, 4x и итоговым.
+     * @see #start(List, double, double, ReconstructionOptions, int[], Executor, LevelListener)
+     */
+    public static ProgressiveReconstruction start(List<Point3D> points, double voxelSize, double isoLevelPercentile,
+                                                  ReconstructionOptions options, Executor executor, LevelListener listener) {
+        return start(points, voxelSize, isoLevelPercentile, options, DEFAULT_LEVELS, executor, listener);
+    }
+
+    /**
+     * Запускает реконструкцию в фоне.
+     * @param points Облако точек; не должно изменяться до завершения реконструкции
+     * @param voxelSize Итоговый размер вокселя
+     * @param isoLevelPercentile Процентиль для уровня изоповерхности (вычисляется для каждого уровня по его полю)
+     * @param options Настройки реконструкции
+     * @param levels Множители размера вокселя уровней по убыванию; последний обычно равен 1
+     * @param executor Исполнитель, в котором выполняется реконструкция
+     * @param listener Получатель готовых уровней
+     * @return Управление запущенной реконструкцией
+     */
+    public static ProgressiveReconstruction start(List<Point3D> points, double voxelSize, double isoLevelPercentile,
+                                                  ReconstructionOptions options, int[] levels, Executor executor,
+                                                  LevelListener listener) {
+        for (int factor : levels) {
+            if (factor <= 0) {
+                throw new IllegalArgumentException("Level factor must be positive: " + factor);
+            }
+        }
+        int[] factors = levels.clone();
+        ProgressiveReconstruction reconstruction = new ProgressiveReconstruction();
+        reconstruction.result = CompletableFuture.supplyAsync(
+                () -> reconstruction.run(points, voxelSize, isoLevelPercentile, options, factors, listener), executor);
+        return reconstruction;
+    }
+
+    /**
+     * Прекращает реконструкцию после текущего уровня; следующие уровни не строятся и не публикуются.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Итоговый меш (последний построенный уровень). При отмене завершается с {@link CancellationException}.
+     */
+    public CompletableFuture<Mesh> getResult() {
+        return result;
+    }
+
+    private Mesh run(List<Point3D> points, double voxelSize, double isoLevelPercentile, ReconstructionOptions options,
+                     int[] levels, LevelListener listener) {
+        ForkJoinPool pool = options.getPool();
+        FieldCache cache = options.getFieldCache();
+        FieldCache.CloudKey cloud = cache == null ? null : FieldCache.cloudKey(points);
+        boolean adaptive = options.getSurfaceEngine() == SurfaceEngine.ADAPTIVE;
+        FieldCache.CachedField cached = cache == null || adaptive ? null : cache.cachedField(cloud, voxelSize, options);
+        if (cached != null) {
+            // Поле уже построено — достаточно заново извлечь поверхность по активным блокам
+            ScalarField field = cached.field;
+            System.out.println("Scalar field cache hit: " + field.getNx() + "x" + field.getNy() + "x" + field.getNz());
+            Mesh mesh = extract(field, cached.pyramid, isoLevelPercentile, options);
+            publish(listener, 1, mesh);
+            return mesh;
+        }
+
+        double[] mins = new double[3];
+        double[] maxs = new double[3];
+        double[][] pointArray = MarchingCubes.toPointArray(points, mins, maxs);
+        SpatialIndex index = null;
+        if (adaptive && cache != null) {
+            index = cache.spatialIndex(cloud, pointArray, pool);
+        } else if (cache != null) {
+            index = cache.index(cloud, pointArray, options);
+        } else if (adaptive || options.usesSpatialIndex()) {
+            index = SpatialHashGrid.forPoints(pointArray, pool);
+        }
+        int nx = MarchingCubes.gridSize(mins[0], maxs[0], voxelSize);
+        int ny = MarchingCubes.gridSize(mins[1], maxs[1], voxelSize);
+        int nz = MarchingCubes.gridSize(mins[2], maxs[2], voxelSize);
+
+        Mesh mesh = null;
+        for (int factor : levels) {
+            checkCancelled();
+            // Каждый factor-й узел итоговой сетки
+            int cx = (nx - 1) / factor + 1;
+            int cy = (ny - 1) / factor + 1;
+            int cz = (nz - 1) / factor + 1;
+            if (factor > 1 && Math.min(cx, Math.min(cy, cz)) < 2) {
+                continue; // Уровень слишком грубый, чтобы содержать хотя бы один куб
+            }
+            long start = System.nanoTime();
+            if (adaptive) {
+                mesh = AdaptiveReconstruction.reconstruct(pointArray, mins, maxs, index, voxelSize * factor,
+                        isoLevelPercentile, options);
+            } else {
+                ScalarField field = MarchingCubes.computeField(pointArray, mins, voxelSize * factor, cx, cy, cz, options, index);
+                BrickPyramid pyramid = factor == 1 && cache != null
+                        ? cache.putField(cloud, voxelSize, options, field).pyramid
+                        : BrickPyramid.build(field, pool);
+                mesh = extract(field, pyramid, isoLevelPercentile, options);
+            }
+            System.out.println("Progressive level " + factor + "x (" + cx + "x" + cy + "x" + cz + ") built in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+            publish(listener, factor, mesh);
+        }
+        return mesh;
+    }
+
+    private static Mesh extract(ScalarField field, BrickPyramid pyramid, double isoLevelPercentile,
+                                ReconstructionOptions options) {
+        double isoLevel = MarchingCubes.computeIsoLevels(field, options.getPool(), isoLevelPercentile)[0];
+        return MarchingCubes.extractSurface(field, pyramid, isoLevel, options);
+    }
+
+    private void publish(LevelListener listener, int factor, Mesh mesh) {
+        checkCancelled();
+        listener.onLevel(factor, mesh);
+    }
+
+    private void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Progressive reconstruction cancelled");
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package working_project.marching_cubes;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Плотная сетка скалярного поля с 16-битными значениями.
+ * Каждое значение хранится как беззнаковый код 0..65535 (char) в том же порядке, что и в {@link ScalarGrid};
+ * код переводится в расстояние по смещению и шагу своего блока 8³: value = offset + code * step.
+ * В режиме с общим масштабом все блоки делят диапазон [0, maxRange], в поблочном режиме у каждого блока
+ * свой диапазон [min, max] значений, поэтому блоки у поверхности квантуются намного точнее.
+ * Значения больше maxRange сохраняются как maxRange.
+ * <p>
+ * Занимает вдвое меньше памяти, чем {@link ScalarGrid}; поле читается через {@link #readPlane},
+ * поэтому уровень изоповерхности и извлечение поверхности работают с ним без изменений.
+ */
+public class QuantizedGrid implements ScalarField {
+    static final int BRICK_LOG2 = 3;
+    static final int BRICK = 1 << BRICK_LOG2;
+    private static final int MAX_CODE = 0xFFFF;
+
+    private final int nx, ny, nz;
+    private final int bny, bnz; // блоков по Y и Z
+    private final double[] mins;
+    private final double voxelSize;
+    private final double maxRange;
+    private final char[] codes;
+    private final float[] offsets;
+    private final float[] steps;
+
+    /**
+     * Источник значений поля по плоскостям x = const (тот же формат, что у {@link ScalarField#readPlane}).
+     */
+    interface PlaneSource {
+        void readPlane(int i, float[] plane);
+    }
+
+    private QuantizedGrid(int nx, int ny, int nz, double[] mins, double voxelSize, double maxRange) {
+        long size = (long) nx * ny * nz;
+        if (nx <= 0 || ny <= 0 || nz <= 0 || size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Unsupported voxel grid size: " + nx + "x" + ny + "x" + nz);
+        }
+        this.nx = nx;
+        this.ny = ny;
+        this.nz = nz;
+        this.bny = (ny + BRICK - 1) >> BRICK_LOG2;
+        this.bnz = (nz + BRICK - 1) >> BRICK_LOG2;
+        this.mins = mins.clone();
+        this.voxelSize = voxelSize;
+        this.maxRange = maxRange;
+        this.codes = new char[(int) size];
+        int bricks = ((nx + BRICK - 1) >> BRICK_LOG2) * bny * bnz;
+        this.offsets = new float[bricks];
+        this.steps = new float[bricks];
+    }
+
+    /**
+     * Квантует готовое поле (например, построенное {@link DistanceTransform}).
+     * @param field Исходное поле
+     * @param maxRange Наибольшее хранимое значение; Double.POSITIVE_INFINITY — без ограничения
+     * @param perBrick Свой масштаб у каждого блока 8³
+     * @param pool Пул потоков; null — вычисление в текущем потоке
+     */
+    public static QuantizedGrid quantize(ScalarField field, double maxRange, boolean perBrick, ForkJoinPool pool) {
+        return build(field.getNx(), field.getNy(), field.getNz(), field.getMins(), field.getVoxelSize(),
+                maxRange, perBrick, pool, field::readPlane);
+    }
+
+    /**
+     * Строит квантованное поле по плоскостям из источника. Слои блоков по X распределяются между задачами
+     * пула; каждая задача держит только свои 8 плоскостей float, так что полное поле float не создаётся.
+     * Без ограничения диапазона общий масштаб берётся по диагонали сетки: узлы сетки покрывают габариты
+     * облака, поэтому расстояние до ближайшей точки не может быть больше неё.
+     */
+    static QuantizedGrid build(int nx, int ny, int nz, double[] mins, double voxelSize, double maxRange,
+                               boolean perBrick, ForkJoinPool pool, PlaneSource source) {
+        if (!(maxRange > 0)) {
+            throw new IllegalArgumentException("Quantization range must be positive: " + maxRange);
+        }
+        double diagonal = voxelSize * Math.sqrt((double) (nx - 1) * (nx - 1) + (double) (ny - 1) * (ny - 1)
+                + (double) (nz - 1) * (nz - 1));
+        float globalRange = (float) Math.min(maxRange, diagonal);
+        float clamp = (float) Math.min(maxRange, Float.MAX_VALUE);
+        QuantizedGrid grid = new QuantizedGrid(nx, ny, nz, mins, voxelSize, maxRange);
+        int bnx = (nx + BRICK - 1) >> BRICK_LOG2;
+        int planeSize = ny * nz;
+        ParallelLoops.forRange(pool, 0, bnx, 1, (from, to) -> {
+            float[] layer = new float[BRICK * planeSize];
+            float[] plane = new float[planeSize];
+            for (int bi = from; bi < to; bi++) {
+                int i0 = bi << BRICK_LOG2;
+                int depth = Math.min(BRICK, nx - i0);
+                for (int di = 0; di < depth; di++) {
+                    source.readPlane(i0 + di, plane);
+                    System.arraycopy(plane, 0, layer, di * planeSize, planeSize);
+                }
+                grid.encodeLayer(bi, depth, layer, perBrick, globalRange, clamp);
+            }
+        });
+        return grid;
+    }
+
+    /**
+     * Кодирует слой блоков bi из depth плоскостей: подбирает диапазон каждого блока и переводит значения в коды.
+     */
+    private void encodeLayer(int bi, int depth, float[] layer, boolean perBrick, float globalRange, float clamp) {
+        int planeSize = ny * nz;
+        int base = (bi << BRICK_LOG2) * planeSize;
+        for (int bj = 0; bj < bny; bj++) {
+            int j0 = bj << BRICK_LOG2;
+            int j1 = Math.min(ny, j0 + BRICK);
+            for (int bk = 0; bk < bnz; bk++) {
+                int k0 = bk << BRICK_LOG2;
+                int k1 = Math.min(nz, k0 + BRICK);
+                float lo = 0;
+                float hi = globalRange;
+                if (perBrick) {
+                    lo = Float.POSITIVE_INFINITY;
+                    hi = Float.NEGATIVE_INFINITY;
+                    for (int di = 0; di < depth; di++) {
+                        for (int j = j0; j < j1; j++) {
+                            int row = di * planeSize + j * nz;
+                            for (int k = k0; k < k1; k++) {
+                                float v = Math.min(layer[row + k], clamp);
+                                if (v < lo) lo = v;
+                                if (v > hi) hi = v;
+                            }
+                        }
+                    }
+                }
+                float step = (hi - lo) / MAX_CODE;
+                float scale = step > 0 ? 1 / step : 0;
+                int b = (bi * bny + bj) * bnz + bk;
+                offsets[b] = lo;
+                steps[b] = step;
+                for (int di = 0; di < depth; di++) {
+                    for (int j = j0; j < j1; j++) {
+                        int row = di * planeSize + j * nz;
+                        for (int k = k0; k < k1; k++) {
+                            float v = Math.min(layer[row + k], hi);
+                            int code = (int) ((v - lo) * scale + 0.5f);
+                            codes[base + row + k] = (char) Math.max(0, Math.min(MAX_CODE, code));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public float get(int i, int j, int k) {
+        int b = ((i >> BRICK_LOG2) * bny + (j >> BRICK_LOG2)) * bnz + (k >> BRICK_LOG2);
+        return offsets[b] + codes[(i * ny + j) * nz + k] * steps[b];
+    }
+
+    @Override
+    public void readPlane(int i, float[] plane) {
+        int base = i * ny * nz;
+        int brickRow = (i >> BRICK_LOG2) * bny;
+        for (int j = 0; j < ny; j++) {
+            int row = j * nz;
+            int b = (brickRow + (j >> BRICK_LOG2)) * bnz;
+            for (int k0 = 0; k0 < nz; k0 += BRICK, b++) {
+                float lo = offsets[b];
+                float step = steps[b];
+                int k1 = Math.min(nz, k0 + BRICK);
+                for (int k = k0; k < k1; k++) {
+                    plane[row + k] = lo + codes[base + row + k] * step;
+                }
+            }
+        }
+    }
+
+    /**
+     * Наибольшая погрешность квантования по всем блокам (половина наибольшего шага).
+     */
+    public double getMaxError() {
+        float max = 0;
+        for (float step : steps) {
+            max = Math.max(max, step);
+        }
+        return max / 2;
+    }
+
+    /**
+     * Наибольшее хранимое значение; Double.POSITIVE_INFINITY — без ограничения.
+     */
+    public double getMaxRange() {
+        return maxRange;
+    }
+
+    @Override
+    public int getNx() {
+        return nx;
+    }
+
+    @Override
+    public int getNy() {
+        return ny;
+    }
+
+    @Override
+    public int getNz() {
+        return nz;
+    }
+
+    @Override
+    public double[] getMins() {
+        return mins.clone();
+    }
+
+    @Override
+    public double getVoxelSize() {
+        return voxelSize;
+    }
+
+    @Override
+    public long estimateMemoryBytes() {
+        return (long) codes.length * Character.BYTES + (long) offsets.length * 2 * Float.BYTES;
+    }
+}
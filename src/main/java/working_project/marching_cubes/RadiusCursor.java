@@ -0,0 +1,24 @@
+package working_project.marching_cubes;
+
+/**
+ * Позиция записи результатов поиска по радиусу для одного запроса.
+ * Без массивов только считает найденные точки (проход подсчёта пакетного поиска).
+ */
+final class RadiusCursor {
+    private final int[] indices;
+    private final double[] d2;
+    int position;
+
+    RadiusCursor(int[] indices, double[] d2) {
+        this.indices = indices;
+        this.d2 = d2;
+    }
+
+    void add(int index, double distanceSquared) {
+        if (indices != null) {
+            indices[position] = index;
+            d2[position] = distanceSquared;
+        }
+        position++;
+    }
+}
@@ -0,0 +1,194 @@
+package working_project.marching_cubes;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Настройки реконструкции поверхности по облаку точек.
+ * Сеттеры возвращают this, чтобы настройки можно было собирать цепочкой.
+ */
+public class ReconstructionOptions {
+    private FieldEngine fieldEngine = FieldEngine.KD_TREE;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private double narrowBandWidth = 3.0;
+    private GridStorage storage = GridStorage.DENSE;
+    private double nearestNeighborEpsilon = 0.0;
+    private FieldCache fieldCache;
+    private boolean vertexNormals;
+    private SurfaceEngine surfaceEngine = SurfaceEngine.MARCHING_CUBES;
+    private int adaptiveMaxLevel = 3;
+    private double adaptiveCurvature = 0.01;
+    private double quantizationRange = Double.POSITIVE_INFINITY;
+    private boolean quantizePerBrick = true;
+
+    public FieldEngine getFieldEngine() {
+        return fieldEngine;
+    }
+
+    public ReconstructionOptions fieldEngine(FieldEngine fieldEngine) {
+        this.fieldEngine = fieldEngine;
+        return this;
+    }
+
+    /**
+     * Ширина полосы в вокселях для {@link FieldEngine#NARROW_BAND}.
+     */
+    public double getNarrowBandWidth() {
+        return narrowBandWidth;
+    }
+
+    public ReconstructionOptions narrowBandWidth(double narrowBandWidth) {
+        if (narrowBandWidth <= 0) {
+            throw new IllegalArgumentException("Narrow band width must be positive: " + narrowBandWidth);
+        }
+        this.narrowBandWidth = narrowBandWidth;
+        return this;
+    }
+
+    /**
+     * Хранилище поля. Разреженное хранилище всегда строит поле в узкой полосе шириной
+     * {@link #getNarrowBandWidth()}, независимо от {@link #getFieldEngine()}.
+     */
+    public GridStorage getStorage() {
+        return storage;
+    }
+
+    public ReconstructionOptions storage(GridStorage storage) {
+        this.storage = storage;
+        return this;
+    }
+
+    /**
+     * Наибольшее значение, которое хранит {@link GridStorage#QUANTIZED}; большие расстояния сохраняются
+     * как это значение. Должно быть больше уровня изоповерхности. По умолчанию без ограничения.
+     */
+    public double getQuantizationRange() {
+        return quantizationRange;
+    }
+
+    public ReconstructionOptions quantizationRange(double quantizationRange) {
+        if (!(quantizationRange > 0)) {
+            throw new IllegalArgumentException("Quantization range must be positive: " + quantizationRange);
+        }
+        this.quantizationRange = quantizationRange;
+        return this;
+    }
+
+    /**
+     * Свой масштаб квантования у каждого блока 8³ для {@link GridStorage#QUANTIZED}; иначе все блоки
+     * делят диапазон [0, {@link #getQuantizationRange()}]. По умолчанию включено.
+     */
+    public boolean isQuantizePerBrick() {
+        return quantizePerBrick;
+    }
+
+    public ReconstructionOptions quantizePerBrick(boolean quantizePerBrick) {
+        this.quantizePerBrick = quantizePerBrick;
+        return this;
+    }
+
+    /**
+     * Допустимая относительная погрешность поиска ближайших точек для {@link FieldEngine#KD_TREE}:
+     * расстояния могут быть завышены не больше чем в (1 + epsilon) раз. 0 — точный поиск;
+     * большие значения ускоряют построение поля ценой точности.
+     */
+    public double getNearestNeighborEpsilon() {
+        return nearestNeighborEpsilon;
+    }
+
+    public ReconstructionOptions nearestNeighborEpsilon(double nearestNeighborEpsilon) {
+        if (nearestNeighborEpsilon < 0) {
+            throw new IllegalArgumentException("Nearest neighbour epsilon must not be negative: " + nearestNeighborEpsilon);
+        }
+        this.nearestNeighborEpsilon = nearestNeighborEpsilon;
+        return this;
+    }
+
+    /**
+     * Строится ли поле при этих настройках по пространственному индексу точек.
+     */
+    boolean usesSpatialIndex() {
+        return storage != GridStorage.SPARSE && fieldEngine == FieldEngine.KD_TREE;
+    }
+
+    /**
+     * Кеш индексов и полей; если задан, поле для уже обработанного облака с тем же размером вокселя
+     * и настройками берётся из кеша. null — поле строится заново при каждом вызове.
+     */
+    public FieldCache getFieldCache() {
+        return fieldCache;
+    }
+
+    public ReconstructionOptions fieldCache(FieldCache fieldCache) {
+        this.fieldCache = fieldCache;
+        return this;
+    }
+
+    /**
+     * Вычислять ли нормали вершин по градиенту поля при извлечении поверхности
+     * (см. {@link MarchingCubes.Mesh#getNormals()}). По умолчанию выключено.
+     */
+    public boolean isVertexNormals() {
+        return vertexNormals;
+    }
+
+    public ReconstructionOptions vertexNormals(boolean vertexNormals) {
+        this.vertexNormals = vertexNormals;
+        return this;
+    }
+
+    /**
+     * Способ извлечения поверхности из поля. По умолчанию {@link SurfaceEngine#MARCHING_CUBES}.
+     */
+    public SurfaceEngine getSurfaceEngine() {
+        return surfaceEngine;
+    }
+
+    public ReconstructionOptions surfaceEngine(SurfaceEngine surfaceEngine) {
+        this.surfaceEngine = surfaceEngine;
+        return this;
+    }
+
+    /**
+     * Наибольший размер листа октодерева {@link AdaptiveReconstruction} — 2^level вокселей
+     * (дополнительно ограничен уровнем изоповерхности). 0 — все листья размером в воксель.
+     */
+    public int getAdaptiveMaxLevel() {
+        return adaptiveMaxLevel;
+    }
+
+    public ReconstructionOptions adaptiveMaxLevel(int adaptiveMaxLevel) {
+        if (adaptiveMaxLevel < 0 || adaptiveMaxLevel > 10) {
+            throw new IllegalArgumentException("Adaptive max level must be in [0, 10]: " + adaptiveMaxLevel);
+        }
+        this.adaptiveMaxLevel = adaptiveMaxLevel;
+        return this;
+    }
+
+    /**
+     * Порог поверхностной вариации точек (0 — плоскость, 1/3 — изотропное облако), выше которого лист
+     * {@link AdaptiveReconstruction} делится дальше.
+     */
+    public double getAdaptiveCurvature() {
+        return adaptiveCurvature;
+    }
+
+    public ReconstructionOptions adaptiveCurvature(double adaptiveCurvature) {
+        if (adaptiveCurvature < 0) {
+            throw new IllegalArgumentException("Adaptive curvature threshold must not be negative: " + adaptiveCurvature);
+        }
+        this.adaptiveCurvature = adaptiveCurvature;
+        return this;
+    }
+
+    /**
+     * Пул потоков для вычислений; null — всё выполняется в вызывающем потоке.
+     */
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public ReconstructionOptions pool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+}
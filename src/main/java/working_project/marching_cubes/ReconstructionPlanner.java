@@ -0,0 +1,439 @@
+package working_project.marching_cubes;
+
+import working_project.rendering.Point3D;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Оценка памяти и времени реконструкции до её запуска и подбор размера вокселя под бюджет памяти.
+ * <p>
+ * При создании планировщик один раз строит (или берёт из кеша полей) индекс облака и измеряет на выборке точек среднее расстояние
+ * до ближайших соседей (шаг облака) и время одного запроса ближайшей точки. После этого
+ * {@link #plan(double, double, ReconstructionOptions, long)} для любого размера вокселя считается без проходов по облаку.
+ * Площадь поверхности оценивается как число точек, умноженное на квадрат шага: по ней считаются размер
+ * меша, число блоков разреженной сетки и число листьев адаптивного октодерева ({@link SurfaceEngine#ADAPTIVE}),
+ * которое сплошной сетки не строит. Оценки приблизительные (с точностью до множителя порядка двух),
+ * их задача — не допустить запуска, который заведомо не поместится в кучу.
+ */
+public final class ReconstructionPlanner {
+    private static final int SPACING_SAMPLES = 2048;
+    private static final int SPACING_NEIGHBORS = 6;
+    private static final int DISTANCE_SAMPLES = 4096;
+    private static final int TIMED_SAMPLES = DISTANCE_SAMPLES / 4;
+    // Байт на точку: double[3] с заголовком и ссылкой в массиве, копия координат и индекс в KD-дереве
+    private static final int BYTES_PER_POINT = 48 + 16;
+    // Грубая стоимость обновления одного узла полосы при построении разреженного поля
+    // и прохода по узлу сетки (процентиль, пирамида, извлечение поверхности)
+    private static final double SPLAT_NANOS = 2.0;
+    private static final double NODE_NANOS = 5.0;
+    // Адаптивное октодерево на лист у поверхности: узел, значения в углах, доля общих значений поля,
+    // четырёхугольники рёбер; запросы ближайшей точки при классификации узлов и вычислении углов
+    private static final int ADAPTIVE_LEAF_BYTES = 320;
+    private static final int ADAPTIVE_QUERIES_PER_LEAF = 3;
+    // Узлы адаптивной сетки кодируются 21 битом на ось
+    private static final int ADAPTIVE_MAX_NODES = 1 << 21;
+    // Шаг увеличения вокселя, пока реконструкция не поместится в бюджет
+    private static final double VOXEL_GROWTH = 1.25;
+    private static final int MAX_GROWTH_STEPS = 64;
+
+    private final int pointCount;
+    private final double[] mins = new double[3];
+    private final double[] maxs = new double[3];
+    private final double pointSpacing;
+    private final float[] distances;
+    private double nanosPerQuery;
+    private final int parallelism;
+
+    /**
+     * План реконструкции: выбранные размер вокселя и хранилище поля с оценками памяти и времени.
+     */
+    public static final class Plan {
+        private final double requestedVoxelSize;
+        private final double voxelSize;
+        private final GridStorage storage;
+        private final boolean adaptive;
+        private final double narrowBandWidth;
+        private final int nx, ny, nz;
+        private final double isoLevel;
+        private final long fieldBytes;
+        private final long totalBytes;
+        private final long budgetBytes;
+        private final long estimatedMillis;
+        private final long estimatedFaces;
+        private final double pointSpacing;
+
+        private Plan(double requestedVoxelSize, double voxelSize, GridStorage storage, boolean adaptive, double narrowBandWidth,
+                     int nx, int ny, int nz, double isoLevel, long fieldBytes, long totalBytes, long budgetBytes, long estimatedMillis, long estimatedFaces,
+                     double pointSpacing) {
+            this.requestedVoxelSize = requestedVoxelSize;
+            this.voxelSize = voxelSize;
+            this.storage = storage;
+            this.adaptive = adaptive;
+            this.narrowBandWidth = narrowBandWidth;
+            this.nx = nx;
+            this.ny = ny;
+            this.nz = nz;
+            this.isoLevel = isoLevel;
+            this.fieldBytes = fieldBytes;
+            this.totalBytes = totalBytes;
+            this.budgetBytes = budgetBytes;
+            this.estimatedMillis = estimatedMillis;
+            this.estimatedFaces = estimatedFaces;
+            this.pointSpacing = pointSpacing;
+        }
+
+        public double getRequestedVoxelSize() {
+            return requestedVoxelSize;
+        }
+
+        /**
+         * Размер вокселя, с которым реконструкция помещается в бюджет (не меньше запрошенного).
+         */
+        public double getVoxelSize() {
+            return voxelSize;
+        }
+
+        public GridStorage getStorage() {
+            return storage;
+        }
+
+        /**
+         * План для {@link SurfaceEngine#ADAPTIVE}: сетка не строится, хранилище не используется.
+         */
+        public boolean isAdaptive() {
+            return adaptive;
+        }
+
+        /**
+         * Ширина полосы разреженного хранилища в вокселях, при которой оценка уровня лежит внутри полосы.
+         */
+        public double getNarrowBandWidth() {
+            return narrowBandWidth;
+        }
+
+        /**
+         * Оценка уровня изоповерхности по выборке значений поля.
+         */
+        public double getIsoLevel() {
+            return isoLevel;
+        }
+
+        public int getNx() {
+            return nx;
+        }
+
+        public int getNy() {
+            return ny;
+        }
+
+        public int getNz() {
+            return nz;
+        }
+
+        /**
+         * Оценка памяти под скалярное поле в байтах (для адаптивного октодерева — под дерево и значения в его узлах).
+         */
+        public long getFieldBytes() {
+            return fieldBytes;
+        }
+
+        /**
+         * Оценка пиковой памяти реконструкции (облако, индекс, поле, пирамида, меш) в байтах.
+         */
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        public long getBudgetBytes() {
+            return budgetBytes;
+        }
+
+        public long getEstimatedMillis() {
+            return estimatedMillis;
+        }
+
+        public long getEstimatedFaces() {
+            return estimatedFaces;
+        }
+
+        /**
+         * Среднее расстояние между соседними точками облака.
+         */
+        public double getPointSpacing() {
+            return pointSpacing;
+        }
+
+        /**
+         * Помещается ли реконструкция в бюджет; false, если не помещается даже с самым крупным вокселем.
+         */
+        public boolean fitsBudget() {
+            return totalBytes <= budgetBytes;
+        }
+
+        /**
+         * Изменён ли план относительно запроса (крупнее воксель, другое хранилище или ширина полосы).
+         */
+        public boolean isAdjusted(ReconstructionOptions requested) {
+            return voxelSize != requestedVoxelSize || storage != requested.getStorage()
+                    || storage == GridStorage.SPARSE && narrowBandWidth != requested.getNarrowBandWidth();
+        }
+
+        /**
+         * Записывает выбранные хранилище и ширину полосы в настройки; размер вокселя передаётся
+         * в реконструкцию отдельно.
+         */
+        public ReconstructionOptions applyTo(ReconstructionOptions options) {
+            return options.storage(storage).narrowBandWidth(narrowBandWidth);
+        }
+
+        /**
+         * Краткое описание плана для интерфейса.
+         */
+        public String getSummary() {
+            if (adaptive) {
+                return String.format("Adaptive octree over %dx%dx%d, ~%s of %s budget, ~%s, ~%,d faces",
+                        nx, ny, nz, formatBytes(totalBytes), formatBytes(budgetBytes),
+                        formatMillis(estimatedMillis), estimatedFaces);
+            }
+            return String.format("Grid %dx%dx%d (%s), ~%s of %s budget, ~%s, ~%,d faces",
+                    nx, ny, nz, storage.name().toLowerCase(), formatBytes(totalBytes), formatBytes(budgetBytes),
+                    formatMillis(estimatedMillis), estimatedFaces);
+        }
+    }
+
+    /**
+     * Строит индекс облака (тот же, что и при построении плотного поля) и измеряет шаг точек и скорость запросов.
+     * @param points Облако точек
+     * @param pool Пул потоков для построения индекса и оценки времени; null — в текущем потоке
+     */
+    public ReconstructionPlanner(List<Point3D> points, ForkJoinPool pool) {
+        this(points, null, pool);
+    }
+
+    /**
+     * Берёт индекс облака из кеша (или строит и кладёт туда), чтобы реконструкция с тем же кешем
+     * не строила второй индекс, и измеряет шаг точек и скорость запросов.
+     * @param points Облако точек
+     * @param cache Кеш полей, через который реконструкция получит индекс, или null, чтобы построить свой
+     * @param pool Пул потоков для построения индекса и оценки времени; null — в текущем потоке
+     */
+    public ReconstructionPlanner(List<Point3D> points, FieldCache cache, ForkJoinPool pool) {
+        if (points.isEmpty()) {
+            throw new IllegalArgumentException("Cannot plan reconstruction of an empty point cloud");
+        }
+        double[][] pointArray = MarchingCubes.toPointArray(points, mins, maxs);
+        SpatialIndex index = cache != null
+                ? cache.spatialIndex(FieldCache.cloudKey(points), pointArray, pool)
+                : SpatialHashGrid.forPoints(pointArray, pool);
+        this.pointCount = pointArray.length;
+        this.parallelism = pool == null ? 1 : pool.getParallelism();
+        this.pointSpacing = measureSpacing(pointArray, index, pool);
+        this.distances = sampleDistances(index);
+        System.out.printf("Reconstruction planner: %d points, spacing %.5f, %.0f ns per nearest query%n",
+                pointCount, pointSpacing, nanosPerQuery);
+    }
+
+    /**
+     * Медиана по выборке точек среднего расстояния до {@value #SPACING_NEIGHBORS} ближайших соседей.
+     */
+    private static double measureSpacing(double[][] pointArray, SpatialIndex index, ForkJoinPool pool) {
+        int samples = Math.min(pointArray.length, SPACING_SAMPLES);
+        double[][] queries = new double[samples][];
+        for (int s = 0; s < samples; s++) {
+            queries[s] = pointArray[(int) ((long) s * pointArray.length / samples)];
+        }
+        // Первый сосед — сама точка
+        int k = SPACING_NEIGHBORS + 1;
+        int[] indices = new int[samples * k];
+        double[] distancesSquared = new double[samples * k];
+        index.knn(queries, k, indices, distancesSquared, pool);
+        double[] spacing = new double[samples];
+        int count = 0;
+        for (int s = 0; s < samples; s++) {
+            double sum = 0;
+            int neighbors = 0;
+            for (int n = s * k + 1; n < s * k + k; n++) {
+                if (indices[n] >= 0) {
+                    sum += Math.sqrt(distancesSquared[n]);
+                    neighbors++;
+                }
+            }
+            if (neighbors > 0) {
+                spacing[count++] = sum / neighbors;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        Arrays.sort(spacing, 0, count);
+        return spacing[count / 2];
+    }
+
+    /**
+     * Расстояния до облака из случайных точек габаритов — выборка значений поля в узлах сетки любого шага:
+     * по ней оцениваются процентиль уровня и время запроса. Время измеряется на последней четверти выборки,
+     * остальные запросы прогревают код поиска.
+     */
+    private float[] sampleDistances(SpatialIndex index) {
+        Random random = new Random(DISTANCE_SAMPLES);
+        float[] distances = new float[DISTANCE_SAMPLES];
+        long start = 0;
+        for (int s = 0; s < DISTANCE_SAMPLES; s++) {
+            if (s == DISTANCE_SAMPLES - TIMED_SAMPLES) {
+                start = System.nanoTime();
+            }
+            double x = mins[0] + random.nextDouble() * (maxs[0] - mins[0]);
+            double y = mins[1] + random.nextDouble() * (maxs[1] - mins[1]);
+            double z = mins[2] + random.nextDouble() * (maxs[2] - mins[2]);
+            distances[s] = (float) Math.sqrt(index.nearestDistanceSquared(x, y, z));
+        }
+        nanosPerQuery = (double) (System.nanoTime() - start) / TIMED_SAMPLES;
+        Arrays.sort(distances);
+        return distances;
+    }
+
+    /**
+     * Оценка уровня изоповерхности для процентиля (0-100) значений поля.
+     */
+    public double estimateIsoLevel(double isoLevelPercentile) {
+        return distances[(int) Math.round(isoLevelPercentile / 100.0 * (distances.length - 1))];
+    }
+
+
+    public double getPointSpacing() {
+        return pointSpacing;
+    }
+
+    /**
+     * Размер вокселя порядка шага облака: мельче него сетка не добавляет деталей, только память.
+     */
+    public double getSuggestedVoxelSize() {
+        return pointSpacing;
+    }
+
+    /**
+     * Бюджет по умолчанию — 60% кучи, свободной от уже занятой памяти (с учётом ещё не выделенной части -Xmx).
+     */
+    public static long defaultBudgetBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return (long) ((runtime.maxMemory() - used) * 0.6);
+    }
+
+    /**
+     * Подбирает план для запрошенного размера вокселя. Если плотная сетка не помещается в бюджет,
+     * выбирается квантованное, затем разреженное хранилище, если не помещается и оно — воксель увеличивается,
+     * пока одно из хранилищ не поместится. Для {@link SurfaceEngine#ADAPTIVE} память оценивается по площади
+     * поверхности, хранилище не меняется, а воксель увеличивается, только если не помещается октодерево.
+     * Ширина полосы разреженного хранилища увеличивается, если оценка уровня выходит за неё
+     * (иначе процентиль попадёт на фоновые значения и меш окажется пустым).
+     * @param voxelSize Запрошенный размер вокселя
+     * @param isoLevelPercentile Процентиль для уровня изоповерхности
+     * @param options Настройки реконструкции (способ извлечения поверхности, хранилище, ширина полосы, нормали)
+     * @param budgetBytes Бюджет памяти в байтах
+     * @return План с размером вокселя не меньше запрошенного
+     */
+    public Plan plan(double voxelSize, double isoLevelPercentile, ReconstructionOptions options, long budgetBytes) {
+        if (voxelSize <= 0) {
+            throw new IllegalArgumentException("Voxel size must be positive: " + voxelSize);
+        }
+        double isoLevel = estimateIsoLevel(isoLevelPercentile);
+        double size = voxelSize;
+        Plan requested = null;
+        for (int step = 0; step <= MAX_GROWTH_STEPS; step++, size *= VOXEL_GROWTH) {
+            requested = estimate(voxelSize, size, options.getStorage(), isoLevel, options, budgetBytes);
+            if (requested.fitsBudget()) {
+                return requested;
+            }
+            if (requested.isAdaptive()) {
+                continue; // Октодерево не использует хранилище поля, остаётся только увеличить воксель
+            }
+            if (options.getStorage() == GridStorage.DENSE) {
+                Plan quantized = estimate(voxelSize, size, GridStorage.QUANTIZED, isoLevel, options, budgetBytes);
+                if (quantized.fitsBudget()) {
+                    return quantized;
+                }
+            }
+            if (options.getStorage() != GridStorage.SPARSE) {
+                Plan sparse = estimate(voxelSize, size, GridStorage.SPARSE, isoLevel, options, budgetBytes);
+                if (sparse.fitsBudget()) {
+                    return sparse;
+                }
+            }
+        }
+        return requested;
+    }
+
+    private Plan estimate(double requestedVoxelSize, double voxelSize, GridStorage storage, double isoLevel,
+                          ReconstructionOptions options, long budgetBytes) {
+        int nx = MarchingCubes.gridSize(mins[0], maxs[0], voxelSize);
+        int ny = MarchingCubes.gridSize(mins[1], maxs[1], voxelSize);
+        int nz = MarchingCubes.gridSize(mins[2], maxs[2], voxelSize);
+        double nodes = (double) nx * ny * nz;
+
+        // Площадь поверхности по шагу облака; уровень вокруг неориентированного облака даёт два листа
+        double area = pointCount * pointSpacing * pointSpacing;
+        double faces = 2 * 3 * area / (voxelSize * voxelSize);
+        double vertexBytes = options.isVertexNormals() ? 24 : 12;
+        // Массивы меша растут в 1.5 раза, слэбы копируются в общий меш
+        double meshBytes = (faces / 2 * vertexBytes + faces * 12) * 2.5;
+
+        double fieldBytes;
+        double millis;
+        boolean possible;
+        double band = options.getNarrowBandWidth();
+        boolean adaptive = options.getSurfaceEngine() == SurfaceEngine.ADAPTIVE;
+        if (adaptive) {
+            // Не больше листьев размером с воксель, чем ячеек Marching Cubes у поверхности (две грани на ячейку)
+            double leaves = faces / 2;
+            fieldBytes = leaves * ADAPTIVE_LEAF_BYTES;
+            millis = leaves * ADAPTIVE_QUERIES_PER_LEAF * nanosPerQuery / parallelism / 1e6;
+            possible = Math.max(nx, Math.max(ny, nz)) <= ADAPTIVE_MAX_NODES;
+        } else if (storage == GridStorage.SPARSE) {
+            band = Math.max(band, Math.ceil(isoLevel / voxelSize) + 1);
+            int brick = SparseGrid.LEAF_DIM;
+            double bricks = area / (brick * voxelSize * brick * voxelSize) * (Math.ceil((2 * band + 1) / brick) + 1);
+            fieldBytes = bricks * SparseGrid.LEAF_SIZE * Float.BYTES;
+            double bandNodes = Math.pow(2 * Math.ceil(band) + 1, 3);
+            millis = (pointCount * bandNodes * SPLAT_NANOS + nodes * NODE_NANOS) / parallelism / 1e6;
+            possible = (long) ny * nz <= Integer.MAX_VALUE - 8;
+        } else if (storage == GridStorage.QUANTIZED) {
+            int brick = QuantizedGrid.BRICK;
+            fieldBytes = nodes * Character.BYTES + nodes / (brick * brick * brick) * 2 * Float.BYTES;
+            millis = nodes * (nanosPerQuery + NODE_NANOS) / parallelism / 1e6;
+            possible = nodes <= Integer.MAX_VALUE - 8;
+        } else {
+            fieldBytes = nodes * Float.BYTES;
+            millis = nodes * (nanosPerQuery + NODE_NANOS) / parallelism / 1e6;
+            possible = nodes <= Integer.MAX_VALUE - 8;
+        }
+        // Пирамида min/max блоков 8³ со всеми уровнями
+        double pyramidBytes = adaptive ? 0
+                : nodes / (BrickPyramid.BRICK * BrickPyramid.BRICK * BrickPyramid.BRICK) * 2 * Float.BYTES * 8 / 7;
+        double totalBytes = (double) pointCount * BYTES_PER_POINT + fieldBytes + pyramidBytes + meshBytes;
+        return new Plan(requestedVoxelSize, voxelSize, storage, adaptive, band, nx, ny, nz, isoLevel, saturate(fieldBytes),
+                possible ? saturate(totalBytes) : Long.MAX_VALUE, budgetBytes, saturate(millis), saturate(faces),
+                pointSpacing);
+    }
+
+    private static long saturate(double value) {
+        return value >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) Math.ceil(value);
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes == Long.MAX_VALUE) {
+            return "too much";
+        }
+        if (bytes >= 1L << 30) {
+            return String.format("%.1f GB", bytes / (double) (1L << 30));
+        }
+        return String.format("%d MB", bytes >> 20);
+    }
+
+    static String formatMillis(long millis) {
+        return millis >= 10_000 ? String.format("%d s", millis / 1000) : millis + " ms";
+    }
+}
@@ -0,0 +1,30 @@
+package working_project.marching_cubes;
+
+/**
+ * Скалярное поле на регулярной сетке узлов nx * ny * nz с началом в mins и шагом voxelSize.
+ * Реализации различаются способом хранения значений; Marching Cubes читает поле
+ * плоскостями x = const, поэтому хранилищу достаточно уметь выдавать плоскость целиком.
+ */
+public interface ScalarField {
+    int getNx();
+
+    int getNy();
+
+    int getNz();
+
+    double[] getMins();
+
+    double getVoxelSize();
+
+    float get(int i, int j, int k);
+
+    /**
+     * Копирует значения плоскости x = i в plane; узел (j, k) записывается в plane[j * nz + k].
+     */
+    void readPlane(int i, float[] plane);
+
+    /**
+     * Оценка памяти, занимаемой значениями поля, в байтах.
+     */
+    long estimateMemoryBytes();
+}
@@ -0,0 +1,105 @@
+package working_project.marching_cubes;
+
+/**
+ * Регулярная воксельная сетка скалярного поля.
+ * Значения хранятся в одном непрерывном массиве float (порядок x, y, z — z меняется быстрее всего),
+ * а координаты центров вокселей не хранятся и вычисляются из mins и voxelSize по требованию.
+ */
+public class ScalarGrid implements ScalarField {
+    private final int nx, ny, nz;
+    private final double[] mins;
+    private final double voxelSize;
+    private final float[] values;
+
+    /**
+     * Создаёт сетку, заполненную нулями.
+     * @param nx Число узлов по X
+     * @param ny Число узлов по Y
+     * @param nz Число узлов по Z
+     * @param mins Координаты узла (0, 0, 0)
+     * @param voxelSize Размер вокселя
+     */
+    public ScalarGrid(int nx, int ny, int nz, double[] mins, double voxelSize) {
+        long size = (long) nx * ny * nz;
+        if (nx <= 0 || ny <= 0 || nz <= 0 || size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Unsupported voxel grid size: " + nx + "x" + ny + "x" + nz);
+        }
+        this.nx = nx;
+        this.ny = ny;
+        this.nz = nz;
+        this.mins = mins.clone();
+        this.voxelSize = voxelSize;
+        this.values = new float[(int) size];
+    }
+
+    /**
+     * Линейный индекс узла (i, j, k) в массиве значений.
+     */
+    public int index(int i, int j, int k) {
+        return (i * ny + j) * nz + k;
+    }
+
+    @Override
+    public float get(int i, int j, int k) {
+        return values[(i * ny + j) * nz + k];
+    }
+
+    public void set(int i, int j, int k, float value) {
+        values[(i * ny + j) * nz + k] = value;
+    }
+
+    // Координаты центра вокселя в мировой системе
+    public double x(int i) {
+        return mins[0] + i * voxelSize;
+    }
+
+    public double y(int j) {
+        return mins[1] + j * voxelSize;
+    }
+
+    public double z(int k) {
+        return mins[2] + k * voxelSize;
+    }
+
+    @Override
+    public int getNx() {
+        return nx;
+    }
+
+    @Override
+    public int getNy() {
+        return ny;
+    }
+
+    @Override
+    public int getNz() {
+        return nz;
+    }
+
+    @Override
+    public double[] getMins() {
+        return mins.clone();
+    }
+
+    @Override
+    public double getVoxelSize() {
+        return voxelSize;
+    }
+
+    @Override
+    public void readPlane(int i, float[] plane) {
+        System.arraycopy(values, i * ny * nz, plane, 0, ny * nz);
+    }
+
+    @Override
+    public long estimateMemoryBytes() {
+        return (long) values.length * Float.BYTES;
+    }
+
+    /**
+     * Прямой доступ к массиву значений (без копирования) для внутренних алгоритмов пакета.
+     */
+    float[] values() {
+        return values;
+    }
+}
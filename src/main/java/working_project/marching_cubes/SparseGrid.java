@@ -0,0 +1,223 @@
+package working_project.marching_cubes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Разреженная иерархическая сетка скалярного поля (в духе VDB).
+ * Значения хранятся в листовых блоках 8³, которые сгруппированы во внутренние узлы по 16³ блоков
+ * (128³ вокселей); внутренние узлы лежат в хеш-таблице по своим координатам. Блок создаётся только
+ * при первой записи в него, все остальные узлы имеют постоянное фоновое значение.
+ * Поэтому память растёт с площадью поверхности облака, а не с объёмом габаритов.
+ * <p>
+ * Запись потокобезопасна: блоки создаются через CAS, а {@link #min} обновляет значение атомарно.
+ */
+public class SparseGrid implements ScalarField {
+    static final int LEAF_LOG2 = 3;
+    static final int LEAF_DIM = 1 << LEAF_LOG2;
+    static final int LEAF_MASK = LEAF_DIM - 1;
+    static final int LEAF_SIZE = LEAF_DIM * LEAF_DIM * LEAF_DIM;
+    private static final int NODE_LOG2 = 4; // блоков на сторону внутреннего узла
+    private static final int NODE_DIM = 1 << NODE_LOG2;
+    private static final int NODE_MASK = NODE_DIM - 1;
+    private static final int NODE_SHIFT = LEAF_LOG2 + NODE_LOG2;
+
+    private final int nx, ny, nz;
+    private final double[] mins;
+    private final double voxelSize;
+    private final float background;
+    private final Map<Long, InternalNode> root = new ConcurrentHashMap<>();
+    private final AtomicInteger leafCount = new AtomicInteger();
+
+    private static class InternalNode {
+        final AtomicReferenceArray<float[]> leaves = new AtomicReferenceArray<>(NODE_DIM * NODE_DIM * NODE_DIM);
+    }
+
+    /**
+     * Создаёт пустую сетку, все узлы которой равны background.
+     */
+    public SparseGrid(int nx, int ny, int nz, double[] mins, double voxelSize, float background) {
+        if (nx <= 0 || ny <= 0 || nz <= 0 || (long) ny * nz > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Unsupported voxel grid size: " + nx + "x" + ny + "x" + nz);
+        }
+        this.nx = nx;
+        this.ny = ny;
+        this.nz = nz;
+        this.mins = mins.clone();
+        this.voxelSize = voxelSize;
+        this.background = background;
+    }
+
+    private static long nodeKey(int i, int j, int k) {
+        return ((long) (i >> NODE_SHIFT) << 42) | ((long) (j >> NODE_SHIFT) << 21) | (k >> NODE_SHIFT);
+    }
+
+    private static int leafSlot(int i, int j, int k) {
+        return ((((i >> LEAF_LOG2) & NODE_MASK) << NODE_LOG2 | ((j >> LEAF_LOG2) & NODE_MASK)) << NODE_LOG2)
+                | ((k >> LEAF_LOG2) & NODE_MASK);
+    }
+
+    /**
+     * Индекс узла (i, j, k) внутри его листового блока.
+     */
+    static int voxelSlot(int i, int j, int k) {
+        return (((i & LEAF_MASK) << LEAF_LOG2 | (j & LEAF_MASK)) << LEAF_LOG2) | (k & LEAF_MASK);
+    }
+
+    /**
+     * Возвращает листовой блок, содержащий узел (i, j, k), или null, если он ещё не создан.
+     */
+    float[] leaf(int i, int j, int k) {
+        InternalNode node = root.get(nodeKey(i, j, k));
+        return node == null ? null : node.leaves.get(leafSlot(i, j, k));
+    }
+
+    /**
+     * Возвращает листовой блок, содержащий узел (i, j, k), создавая его (заполненным фоном) при необходимости.
+     */
+    float[] touchLeaf(int i, int j, int k) {
+        InternalNode node = root.computeIfAbsent(nodeKey(i, j, k), key -> new InternalNode());
+        int slot = leafSlot(i, j, k);
+        float[] leaf = node.leaves.get(slot);
+        if (leaf == null) {
+            float[] created = new float[LEAF_SIZE];
+            Arrays.fill(created, background);
+            if (node.leaves.compareAndSet(slot, null, created)) {
+                leafCount.incrementAndGet();
+                leaf = created;
+            } else {
+                leaf = node.leaves.get(slot);
+            }
+        }
+        return leaf;
+    }
+
+    @Override
+    public float get(int i, int j, int k) {
+        float[] leaf = leaf(i, j, k);
+        return leaf == null ? background : leaf[voxelSlot(i, j, k)];
+    }
+
+    public void set(int i, int j, int k, float value) {
+        touchLeaf(i, j, k)[voxelSlot(i, j, k)] = value;
+    }
+
+    /**
+     * Атомарно записывает value в узел (i, j, k), если оно меньше текущего значения.
+     */
+    public void min(int i, int j, int k, float value) {
+        if (value < background) {
+            NarrowBandField.atomicMin(touchLeaf(i, j, k), voxelSlot(i, j, k), value);
+        }
+    }
+
+    @Override
+    public void readPlane(int i, float[] plane) {
+        Arrays.fill(plane, 0, ny * nz, background);
+        int li = i & LEAF_MASK;
+        for (Map.Entry<Long, InternalNode> entry : root.entrySet()) {
+            long key = entry.getKey();
+            if ((int) (key >>> 42) != i >> NODE_SHIFT) continue;
+            int nodeJ = (int) ((key >>> 21) & 0x1FFFFF) << NODE_SHIFT;
+            int nodeK = (int) (key & 0x1FFFFF) << NODE_SHIFT;
+            AtomicReferenceArray<float[]> leaves = entry.getValue().leaves;
+            int slotX = ((i >> LEAF_LOG2) & NODE_MASK) << (2 * NODE_LOG2);
+            for (int lj = 0; lj < NODE_DIM; lj++) {
+                for (int lk = 0; lk < NODE_DIM; lk++) {
+                    float[] leaf = leaves.get(slotX | lj << NODE_LOG2 | lk);
+                    if (leaf == null) continue;
+                    int j0 = nodeJ + (lj << LEAF_LOG2);
+                    int k0 = nodeK + (lk << LEAF_LOG2);
+                    int kCount = Math.min(LEAF_DIM, nz - k0);
+                    for (int dj = 0; dj < LEAF_DIM && j0 + dj < ny; dj++) {
+                        System.arraycopy(leaf, (li << LEAF_LOG2 | dj) << LEAF_LOG2, plane, (j0 + dj) * nz + k0, kCount);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Созданный листовой блок и координаты его узла (0, 0, 0) в сетке.
+     */
+    static final class Leaf {
+        final float[] values;
+        final int i0, j0, k0;
+
+        Leaf(float[] values, int i0, int j0, int k0) {
+            this.values = values;
+            this.i0 = i0;
+            this.j0 = j0;
+            this.k0 = k0;
+        }
+    }
+
+    /**
+     * Снимок созданных листовых блоков (крайние блоки могут выходить за границы сетки).
+     */
+    List<Leaf> leaves() {
+        List<Leaf> result = new ArrayList<>(leafCount.get());
+        for (Map.Entry<Long, InternalNode> entry : root.entrySet()) {
+            long key = entry.getKey();
+            int nodeI = (int) (key >>> 42) << NODE_SHIFT;
+            int nodeJ = (int) ((key >>> 21) & 0x1FFFFF) << NODE_SHIFT;
+            int nodeK = (int) (key & 0x1FFFFF) << NODE_SHIFT;
+            AtomicReferenceArray<float[]> leaves = entry.getValue().leaves;
+            for (int slot = 0; slot < leaves.length(); slot++) {
+                float[] leaf = leaves.get(slot);
+                if (leaf == null) continue;
+                result.add(new Leaf(leaf,
+                        nodeI + ((slot >> (2 * NODE_LOG2)) << LEAF_LOG2),
+                        nodeJ + (((slot >> NODE_LOG2) & NODE_MASK) << LEAF_LOG2),
+                        nodeK + ((slot & NODE_MASK) << LEAF_LOG2)));
+            }
+        }
+        return result;
+    }
+
+    public float getBackground() {
+        return background;
+    }
+
+    public int getLeafCount() {
+        return leafCount.get();
+    }
+
+    /**
+     * Оценка памяти под значения: листовые блоки и массивы ссылок внутренних узлов.
+     */
+    @Override
+    public long estimateMemoryBytes() {
+        return (long) leafCount.get() * LEAF_SIZE * Float.BYTES + (long) root.size() * NODE_DIM * NODE_DIM * NODE_DIM * 8;
+    }
+
+    @Override
+    public int getNx() {
+        return nx;
+    }
+
+    @Override
+    public int getNy() {
+        return ny;
+    }
+
+    @Override
+    public int getNz() {
+        return nz;
+    }
+
+    @Override
+    public double[] getMins() {
+        return mins.clone();
+    }
+
+    @Override
+    public double getVoxelSize() {
+        return voxelSize;
+    }
+}
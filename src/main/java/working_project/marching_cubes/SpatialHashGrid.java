@@ -0,0 +1,377 @@
+package working_project.marching_cubes;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Равномерная сетка ячеек для поиска ближайших соседей — альтернатива {@link KDTree} для облаков
+ * с примерно равномерной плотностью. Размер ячейки выбирается так, чтобы в среднем на ячейку приходилось
+ * {@link #POINTS_PER_CELL} точки. Точки раскладываются по ячейкам сортировкой подсчётом в формат CSR:
+ * точки ячейки c лежат подряд на позициях [cellStart[c], cellStart[c + 1]) массива координат.
+ * <p>
+ * Ближайший сосед ищется расширяющимися слоями ячеек вокруг ячейки запроса, пока расстояние до ещё
+ * не просмотренных ячеек не станет больше найденного. Поэтому запросы вдали от точек (в пустых областях
+ * габаритов) обходятся дорого; выбор между сеткой и деревом делает {@link #forPoints}.
+ */
+class SpatialHashGrid implements SpatialIndex {
+    private static final double POINTS_PER_CELL = 2;
+    private static final long MAX_CELLS = 1 << 28;
+    // Наибольшее число точек выборки для оценки заполненности
+    private static final int OCCUPANCY_SAMPLE = 1 << 18;
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final double[] origin = new double[3];
+    private final double cellSize;
+    private final int cx, cy, cz;
+    private final int[] cellStart;
+    private final float[] coords;
+    private final int[] indices; // Индекс точки во входном массиве для каждой позиции
+    private final int size;
+    private final int occupiedCells;
+
+    /**
+     * Строит сетку; точки раскладываются по ячейкам параллельно.
+     * @param points Точки облака
+     * @param pool Пул потоков; null — построение в текущем потоке
+     */
+    public SpatialHashGrid(double[][] points, ForkJoinPool pool) {
+        size = points.length;
+        double[] extent = bounds(points, origin);
+        double cell = cellSizeFor(extent, size);
+        cellSize = cell;
+        cx = cellsAlong(extent[0], cell);
+        cy = cellsAlong(extent[1], cell);
+        cz = cellsAlong(extent[2], cell);
+        int cells = cx * cy * cz;
+
+        // Сортировка подсчётом: номер ячейки каждой точки, размеры ячеек, префиксные суммы, раскладка
+        int[] cellOf = new int[size];
+        cellStart = new int[cells + 1];
+        int grain = Math.max(4096, ParallelLoops.grainFor(pool, size));
+        ParallelLoops.forRange(pool, 0, size, grain, (from, to) -> {
+            for (int n = from; n < to; n++) {
+                double[] p = points[n];
+                int c = (cell(p[0], 0) * cy + cell(p[1], 1)) * cz + cell(p[2], 2);
+                cellOf[n] = c;
+                INTS.getAndAdd(cellStart, c + 1, 1);
+            }
+        });
+        int occupied = 0;
+        for (int c = 0; c < cells; c++) {
+            if (cellStart[c + 1] > 0) occupied++;
+            cellStart[c + 1] += cellStart[c];
+        }
+        occupiedCells = occupied;
+
+        int[] cursor = cellStart.clone();
+        coords = new float[size * 3];
+        indices = new int[size];
+        ParallelLoops.forRange(pool, 0, size, grain, (from, to) -> {
+            for (int n = from; n < to; n++) {
+                int position = (int) INTS.getAndAdd(cursor, cellOf[n], 1);
+                indices[position] = n;
+            }
+        });
+        // Порядок внутри ячейки после параллельной раскладки случаен; восстанавливаем исходный
+        ParallelLoops.forRange(pool, 0, cells, Math.max(4096, ParallelLoops.grainFor(pool, cells)), (from, to) -> {
+            for (int c = from; c < to; c++) {
+                for (int a = cellStart[c] + 1; a < cellStart[c + 1]; a++) {
+                    int index = indices[a];
+                    int b = a - 1;
+                    while (b >= cellStart[c] && indices[b] > index) {
+                        indices[b + 1] = indices[b];
+                        b--;
+                    }
+                    indices[b + 1] = index;
+                }
+                for (int position = cellStart[c]; position < cellStart[c + 1]; position++) {
+                    double[] p = points[indices[position]];
+                    coords[3 * position] = (float) p[0];
+                    coords[3 * position + 1] = (float) p[1];
+                    coords[3 * position + 2] = (float) p[2];
+                }
+            }
+        });
+    }
+
+    /**
+     * Выбирает индекс для запросов во всех узлах воксельной сетки. Сейчас это всегда KD-дерево:
+     * на облаках из 1 000 000 точек ({@link SpatialIndexComparison}) сетка медленнее дерева при любой
+     * заполненности габаритов — в 2 раза при доле непустых ячеек 0.79, наравне при 0.85 (облако заполняет
+     * весь объём), а на поверхностных облаках, где большинство узлов далеко от точек, — на порядки.
+     * Сетку стоит выбирать по {@link #estimateOccupancy}, только когда сравнение на облаках
+     * нужного размера покажет её выигрыш.
+     */
+    static SpatialIndex forPoints(double[][] points, ForkJoinPool pool) {
+        return new KDTree(points, pool);
+    }
+
+    /**
+     * Оценивает {@link #getOccupancy()} без построения сетки: каждая stride-я точка (не более
+     * {@link #OCCUPANCY_SAMPLE} точек) раскладывается по сетке, размер ячеек которой подобран для числа
+     * взятых точек так же, как для всего облака, поэтому в среднем на ячейку приходится столько же точек.
+     * Для облаков не больше выборки результат совпадает с точным. Для поверхностных облаков оценка
+     * завышена: у более крупных ячеек выборки доля, которую пересекает поверхность, больше.
+     */
+    static double estimateOccupancy(double[][] points) {
+        if (points.length == 0) {
+            return 1;
+        }
+        int stride = (points.length + OCCUPANCY_SAMPLE - 1) / OCCUPANCY_SAMPLE;
+        int sample = (points.length + stride - 1) / stride;
+        double[] origin = new double[3];
+        double[] extent = bounds(points, origin);
+        double cell = cellSizeFor(extent, sample);
+        int sx = cellsAlong(extent[0], cell), sy = cellsAlong(extent[1], cell), sz = cellsAlong(extent[2], cell);
+        BitSet occupied = new BitSet();
+        for (long n = 0; n < points.length; n += stride) {
+            double[] p = points[(int) n];
+            int i = Math.min(sx - 1, (int) ((p[0] - origin[0]) / cell));
+            int j = Math.min(sy - 1, (int) ((p[1] - origin[1]) / cell));
+            int k = Math.min(sz - 1, (int) ((p[2] - origin[2]) / cell));
+            occupied.set((i * sy + j) * sz + k);
+        }
+        return (double) occupied.cardinality() / ((long) sx * sy * sz);
+    }
+
+    /**
+     * Заполняет origin минимальными координатами точек и возвращает размеры габаритов.
+     */
+    private static double[] bounds(double[][] points, double[] origin) {
+        double[] extent = new double[3];
+        if (points.length == 0) {
+            return extent;
+        }
+        double[] maxs = new double[3];
+        for (int d = 0; d < 3; d++) {
+            origin[d] = Double.POSITIVE_INFINITY;
+            maxs[d] = Double.NEGATIVE_INFINITY;
+        }
+        for (double[] p : points) {
+            for (int d = 0; d < 3; d++) {
+                origin[d] = Math.min(origin[d], p[d]);
+                maxs[d] = Math.max(maxs[d], p[d]);
+            }
+        }
+        for (int d = 0; d < 3; d++) {
+            extent[d] = maxs[d] - origin[d];
+        }
+        return extent;
+    }
+
+    /**
+     * Ребро ячейки из объёма (площади, длины для вырожденных облаков) на заданное число точек.
+     */
+    private static double cellSizeFor(double[] extent, int count) {
+        double measure = 1;
+        int dims = 0;
+        for (double e : extent) {
+            if (e > 0) {
+                measure *= e;
+                dims++;
+            }
+        }
+        double target = Math.max(1, count / POINTS_PER_CELL);
+        double cell = dims == 0 ? 1 : Math.pow(measure / target, 1.0 / dims);
+        while (cellCount(extent, cell) > MAX_CELLS) {
+            cell *= 1.25;
+        }
+        return cell;
+    }
+
+    private static long cellCount(double[] extent, double cell) {
+        return (long) cellsAlong(extent[0], cell) * cellsAlong(extent[1], cell) * cellsAlong(extent[2], cell);
+    }
+
+    private static int cellsAlong(double extent, double cell) {
+        return (int) Math.min(MAX_CELLS, (long) (extent / cell) + 1);
+    }
+
+    private int cellsAlong(int axis) {
+        return axis == 0 ? cx : axis == 1 ? cy : cz;
+    }
+
+    // Ячейка координаты value по оси axis; точки вне сетки прижимаются к крайним ячейкам
+    private int cell(double value, int axis) {
+        int c = (int) Math.floor((value - origin[axis]) / cellSize);
+        return Math.max(0, Math.min(cellsAlong(axis) - 1, c));
+    }
+
+    /**
+     * Доля непустых ячеек сетки.
+     */
+    public double getOccupancy() {
+        return (double) occupiedCells / ((long) cx * cy * cz);
+    }
+
+    @Override
+    public NearestNeighbor nearest(double[] query) {
+        int best = nearest(query[0], query[1], query[2], 1.0);
+        if (best < 0) {
+            return new NearestNeighbor(null, Double.POSITIVE_INFINITY, -1);
+        }
+        double[] point = {coords[3 * best], coords[3 * best + 1], coords[3 * best + 2]};
+        return new NearestNeighbor(point, Math.sqrt(distanceSquared(best, query[0], query[1], query[2])), indices[best]);
+    }
+
+    @Override
+    public double nearestDistanceSquared(double x, double y, double z) {
+        int best = nearest(x, y, z, 1.0);
+        return best < 0 ? Double.POSITIVE_INFINITY : distanceSquared(best, x, y, z);
+    }
+
+    /**
+     * Приближённый поиск: расширение слоёв прекращается, когда непросмотренные ячейки дальше
+     * лучшего найденного расстояния, делённого на (1 + epsilon).
+     */
+    @Override
+    public double nearestDistanceSquared(double x, double y, double z, double epsilon) {
+        int best = nearest(x, y, z, (1 + epsilon) * (1 + epsilon));
+        return best < 0 ? Double.POSITIVE_INFINITY : distanceSquared(best, x, y, z);
+    }
+
+    /**
+     * Позиция ближайшей точки (-1 для пустой сетки). Слои ячеек на расстоянии r (по Чебышёву)
+     * от ячейки запроса просматриваются по очереди, пока расстояние до непросмотренных ячеек, умноженное
+     * на sqrt(pruneScale), меньше лучшего. Внутри слоя пропускаются строки и ячейки, которые
+     * целиком дальше лучшей найденной точки.
+     */
+    private int nearest(double x, double y, double z, double pruneScale) {
+        if (size == 0) return -1;
+        int qi = cell(x, 0), qj = cell(y, 1), qk = cell(z, 2);
+        int best = -1;
+        double bestD2 = Double.POSITIVE_INFINITY;
+        for (int r = 0; ; r++) {
+            for (int i = Math.max(0, qi - r); i <= Math.min(cx - 1, qi + r); i++) {
+                boolean iEdge = Math.abs(i - qi) == r;
+                double gi = gapSquared(i, x, 0);
+                if (gi * pruneScale >= bestD2) continue;
+                for (int j = Math.max(0, qj - r); j <= Math.min(cy - 1, qj + r); j++) {
+                    boolean edge = iEdge || Math.abs(j - qj) == r;
+                    double gij = gi + gapSquared(j, y, 1);
+                    if (gij * pruneScale >= bestD2) continue;
+                    int kFrom = Math.max(0, qk - r), kTo = Math.min(cz - 1, qk + r);
+                    // Внутри слоя по i и j остаются только две крайние ячейки по k
+                    int kStep = edge || r == 0 ? 1 : 2 * r;
+                    for (int k = edge ? kFrom : qk - r; k <= kTo; k += kStep) {
+                        if (k < 0) continue;
+                        if ((gij + gapSquared(k, z, 2)) * pruneScale >= bestD2) continue;
+                        int c = (i * cy + j) * cz + k;
+                        for (int n = cellStart[c]; n < cellStart[c + 1]; n++) {
+                            double d2 = distanceSquared(n, x, y, z);
+                            if (d2 < bestD2) {
+                                best = n;
+                                bestD2 = d2;
+                            }
+                        }
+                    }
+                }
+            }
+            double bound = unvisitedDistance(r, qi, qj, qk, x, y, z);
+            if (bound * bound * pruneScale >= bestD2) {
+                return best;
+            }
+        }
+    }
+
+    @Override
+    public void knn(double x, double y, double z, KnnHeap heap) {
+        if (size == 0) return;
+        int qi = cell(x, 0), qj = cell(y, 1), qk = cell(z, 2);
+        for (int r = 0; ; r++) {
+            for (int i = Math.max(0, qi - r); i <= Math.min(cx - 1, qi + r); i++) {
+                boolean iEdge = Math.abs(i - qi) == r;
+                for (int j = Math.max(0, qj - r); j <= Math.min(cy - 1, qj + r); j++) {
+                    boolean edge = iEdge || Math.abs(j - qj) == r;
+                    int kFrom = Math.max(0, qk - r), kTo = Math.min(cz - 1, qk + r);
+                    int kStep = edge || r == 0 ? 1 : 2 * r;
+                    for (int k = edge ? kFrom : qk - r; k <= kTo; k += kStep) {
+                        if (k < 0) continue;
+                        int c = (i * cy + j) * cz + k;
+                        for (int n = cellStart[c]; n < cellStart[c + 1]; n++) {
+                            double d2 = distanceSquared(n, x, y, z);
+                            if (d2 < heap.bound()) {
+                                heap.offer(indices[n], d2);
+                            }
+                        }
+                    }
+                }
+            }
+            double bound = unvisitedDistance(r, qi, qj, qk, x, y, z);
+            if (bound * bound >= heap.bound()) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void radius(double x, double y, double z, double radiusSquared, RadiusCursor cursor) {
+        if (size == 0) return;
+        double r = Math.sqrt(radiusSquared);
+        int iTo = cell(x + r, 0), jTo = cell(y + r, 1), kTo = cell(z + r, 2);
+        for (int i = cell(x - r, 0); i <= iTo; i++) {
+            for (int j = cell(y - r, 1); j <= jTo; j++) {
+                int row = (i * cy + j) * cz;
+                for (int n = cellStart[row + cell(z - r, 2)]; n < cellStart[row + kTo + 1]; n++) {
+                    double d2 = distanceSquared(n, x, y, z);
+                    if (d2 <= radiusSquared) {
+                        cursor.add(indices[n], d2);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Нижняя граница расстояния от запроса до точек вне куба ячеек [q - r, q + r].
+     * Грани куба, совпадающие с границей сетки, не учитываются: за ними точек нет.
+     * Если куб покрывает всю сетку, возвращается бесконечность.
+     */
+    private double unvisitedDistance(int r, int qi, int qj, int qk, double x, double y, double z) {
+        double bound = Math.min(faceDistance(r, qi, x, 0), Math.min(faceDistance(r, qj, y, 1), faceDistance(r, qk, z, 2)));
+        // Запас на погрешность округления при раскладке точек по ячейкам
+        return Math.max(0, bound - cellSize * 1e-9);
+    }
+
+    // Квадрат расстояния от value до слоя ячеек с номером index по оси axis (0 внутри слоя)
+    private double gapSquared(int index, double value, int axis) {
+        double low = origin[axis] + index * cellSize;
+        double gap = Math.max(low - value, value - (low + cellSize));
+        // Запас на погрешность округления, как в unvisitedDistance
+        gap -= cellSize * 1e-9;
+        return gap > 0 ? gap * gap : 0;
+    }
+
+    // Расстояние от value до ближайшей внутренней грани куба [q - r, q + r] по оси axis
+    private double faceDistance(int r, int q, double value, int axis) {
+        double distance = Double.POSITIVE_INFINITY;
+        if (q - r > 0) {
+            distance = value - (origin[axis] + (q - r) * cellSize);
+        }
+        if (q + r < cellsAlong(axis) - 1) {
+            distance = Math.min(distance, origin[axis] + (q + r + 1) * cellSize - value);
+        }
+        return distance;
+    }
+
+    // квадрат евклидова расстояния от точки на позиции n до (x, y, z)
+    private double distanceSquared(int n, double x, double y, double z) {
+        int c = 3 * n;
+        double dx = x - coords[c];
+        double dy = y - coords[c + 1];
+        double dz = z - coords[c + 2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long estimateMemoryBytes() {
+        return (long) coords.length * Float.BYTES + ((long) indices.length + cellStart.length) * Integer.BYTES;
+    }
+}
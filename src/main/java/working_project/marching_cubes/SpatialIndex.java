@@ -0,0 +1,136 @@
+package working_project.marching_cubes;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Пространственный индекс облака точек для поиска ближайших соседей.
+ * Реализации ({@link KDTree}, {@link SpatialHashGrid}) после построения используются только на чтение,
+ * поэтому запросы можно выполнять из нескольких потоков одновременно.
+ * Пакетные запросы реализованы здесь один раз поверх одиночных.
+ */
+interface SpatialIndex {
+
+    /**
+     * Ближайшая точка облака.
+     */
+    class NearestNeighbor {
+        public double[] point;
+        public double distance;
+        public int index; // Индекс точки во входном массиве
+        NearestNeighbor(double[] point, double distance, int index) {
+            this.point = point;
+            this.distance = distance;
+            this.index = index;
+        }
+    }
+
+    NearestNeighbor nearest(double[] query);
+
+    /**
+     * Квадрат расстояния от (x, y, z) до ближайшей точки облака (бесконечность для пустого индекса).
+     * В отличие от {@link #nearest(double[])} не выделяет память.
+     */
+    double nearestDistanceSquared(double x, double y, double z);
+
+    /**
+     * Приближённый квадрат расстояния до ближайшей точки: найденная точка не дальше истинной
+     * ближайшей больше чем в (1 + epsilon) раз. При epsilon = 0 совпадает с точным поиском.
+     */
+    double nearestDistanceSquared(double x, double y, double z, double epsilon);
+
+    /**
+     * Передаёт в heap кандидатов в k ближайших соседей точки (x, y, z).
+     */
+    void knn(double x, double y, double z, KnnHeap heap);
+
+    /**
+     * Передаёт в cursor все точки на расстоянии не больше sqrt(radiusSquared) от (x, y, z).
+     */
+    void radius(double x, double y, double z, double radiusSquared, RadiusCursor cursor);
+
+    int size();
+
+    /**
+     * Оценка памяти, занимаемой индексом, в байтах.
+     */
+    long estimateMemoryBytes();
+
+    /**
+     * Пакетный поиск k ближайших соседей. Для запроса q индексы соседей (во входном массиве точек)
+     * записываются в indices[q * k .. q * k + k - 1], квадраты расстояний — в те же позиции
+     * distancesSquared, по возрастанию расстояния. Если точек меньше k, хвост заполняется -1 и бесконечностью.
+     * Запросы обрабатываются блоками в порядке кривой Мортона, блоки распределяются между потоками пула.
+     * @param queries Точки запросов
+     * @param k Число соседей
+     * @param indices Массив результатов длиной не меньше queries.length * k
+     * @param distancesSquared Массив квадратов расстояний длиной не меньше queries.length * k
+     * @param pool Пул потоков; null — в текущем потоке
+     */
+    default void knn(double[][] queries, int k, int[] indices, double[] distancesSquared, ForkJoinPool pool) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+        if ((long) queries.length * k > Math.min(indices.length, distancesSquared.length)) {
+            throw new IllegalArgumentException("Result arrays are too small for " + queries.length + " queries with k = " + k);
+        }
+        int[] order = SpatialOrder.mortonOrder(queries);
+        ParallelLoops.forRange(pool, 0, order.length, SpatialOrder.queryGrain(pool, order.length), (from, to) -> {
+            KnnHeap heap = new KnnHeap(indices, distancesSquared, k);
+            for (int n = from; n < to; n++) {
+                int q = order[n];
+                double[] p = queries[q];
+                heap.reset(q * k);
+                knn(p[0], p[1], p[2], heap);
+                heap.finish();
+            }
+        });
+    }
+
+    /**
+     * Пакетный поиск всех точек на расстоянии не больше radius от каждого запроса.
+     * Выполняется в два прохода (подсчёт и заполнение), оба параллельны по блокам запросов
+     * в порядке кривой Мортона; на отдельный запрос память не выделяется.
+     * @param queries Точки запросов
+     * @param radius Радиус поиска
+     * @param pool Пул потоков; null — в текущем потоке
+     * @return Соседи всех запросов в формате CSR
+     */
+    default Neighborhoods radius(double[][] queries, double radius, ForkJoinPool pool) {
+        double r2 = radius * radius;
+        int[] order = SpatialOrder.mortonOrder(queries);
+        int grain = SpatialOrder.queryGrain(pool, order.length);
+
+        int[] offsets = new int[queries.length + 1];
+        ParallelLoops.forRange(pool, 0, order.length, grain, (from, to) -> {
+            RadiusCursor cursor = new RadiusCursor(null, null);
+            for (int n = from; n < to; n++) {
+                int q = order[n];
+                double[] p = queries[q];
+                cursor.position = 0;
+                radius(p[0], p[1], p[2], r2, cursor);
+                offsets[q + 1] = cursor.position;
+            }
+        });
+        long total = 0;
+        for (int q = 0; q < queries.length; q++) {
+            total += offsets[q + 1];
+            if (total > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("Too many neighbours within radius " + radius);
+            }
+            offsets[q + 1] = (int) total;
+        }
+
+        int[] indices = new int[(int) total];
+        double[] distancesSquared = new double[(int) total];
+        ParallelLoops.forRange(pool, 0, order.length, grain, (from, to) -> {
+            RadiusCursor cursor = new RadiusCursor(indices, distancesSquared);
+            for (int n = from; n < to; n++) {
+                int q = order[n];
+                double[] p = queries[q];
+                cursor.position = offsets[q];
+                radius(p[0], p[1], p[2], r2, cursor);
+            }
+        });
+        return new Neighborhoods(offsets, indices, distancesSquared);
+    }
+}
@@ -0,0 +1,121 @@
+package working_project.marching_cubes;
+
+import java.util.Random;
+
+/**
+ * Сравнение {@link SpatialHashGrid} и {@link KDTree} на синтетических облаках для выбора индекса
+ * в {@link SpatialHashGrid#forPoints}. Для каждого облака выводятся точная и оценённая
+ * заполненность, время построения обоих индексов, время запросов в узлах воксельной сетки
+ * и индекс с более быстрыми запросами.
+ * <p>
+ * Запуск: {@code java -Xmx16g working_project.marching_cubes.SpatialIndexComparison [число точек...]}
+ * (по умолчанию 1 000 000; для 50 000 000 точек нужно около 16 ГБ кучи).
+ */
+final class SpatialIndexComparison {
+    private static final int QUERIES = 1 << 15;
+    // Доли объёма габаритов, заполненные точками: от почти пустых габаритов до заполненных целиком
+    private static final double[] FILL_FRACTIONS = {0.1, 0.3, 0.5, 0.7, 0.8, 0.9, 1.0};
+
+    private SpatialIndexComparison() {
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = args.length == 0 ? new int[]{1_000_000} : new int[args.length];
+        for (int a = 0; a < args.length; a++) {
+            sizes[a] = Integer.parseInt(args[a].replace("_", ""));
+        }
+        System.out.printf("%-14s %10s %9s %9s %10s %10s %10s %10s %6s%n", "cloud", "points", "occupancy",
+                "estimate", "grid build", "tree build", "grid query", "tree query", "faster");
+        for (int size : sizes) {
+            report("sphere shell", sphere(size, 7), size);
+            for (double fill : FILL_FRACTIONS) {
+                report(String.format("box fill %.1f", fill), box(size, fill, 7), size);
+            }
+        }
+    }
+
+    private static void report(String name, double[][] points, int size) {
+        long start = System.nanoTime();
+        SpatialHashGrid grid = new SpatialHashGrid(points, null);
+        long gridBuild = System.nanoTime() - start;
+        start = System.nanoTime();
+        KDTree tree = new KDTree(points, null);
+        long treeBuild = System.nanoTime() - start;
+        double[][] queries = queries(points, QUERIES, 11);
+        // Первый проход прогревает JIT, измеряется второй
+        time(grid, queries);
+        time(tree, queries);
+        long gridQuery = time(grid, queries);
+        long treeQuery = time(tree, queries);
+        double estimate = SpatialHashGrid.estimateOccupancy(points);
+        String faster = gridQuery < treeQuery ? "grid" : "tree";
+        System.out.printf("%-14s %10d %9.3f %9.3f %8d ms %8d ms %7d ns %7d ns %6s%n", name, size,
+                grid.getOccupancy(), estimate, gridBuild / 1_000_000,
+                treeBuild / 1_000_000, gridQuery / queries.length, treeQuery / queries.length, faster);
+    }
+
+    private static long time(SpatialIndex index, double[][] queries) {
+        double sum = 0;
+        long start = System.nanoTime();
+        for (double[] q : queries) {
+            sum += index.nearestDistanceSquared(q[0], q[1], q[2]);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (Double.isNaN(sum)) {
+            System.out.println("unexpected NaN distance");
+        }
+        return elapsed;
+    }
+
+    /**
+     * Точки на единичной сфере — типичное поверхностное облако.
+     */
+    private static double[][] sphere(int size, long seed) {
+        Random random = new Random(seed);
+        double[][] points = new double[size][];
+        for (int n = 0; n < size; n++) {
+            double z = 2 * random.nextDouble() - 1;
+            double phi = 2 * Math.PI * random.nextDouble();
+            double r = Math.sqrt(1 - z * z);
+            points[n] = new double[]{r * Math.cos(phi), r * Math.sin(phi), z};
+        }
+        return points;
+    }
+
+    /**
+     * Точки равномерно в части единичного куба объёмом fill (слой 0 <= x <= fill), плюс две точки
+     * в противоположных углах, чтобы габариты оставались всем кубом.
+     */
+    private static double[][] box(int size, double fill, long seed) {
+        Random random = new Random(seed);
+        double[][] points = new double[size][];
+        points[0] = new double[]{0, 0, 0};
+        points[1] = new double[]{1, 1, 1};
+        for (int n = 2; n < size; n++) {
+            points[n] = new double[]{fill * random.nextDouble(), random.nextDouble(), random.nextDouble()};
+        }
+        return points;
+    }
+
+    /**
+     * Случайные узлы воксельной сетки внутри габаритов облака — запросы, как при построении поля.
+     */
+    private static double[][] queries(double[][] points, int count, long seed) {
+        double[] mins = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        double[] maxs = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (double[] p : points) {
+            for (int d = 0; d < 3; d++) {
+                mins[d] = Math.min(mins[d], p[d]);
+                maxs[d] = Math.max(maxs[d], p[d]);
+            }
+        }
+        Random random = new Random(seed);
+        double[][] queries = new double[count][3];
+        for (double[] q : queries) {
+            for (int d = 0; d < 3; d++) {
+                q[d] = mins[d] + random.nextDouble() * (maxs[d] - mins[d]);
+            }
+        }
+        return queries;
+    }
+}
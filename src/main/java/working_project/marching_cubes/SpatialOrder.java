@@ -0,0 +1,71 @@
+package working_project.marching_cubes;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Упорядочивание точек вдоль кривой Мортона (Z-кривой).
+ * Соседние в этом порядке точки близки в пространстве, поэтому пакетные запросы к индексам,
+ * обрабатываемые в таком порядке, обходят одни и те же узлы и ячейки подряд и лучше используют кеш.
+ */
+final class SpatialOrder {
+    // Бит на ось: код Мортона занимает 30 бит, ещё 32 бита — номер точки
+    private static final int BITS = 10;
+
+    private SpatialOrder() {
+    }
+
+    /**
+     * Перестановка индексов точек в порядке кривой Мортона внутри их габаритов.
+     */
+    static int[] mortonOrder(double[][] points) {
+        int n = points.length;
+        double[] lo = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        double[] hi = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (double[] p : points) {
+            for (int d = 0; d < 3; d++) {
+                lo[d] = Math.min(lo[d], p[d]);
+                hi[d] = Math.max(hi[d], p[d]);
+            }
+        }
+        double cells = (1 << BITS) - 1;
+        double[] scale = new double[3];
+        for (int d = 0; d < 3; d++) {
+            scale[d] = hi[d] > lo[d] ? cells / (hi[d] - lo[d]) : 0;
+        }
+
+        long[] keys = new long[n];
+        for (int q = 0; q < n; q++) {
+            double[] p = points[q];
+            long code = spread((int) ((p[0] - lo[0]) * scale[0]))
+                    | spread((int) ((p[1] - lo[1]) * scale[1])) << 1
+                    | spread((int) ((p[2] - lo[2]) * scale[2])) << 2;
+            keys[q] = code << 32 | q;
+        }
+        Arrays.parallelSort(keys);
+
+        int[] order = new int[n];
+        for (int q = 0; q < n; q++) {
+            order[q] = (int) keys[q];
+        }
+        return order;
+    }
+
+    /**
+     * Размер блока пакетных запросов: не меньше нескольких сотен, чтобы соседние по кривой запросы
+     * попадали в одну задачу.
+     */
+    static int queryGrain(ForkJoinPool pool, int count) {
+        return Math.max(256, ParallelLoops.grainFor(pool, count));
+    }
+
+    // Раздвигает младшие BITS бит так, что между ними остаётся по два нулевых
+    private static long spread(int v) {
+        long x = v & ((1 << BITS) - 1);
+        x = (x | x << 16) & 0x30000FFL;
+        x = (x | x << 8) & 0x300F00FL;
+        x = (x | x << 4) & 0x30C30C3L;
+        x = (x | x << 2) & 0x9249249L;
+        return x;
+    }
+}
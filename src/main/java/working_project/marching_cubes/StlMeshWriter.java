@@ -0,0 +1,117 @@
+package working_project.marching_cubes;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Приёмник меша, который сразу пишет треугольники в двоичный STL.
+ * В STL у каждой грани свои координаты вершин, поэтому приёмник помнит вершины, но только
+ * с начала предыдущего слоя ({@link #layerFinished()}): при потоковом Marching Cubes память
+ * ограничена двумя слоями вершин, а не всем мешем. Число треугольников дописывается в заголовок при закрытии.
+ */
+public class StlMeshWriter implements MeshSink, Closeable {
+    private static final int HEADER_BYTES = 80;
+    private static final int FACE_BYTES = 50;
+
+    private final ChannelOutput out;
+    // Координаты вершин с индексами от windowBase до vertexCount - 1
+    private float[] window = new float[3 * 1024];
+    private int windowBase;
+    private int vertexCount;
+    private int layerStart;
+    private int faceCount;
+
+    public StlMeshWriter(File file) throws IOException {
+        out = new ChannelOutput(file.toPath());
+        byte[] title = "binary STL, streamed by marching cubes".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer header = out.reserve(HEADER_BYTES + Integer.BYTES);
+        header.put(Arrays.copyOf(title, HEADER_BYTES));
+        header.putInt(0); // Число треугольников, записывается в close()
+    }
+
+    @Override
+    public int addVertex(float x, float y, float z) {
+        int slot = 3 * (vertexCount - windowBase);
+        if (slot + 3 > window.length) {
+            window = Arrays.copyOf(window, window.length * 2);
+        }
+        window[slot] = x;
+        window[slot + 1] = y;
+        window[slot + 2] = z;
+        return vertexCount++;
+    }
+
+    @Override
+    public void addFace(int a, int b, int c) {
+        int pa = slot(a), pb = slot(b), pc = slot(c);
+        float[] w = window;
+        float ux = w[pb] - w[pa], uy = w[pb + 1] - w[pa + 1], uz = w[pb + 2] - w[pa + 2];
+        float vx = w[pc] - w[pa], vy = w[pc + 1] - w[pa + 1], vz = w[pc + 2] - w[pa + 2];
+        float nx = uy * vz - uz * vy;
+        float ny = uz * vx - ux * vz;
+        float nz = ux * vy - uy * vx;
+        float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length > 0) {
+            nx /= length;
+            ny /= length;
+            nz /= length;
+        }
+        try {
+            ByteBuffer buffer = out.reserve(FACE_BYTES);
+            buffer.putFloat(nx).putFloat(ny).putFloat(nz);
+            buffer.putFloat(w[pa]).putFloat(w[pa + 1]).putFloat(w[pa + 2]);
+            buffer.putFloat(w[pb]).putFloat(w[pb + 1]).putFloat(w[pb + 2]);
+            buffer.putFloat(w[pc]).putFloat(w[pc + 1]).putFloat(w[pc + 2]);
+            buffer.putShort((short) 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        faceCount++;
+    }
+
+    private int slot(int vertex) {
+        if (vertex < windowBase || vertex >= vertexCount) {
+            throw new IllegalStateException("Vertex " + vertex + " is not available (window "
+                    + windowBase + ".." + (vertexCount - 1) + ")");
+        }
+        return 3 * (vertex - windowBase);
+    }
+
+    /**
+     * Забывает вершины, добавленные до начала предыдущего слоя.
+     */
+    @Override
+    public void layerFinished() {
+        int drop = layerStart - windowBase;
+        if (drop > 0) {
+            System.arraycopy(window, 3 * drop, window, 0, 3 * (vertexCount - layerStart));
+            windowBase = layerStart;
+        }
+        layerStart = vertexCount;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getFaceCount() {
+        return faceCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            ByteBuffer count = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            count.putInt(0, faceCount);
+            out.writeAt(count, HEADER_BYTES);
+        } finally {
+            out.close();
+        }
+    }
+}
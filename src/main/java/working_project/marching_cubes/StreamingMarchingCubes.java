@@ -0,0 +1,165 @@
+package working_project.marching_cubes;
+
+import working_project.rendering.Point3D;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Потоковый (out-of-core) Marching Cubes: скалярное поле не хранится целиком,
+ * а вычисляется по две соседние плоскости x = i и x = i + 1, из которых сразу извлекаются треугольники.
+ * Пиковая память под поле — O(ny * nz) вместо O(nx * ny * nz); треугольники уходят в {@link MeshSink}.
+ * <p>
+ * Уровень изоповерхности задаётся процентилем, поэтому поле проходится дважды: первый проход
+ * собирает гистограмму значений, второй — строит меш. Процентиль по гистограмме точен
+ * с погрешностью не больше ширины одной корзины (диагональ облака / {@value #HISTOGRAM_BINS}).
+ */
+public final class StreamingMarchingCubes {
+    private static final int HISTOGRAM_BINS = 1 << 16;
+
+    private StreamingMarchingCubes() {
+    }
+
+    /**
+     * Строит меш облака точек потоково, отправляя вершины и грани в sink.
+     * @param points Облако точек
+     * @param voxelSize Размер вокселя
+     * @param isoLevelPercentile Процентиль для уровня изоповерхности
+     * @param sink Приёмник меша (меш в памяти или запись в файл)
+     * @param pool Пул потоков для вычисления плоскостей; null — в текущем потоке
+     */
+    public static void processPointCloud(List<Point3D> points, double voxelSize, double isoLevelPercentile,
+                                         MeshSink sink, ForkJoinPool pool) {
+        double[] mins = new double[3];
+        double[] maxs = new double[3];
+        double[][] pointArray = MarchingCubes.toPointArray(points, mins, maxs);
+
+        int nx = MarchingCubes.gridSize(mins[0], maxs[0], voxelSize);
+        int ny = MarchingCubes.gridSize(mins[1], maxs[1], voxelSize);
+        int nz = MarchingCubes.gridSize(mins[2], maxs[2], voxelSize);
+        SpatialIndex tree = SpatialHashGrid.forPoints(pointArray, pool);
+
+        double isoLevel = isoLevelFromHistogram(tree, nx, ny, nz, mins, voxelSize, isoLevelPercentile, pool);
+
+        // Второй проход: держим в памяти только две плоскости поля
+        float[] left = new float[ny * nz];
+        float[] right = new float[ny * nz];
+        CubeKernel kernel = new CubeKernel(ny, nz, mins, voxelSize, isoLevel, sink);
+        computePlane(tree, 0, ny, nz, mins, voxelSize, left, pool);
+        for (int i = 0; i < nx - 1; i++) {
+            computePlane(tree, i + 1, ny, nz, mins, voxelSize, right, pool);
+            kernel.processLayer(i, left, 0, right, 0, false);
+            sink.layerFinished();
+            float[] tmp = left;
+            left = right;
+            right = tmp;
+        }
+        System.out.println("Streaming marching cubes finished: grid " + nx + "x" + ny + "x" + nz + ", iso level " + isoLevel);
+    }
+
+    /**
+     * Извлекает поверхность уровня isoLevel из готового поля (например, {@link MappedField}), читая
+     * его по две плоскости и отправляя вершины и грани в sink.
+     */
+    public static void extract(ScalarField field, double isoLevel, MeshSink sink) {
+        int nx = field.getNx();
+        int ny = field.getNy();
+        int nz = field.getNz();
+        float[] left = new float[ny * nz];
+        float[] right = new float[ny * nz];
+        CubeKernel kernel = new CubeKernel(ny, nz, field.getMins(), field.getVoxelSize(), isoLevel, sink);
+        field.readPlane(0, left);
+        for (int i = 0; i < nx - 1; i++) {
+            field.readPlane(i + 1, right);
+            kernel.processLayer(i, left, 0, right, 0, false);
+            sink.layerFinished();
+            float[] tmp = left;
+            left = right;
+            right = tmp;
+        }
+    }
+
+    /**
+     * Строит меш облака точек потоково и сразу пишет его в файл; формат выбирается по расширению
+     * (stl — двоичный STL, ply — двоичный PLY, иначе OBJ). Меш целиком в памяти не создаётся.
+     * @param points Облако точек
+     * @param voxelSize Размер вокселя
+     * @param isoLevelPercentile Процентиль для уровня изоповерхности
+     * @param file Файл меша
+     * @param pool Пул потоков для вычисления плоскостей; null — в текущем потоке
+     */
+    public static void exportPointCloud(List<Point3D> points, double voxelSize, double isoLevelPercentile,
+                                        File file, ForkJoinPool pool) throws IOException {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".stl")) {
+            try (StlMeshWriter writer = new StlMeshWriter(file)) {
+                processPointCloud(points, voxelSize, isoLevelPercentile, writer, pool);
+                System.out.println("Streamed " + writer.getFaceCount() + " faces to " + file);
+            }
+        } else if (name.endsWith(".ply")) {
+            try (PlyMeshWriter writer = new PlyMeshWriter(file)) {
+                processPointCloud(points, voxelSize, isoLevelPercentile, writer, pool);
+                System.out.println("Streamed " + writer.getVertexCount() + " vertices and "
+                        + writer.getFaceCount() + " faces to " + file);
+            }
+        } else {
+            try (ObjMeshWriter writer = new ObjMeshWriter(file)) {
+                processPointCloud(points, voxelSize, isoLevelPercentile, writer, pool);
+                System.out.println("Streamed " + writer.getVertexCount() + " vertices and "
+                        + writer.getFaceCount() + " faces to " + file);
+            }
+        }
+    }
+
+    /**
+     * Первый проход: вычисляет плоскости поля по одной и накапливает гистограмму расстояний.
+     */
+    private static double isoLevelFromHistogram(SpatialIndex tree, int nx, int ny, int nz, double[] mins, double voxelSize,
+                                                double percentile, ForkJoinPool pool) {
+        // Расстояние от центра вокселя внутри габаритов до ближайшей точки не больше диагонали сетки
+        double diagonal = voxelSize * Math.sqrt((double) nx * nx + (double) ny * ny + (double) nz * nz);
+        double binWidth = diagonal / HISTOGRAM_BINS;
+        long[] histogram = new long[HISTOGRAM_BINS];
+
+        float[] plane = new float[ny * nz];
+        for (int i = 0; i < nx; i++) {
+            computePlane(tree, i, ny, nz, mins, voxelSize, plane, pool);
+            for (float value : plane) {
+                histogram[Math.min(HISTOGRAM_BINS - 1, (int) (value / binWidth))]++;
+            }
+        }
+
+        // Тот же ранг, что и в MarchingCubes.computeIsoLevel
+        long total = (long) nx * ny * nz;
+        long rank = Math.round(percentile / 100.0 * (total - 1));
+        long seen = 0;
+        for (int b = 0; b < HISTOGRAM_BINS; b++) {
+            if (seen + histogram[b] > rank) {
+                // Внутри корзины считаем значения равномерно распределёнными
+                return (b + (rank - seen + 0.5) / histogram[b]) * binWidth;
+            }
+            seen += histogram[b];
+        }
+        return diagonal;
+    }
+
+    /**
+     * Заполняет plane расстояниями от центров вокселей плоскости x = i до ближайших точек.
+     * Узел (j, k) лежит в plane[j * nz + k]; строки j распределяются между потоками пула.
+     */
+    private static void computePlane(SpatialIndex tree, int i, int ny, int nz, double[] mins, double voxelSize,
+                                     float[] plane, ForkJoinPool pool) {
+        double x = mins[0] + i * voxelSize;
+        ParallelLoops.forRange(pool, 0, ny, ParallelLoops.grainFor(pool, ny), (from, to) -> {
+            for (int j = from; j < to; j++) {
+                double y = mins[1] + j * voxelSize;
+                for (int k = 0; k < nz; k++) {
+                    plane[j * nz + k] = (float) Math.sqrt(tree.nearestDistanceSquared(x, y, mins[2] + k * voxelSize));
+                }
+            }
+        });
+    }
+}
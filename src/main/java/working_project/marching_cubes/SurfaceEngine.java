@@ -0,0 +1,24 @@
+package working_project.marching_cubes;
+
+/**
+ * Способ извлечения изоповерхности из скалярного поля.
+ */
+public enum SurfaceEngine {
+    /**
+     * Marching Cubes: вершины на рёбрах сетки, треугольники по таблице конфигураций куба.
+     */
+    MARCHING_CUBES,
+    /**
+     * Surface Nets ({@link SurfaceNets}): одна вершина на ячейку, четырёхугольник на каждое ребро,
+     * пересекающее уровень; более равномерные треугольники. При уровне меньше вокселя меш был бы
+     * неманифолдным, поэтому вместо Surface Nets используется Marching Cubes.
+     */
+    SURFACE_NETS,
+    /**
+     * Адаптивное октодерево ({@link AdaptiveReconstruction}): поле вычисляется только в углах листьев
+     * у поверхности, сплошная сетка не строится. Расстояния считаются точно по индексу точек,
+     * поэтому {@link ReconstructionOptions#getFieldEngine()} и {@link ReconstructionOptions#getStorage()}
+     * не используются, а из кеша полей берётся только индекс.
+     */
+    ADAPTIVE
+}
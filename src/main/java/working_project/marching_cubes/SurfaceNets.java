@@ -0,0 +1,317 @@
+package working_project.marching_cubes;
+
+import working_project.marching_cubes.MarchingCubes.Mesh;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Извлечение поверхности методом Surface Nets по тому же скалярному полю, что и Marching Cubes.
+ * Каждая ячейка, углы которой лежат по разные стороны уровня, получает одну вершину — среднее точек
+ * пересечения уровня с её рёбрами. Каждое ребро решётки, пересекающее уровень, даёт четырёхугольник
+ * из вершин четырёх ячеек вокруг него, который делится на два треугольника по более короткой диагонали.
+ * По сравнению с Marching Cubes вершин примерно столько же, а треугольники ближе к равносторонним.
+ * <p>
+ * Ограничение: одна вершина на ячейку не различает два листа поверхности, проходящие через одну ячейку.
+ * Если уровень меньше размера вокселя (тонкая оболочка вокруг неориентированного облака), меш получается
+ * неманифолдным: рёбра с тремя и более гранями и несогласованная ориентация соседних граней (сфера
+ * из 40 000 точек, воксель 0.03, 5-й процентиль — около 3 000 таких рёбер, у Marching Cubes — ни одного).
+ * Поэтому {@link MarchingCubes#processPointCloud(java.util.List, double, double, ReconstructionOptions)}
+ * при таком уровне извлекает поверхность Marching Cubes. При уровне от одного до двух вокселей
+ * единичные неманифолдные рёбра ещё возможны.
+ * <p>
+ * Как и {@link MarchingCubes#marchingCubesCustomOptimized(ScalarField, double, ForkJoinPool)}, слои ячеек по X
+ * делятся на слэбы, обрабатываемые параллельно; четырёхугольники рёбер на границе двух слэбов
+ * достраиваются при слиянии по сохранённым крайним слоям. Ячейки неактивных блоков {@link BrickPyramid}
+ * пропускаются. Ориентация граней совпадает с Marching Cubes: нормаль направлена в сторону роста поля.
+ */
+public final class SurfaceNets {
+    // Смещения 8 углов ячейки от узла (i, j, k) в порядке Marching Cubes
+    private static final int[][] cornerOffset = new int[][]{
+            {0, 0, 0}, {1, 0, 0}, {1, 1, 0}, {0, 1, 0},
+            {0, 0, 1}, {1, 0, 1}, {1, 1, 1}, {0, 1, 1}
+    };
+
+    private SurfaceNets() {
+    }
+
+    /**
+     * Результат обработки слэба: меш с локальными индексами и вершины ячеек его крайних слоёв.
+     */
+    private static final class Slab {
+        final Mesh mesh;
+        int[] firstCells;   // Индексы вершин ячеек первого слоя (-1 — ячейка неактивна)
+        byte[] firstMasks;  // Маски углов ячеек первого слоя
+        int[] lastCells;    // Индексы вершин ячеек последнего слоя
+
+        Slab(Mesh mesh) {
+            this.mesh = mesh;
+        }
+    }
+
+    /**
+     * Извлекает поверхность уровня isoLevel методом Surface Nets.
+     * @param field Скалярное поле
+     * @param isoLevel Уровень изоповерхности
+     * @param pool Пул потоков; null — в текущем потоке
+     * @param vertexNormals Вычислять нормали вершин по градиенту поля внутри ячейки
+     * @return Сгенерированный меш
+     */
+    public static Mesh extract(ScalarField field, double isoLevel, ForkJoinPool pool, boolean vertexNormals) {
+        return extract(field, BrickPyramid.build(field, pool), isoLevel, pool, vertexNormals);
+    }
+
+    static Mesh extract(ScalarField field, BrickPyramid pyramid, double isoLevel, ForkJoinPool pool, boolean vertexNormals) {
+        int cellLayers = field.getNx() - 1;
+        int cz = field.getNz() - 1;
+        boolean[] activeBricks = pyramid.activeBricks(isoLevel);
+        boolean[] activeLayers = pyramid.activeLayers(activeBricks);
+
+        int slabCount = pool == null ? 1 : Math.max(1, Math.min(cellLayers, pool.getParallelism() * 4));
+        int[] bounds = new int[slabCount + 1];
+        for (int s = 0; s <= slabCount; s++) {
+            bounds[s] = (int) ((long) cellLayers * s / slabCount);
+        }
+        Slab[] slabs = new Slab[slabCount];
+        ParallelLoops.forRange(pool, 0, slabCount, 1, (from, to) -> {
+            for (int s = from; s < to; s++) {
+                slabs[s] = extractSlab(field, pyramid, activeBricks, activeLayers, bounds[s], bounds[s + 1],
+                        isoLevel, vertexNormals);
+            }
+        });
+
+        // Слияние: вершины и грани слэбов подряд, затем четырёхугольники на их границах
+        int totalVertices = 0;
+        int totalFaces = 0;
+        for (Slab slab : slabs) {
+            totalVertices += slab.mesh.getVertexCount();
+            totalFaces += slab.mesh.getFaceCount();
+        }
+        Mesh mesh = new Mesh(totalVertices, totalFaces, vertexNormals);
+        int[] offsets = new int[slabCount];
+        for (int s = 0; s < slabCount; s++) {
+            offsets[s] = mesh.getVertexCount();
+            Mesh local = slabs[s].mesh;
+            float[] vertices = local.getVertices();
+            float[] normals = local.getNormals();
+            for (int v = 0; v < local.getVertexCount(); v++) {
+                if (normals != null) {
+                    mesh.addVertex(vertices[v * 3], vertices[v * 3 + 1], vertices[v * 3 + 2],
+                            normals[v * 3], normals[v * 3 + 1], normals[v * 3 + 2]);
+                } else {
+                    mesh.addVertex(vertices[v * 3], vertices[v * 3 + 1], vertices[v * 3 + 2]);
+                }
+            }
+            int[] faces = local.getFaces();
+            for (int f = 0; f < local.getFaceCount() * 3; f += 3) {
+                mesh.addFace(faces[f] + offsets[s], faces[f + 1] + offsets[s], faces[f + 2] + offsets[s]);
+            }
+        }
+        for (int s = 1; s < slabCount; s++) {
+            Slab slab = slabs[s];
+            for (int cell = 0; cell < slab.firstCells.length; cell++) {
+                if (slab.firstCells[cell] >= 0) {
+                    addPlaneQuads(mesh, slabs[s - 1].lastCells, offsets[s - 1], slab.firstCells, offsets[s],
+                            cell, slab.firstMasks[cell] & 0xFF, cz);
+                }
+            }
+        }
+
+        System.out.println("Surface nets generated " + mesh.getVertexCount() + " vertices and " + mesh.getFaceCount() + " faces");
+        return mesh;
+    }
+
+    /**
+     * Обрабатывает слои ячеек [from, to): создаёт вершины ячеек и четырёхугольники рёбер, все четыре ячейки
+     * которых лежат в этих слоях.
+     */
+    private static Slab extractSlab(ScalarField field, BrickPyramid pyramid, boolean[] activeBricks, boolean[] activeLayers,
+                                    int from, int to, double isoLevel, boolean vertexNormals) {
+        int ny = field.getNy();
+        int nz = field.getNz();
+        int cy = ny - 1;
+        int cz = nz - 1;
+        int planeSize = ny * nz;
+        int brickCountZ = pyramid.getBrickCountZ();
+        int brickLayerSize = pyramid.getBrickCountY() * brickCountZ;
+        double voxelSize = field.getVoxelSize();
+        double[] mins = field.getMins();
+        float[] values = field instanceof ScalarGrid ? ((ScalarGrid) field).values() : null;
+        PlaneWindow window = values == null ? new PlaneWindow(field, 2) : null;
+
+        Slab slab = new Slab(new Mesh(1024, 2048, vertexNormals));
+        int[] previous = new int[cy * cz];
+        int[] current = new int[cy * cz];
+        byte[] previousMasks = new byte[cy * cz];
+        byte[] currentMasks = new byte[cy * cz];
+        Arrays.fill(previous, -1);
+        IntArrayList activeCells = new IntArrayList();
+        double[] corners = new double[8];
+
+        for (int i = from; i < to; i++) {
+            Arrays.fill(current, -1);
+            activeCells.clear();
+            int brickLayer = i >> BrickPyramid.BRICK_SHIFT;
+            if (activeLayers[brickLayer]) {
+                float[] left = values != null ? values : window.get(i);
+                float[] right = values != null ? values : window.get(i + 1);
+                int leftOffset = values != null ? i * planeSize : 0;
+                int rightOffset = values != null ? leftOffset + planeSize : 0;
+                for (int j = 0; j < cy; j++) {
+                    int brickRow = brickLayer * brickLayerSize + (j >> BrickPyramid.BRICK_SHIFT) * brickCountZ;
+                    for (int k = 0; k < cz; k++) {
+                        if (!activeBricks[brickRow + (k >> BrickPyramid.BRICK_SHIFT)]) {
+                            k |= BrickPyramid.BRICK - 1; // Сразу к последней ячейке блока
+                            continue;
+                        }
+                        int l = leftOffset + j * nz + k;
+                        int r = rightOffset + j * nz + k;
+                        corners[0] = left[l];
+                        corners[1] = right[r];
+                        corners[2] = right[r + nz];
+                        corners[3] = left[l + nz];
+                        corners[4] = left[l + 1];
+                        corners[5] = right[r + 1];
+                        corners[6] = right[r + nz + 1];
+                        corners[7] = left[l + nz + 1];
+                        int mask = 0;
+                        for (int n = 0; n < 8; n++) {
+                            if (corners[n] > isoLevel) {
+                                mask |= 1 << n;
+                            }
+                        }
+                        if (mask == 0 || mask == 0xFF) {
+                            continue;
+                        }
+                        int cell = j * cz + k;
+                        current[cell] = addCellVertex(slab.mesh, corners, mask, isoLevel, i, j, k, voxelSize, mins, vertexNormals);
+                        currentMasks[cell] = (byte) mask;
+                        activeCells.add(cell);
+                    }
+                }
+            }
+
+            // Рёбра из узла (i, j, k) активной ячейки: по X — внутри слоя, по Y и Z — между этим и предыдущим слоем
+            for (int n = 0; n < activeCells.size(); n++) {
+                int cell = activeCells.get(n);
+                int j = cell / cz;
+                int k = cell - j * cz;
+                int mask = currentMasks[cell] & 0xFF;
+                boolean above = (mask & 1) != 0;
+                if (j > 0 && k > 0 && above != ((mask & 2) != 0)) {
+                    addQuad(slab.mesh, current[cell - cz - 1], current[cell - 1], current[cell], current[cell - cz], above);
+                }
+                if (i > from) {
+                    addPlaneQuads(slab.mesh, previous, 0, current, 0, cell, mask, cz);
+                }
+            }
+
+            if (i == from) {
+                slab.firstCells = current.clone();
+                slab.firstMasks = currentMasks.clone();
+            }
+            int[] tmp = previous;
+            previous = current;
+            current = tmp;
+            byte[] tmpMasks = previousMasks;
+            previousMasks = currentMasks;
+            currentMasks = tmpMasks;
+        }
+        slab.lastCells = previous;
+        if (slab.firstCells == null) {
+            slab.firstCells = previous;
+            slab.firstMasks = previousMasks;
+        }
+        return slab;
+    }
+
+    /**
+     * Четырёхугольники рёбер по Y и Z из узла (i, j, k) ячейки cell слоя i; их ячейки лежат в слоях i - 1 и i.
+     */
+    private static void addPlaneQuads(Mesh mesh, int[] previous, int previousOffset, int[] current, int currentOffset,
+                                      int cell, int mask, int cz) {
+        int j = cell / cz;
+        int k = cell - j * cz;
+        boolean above = (mask & 1) != 0;
+        if (k > 0 && above != ((mask & 8) != 0)) {
+            addQuad(mesh, previous[cell - 1] + previousOffset, previous[cell] + previousOffset,
+                    current[cell] + currentOffset, current[cell - 1] + currentOffset, above);
+        }
+        if (j > 0 && above != ((mask & 16) != 0)) {
+            addQuad(mesh, previous[cell - cz] + previousOffset, current[cell - cz] + currentOffset,
+                    current[cell] + currentOffset, previous[cell] + previousOffset, above);
+        }
+    }
+
+    /**
+     * Добавляет четырёхугольник a-b-c-d (обход против часовой стрелки вокруг положительного направления ребра)
+     * двумя треугольниками по более короткой диагонали; flip — поле убывает вдоль ребра, обход меняется.
+     */
+    static void addQuad(Mesh mesh, int a, int b, int c, int d, boolean flip) {
+        if (flip) {
+            int tmp = b;
+            b = d;
+            d = tmp;
+        }
+        float[] v = mesh.getVertices();
+        if (distanceSquared(v, a, c) <= distanceSquared(v, b, d)) {
+            mesh.addFace(a, b, c);
+            mesh.addFace(a, c, d);
+        } else {
+            mesh.addFace(a, b, d);
+            mesh.addFace(b, c, d);
+        }
+    }
+
+    private static double distanceSquared(float[] v, int a, int b) {
+        double dx = v[a * 3] - v[b * 3];
+        double dy = v[a * 3 + 1] - v[b * 3 + 1];
+        double dz = v[a * 3 + 2] - v[b * 3 + 2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Вершина ячейки — среднее точек пересечения уровня с рёбрами ячейки; нормаль — градиент
+     * трилинейной интерполяции значений углов в этой точке.
+     */
+    private static int addCellVertex(Mesh mesh, double[] corners, int mask, double isoLevel, int i, int j, int k,
+                                     double voxelSize, double[] mins, boolean vertexNormals) {
+        double x = 0, y = 0, z = 0;
+        int crossings = 0;
+        for (int[] edge : MarchingCubes.edgeToVertices) {
+            int a = edge[0];
+            int b = edge[1];
+            if (((mask >> a) & 1) == ((mask >> b) & 1)) {
+                continue;
+            }
+            double va = corners[a];
+            double vb = corners[b];
+            double mu = Math.abs(va - vb) < 1e-6 ? 0.5 : Math.max(0, Math.min(1, (isoLevel - va) / (vb - va)));
+            x += cornerOffset[a][0] + mu * (cornerOffset[b][0] - cornerOffset[a][0]);
+            y += cornerOffset[a][1] + mu * (cornerOffset[b][1] - cornerOffset[a][1]);
+            z += cornerOffset[a][2] + mu * (cornerOffset[b][2] - cornerOffset[a][2]);
+            crossings++;
+        }
+        x /= crossings;
+        y /= crossings;
+        z /= crossings;
+        float px = (float) ((i + x) * voxelSize + mins[0]);
+        float py = (float) ((j + y) * voxelSize + mins[1]);
+        float pz = (float) ((k + z) * voxelSize + mins[2]);
+        if (!vertexNormals) {
+            return mesh.addVertex(px, py, pz);
+        }
+
+        double gx = (1 - y) * (1 - z) * (corners[1] - corners[0]) + y * (1 - z) * (corners[2] - corners[3])
+                + (1 - y) * z * (corners[5] - corners[4]) + y * z * (corners[6] - corners[7]);
+        double gy = (1 - x) * (1 - z) * (corners[3] - corners[0]) + x * (1 - z) * (corners[2] - corners[1])
+                + (1 - x) * z * (corners[7] - corners[4]) + x * z * (corners[6] - corners[5]);
+        double gz = (1 - x) * (1 - y) * (corners[4] - corners[0]) + x * (1 - y) * (corners[5] - corners[1])
+                + (1 - x) * y * (corners[7] - corners[3]) + x * y * (corners[6] - corners[2]);
+        double length = Math.sqrt(gx * gx + gy * gy + gz * gz);
+        if (length == 0) {
+            gz = length = 1;
+        }
+        return mesh.addVertex(px, py, pz, (float) (gx / length), (float) (gy / length), (float) (gz / length));
+    }
+}
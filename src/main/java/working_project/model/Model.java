@@ -462,6 +462,7 @@ public class Model {
             }
         }
 
+        clearVertexNormals();
         computeNormals();
         System.out.println("Laplacian smoothing completed: vertices=" + vertices.size() + ", triangles=" + triangles.size());
     }
@@ -575,6 +576,7 @@ public class Model {
             }
         }
 
+        clearVertexNormals();
         computeNormals();
         System.out.println("Boundary smoothing completed: vertices=" + vertices.size() + ", triangles=" + triangles.size());
     }
@@ -612,6 +614,17 @@ public class Model {
         }
     }
 
+    /**
+     * Сбрасывает нормали вершин (после изменения геометрии они больше не соответствуют поверхности).
+     */
+    public void clearVertexNormals() {
+        for (Triangle triangle : triangles) {
+            triangle.n1 = null;
+            triangle.n2 = null;
+            triangle.n3 = null;
+        }
+    }
+
     public List<float[]> toChunkData() {
         List<float[]> chunkData = new ArrayList<>();
         for (Triangle t : triangles) {
@@ -620,21 +633,25 @@ public class Model {
             triangleData[1] = t.v1.y;
             triangleData[2] = t.v1.z;
             Point3D normal = t.normal != null ? t.normal : new Point3D(0, 0, 1);
-            triangleData[3] = normal.x;
-            triangleData[4] = normal.y;
-            triangleData[5] = normal.z;
+            // Нормали вершин (если есть) дают сглаженное освещение
+            Point3D n1 = t.n1 != null ? t.n1 : normal;
+            Point3D n2 = t.n2 != null ? t.n2 : normal;
+            Point3D n3 = t.n3 != null ? t.n3 : normal;
+            triangleData[3] = n1.x;
+            triangleData[4] = n1.y;
+            triangleData[5] = n1.z;
             triangleData[6] = t.v2.x;
             triangleData[7] = t.v2.y;
             triangleData[8] = t.v2.z;
-            triangleData[9] = normal.x;
-            triangleData[10] = normal.y;
-            triangleData[11] = normal.z;
+            triangleData[9] = n2.x;
+            triangleData[10] = n2.y;
+            triangleData[11] = n2.z;
             triangleData[12] = t.v3.x;
             triangleData[13] = t.v3.y;
             triangleData[14] = t.v3.z;
-            triangleData[15] = normal.x;
-            triangleData[16] = normal.y;
-            triangleData[17] = normal.z;
+            triangleData[15] = n3.x;
+            triangleData[16] = n3.y;
+            triangleData[17] = n3.z;
             chunkData.add(triangleData);
         }
         return chunkData;
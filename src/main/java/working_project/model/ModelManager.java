@@ -2,14 +2,25 @@ package working_project.model;
 
 import working_project.core.Camera;
 import working_project.io.FileDialogHandler;
+import working_project.marching_cubes.FieldCache;
 import working_project.marching_cubes.MarchingCubes;
+import working_project.marching_cubes.ProgressiveReconstruction;
+import working_project.marching_cubes.ReconstructionOptions;
+import working_project.marching_cubes.ReconstructionPlanner;
+import working_project.marching_cubes.StreamingMarchingCubes;
+import working_project.marching_cubes.SurfaceEngine;
 import org.joml.Vector3f;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
 
 import working_project.rendering.Point3D;
 import working_project.rendering.Renderer;
@@ -31,6 +42,54 @@ public class ModelManager {
             Math.max(2, Runtime.getRuntime().availableProcessors() - 1)
     );
 
+    // Поля облаков для повторного извлечения поверхности при смене только уровня изоповерхности;
+    // построенные поля сохраняются на диск и переживают перезапуск приложения
+    private final FieldCache fieldCache = new FieldCache(Runtime.getRuntime().maxMemory() / 4,
+            Path.of(System.getProperty("user.home"), ".working_project", "fields"), 8L << 30);
+    // Исходное облако последней загруженной модели; остаётся доступным после замены облака мешем
+    private List<Point3D> sourceCloud;
+    // Фоновая реконструкция и её последний готовый, ещё не выведенный на сцену уровень
+    private ProgressiveReconstruction reconstruction;
+    private volatile int reconstructionGeneration;
+    // Запуск и отмена реконструкции: запуск после фонового планирования идёт не в потоке интерфейса
+    private final Object reconstructionLock = new Object();
+    private final AtomicReference<Model> pendingModel = new AtomicReference<>();
+    private boolean recenterPending;
+    private volatile String reconstructionStatus = "";
+    // Планировщик для исходного облака и последний план для параметров из интерфейса
+    private ReconstructionPlanner planner;
+    private List<Point3D> plannerCloud;
+    private volatile PlannedReconstruction planned;
+    private volatile boolean planning;
+
+    /**
+     * План реконструкции вместе с параметрами, для которых он построен.
+     */
+    private static final class PlannedReconstruction {
+        final List<Point3D> cloud;
+        final float voxelSize;
+        final float isoLevel;
+        final SurfaceEngine surfaceEngine;
+        final long budgetBytes;
+        final ReconstructionPlanner.Plan plan;
+
+        PlannedReconstruction(List<Point3D> cloud, float voxelSize, float isoLevel, SurfaceEngine surfaceEngine,
+                              long budgetBytes, ReconstructionPlanner.Plan plan) {
+            this.cloud = cloud;
+            this.voxelSize = voxelSize;
+            this.isoLevel = isoLevel;
+            this.surfaceEngine = surfaceEngine;
+            this.budgetBytes = budgetBytes;
+            this.plan = plan;
+        }
+
+        boolean matches(List<Point3D> cloud, float voxelSize, float isoLevel, SurfaceEngine surfaceEngine,
+                        long budgetBytes) {
+            return this.cloud == cloud && this.voxelSize == voxelSize && this.isoLevel == isoLevel
+                    && this.surfaceEngine == surfaceEngine && this.budgetBytes == budgetBytes;
+        }
+    }
+
     public ModelManager(ModelLoader loader, Camera camera, Renderer renderer) {
         this.loader = loader;
         this.camera = camera;
@@ -54,6 +113,8 @@ public class ModelManager {
         }
 
         System.out.println("Downloading model from: " + filePath);
+        cancelReconstruction();
+        reconstructionStatus = "";
         try {
             model = ModelImporter.loadModel(filePath);
             for (ModelLoader.Chunk chunk : chunks) {
@@ -63,6 +124,7 @@ public class ModelManager {
             points.clear();
             isPointCloud[0] = false;
 
+            sourceCloud = null;
             if (!model.triangles.isEmpty() && !onlyPointMode[0]) {
                 model.computeNormals();
                 chunks.addAll(loader.createChunksFromData(model.toChunkData()));
@@ -70,6 +132,7 @@ public class ModelManager {
                 renderer.cleanupPointsBuffers();
             } else {
                 points.addAll(model.vertices);
+                sourceCloud = model.vertices;
                 isPointCloud[0] = true;
                 renderer.initOrUpdatePointsBuffers(points);
                 System.out.println("Downloaded point cloud with " + points.size() + " points.");
@@ -132,54 +195,266 @@ public class ModelManager {
         }
     }
 
-    public void applyMarchingCubes(
-            List<ModelLoader.Chunk> chunks,
-            List<Point3D> points,
-            boolean[] isPointCloud,
-            boolean[] isRendering,
-            float voxelSize,
-            float isoLevel) {
-        if (!isModelLoaded() || !isPointCloud[0] || points.isEmpty()) {
-            System.out.println("Marching cubes cannot be applied: the point cloud is not loaded.");
+    /**
+     * Строит меш исходного облака потоковым Marching Cubes и сразу пишет его в выбранный файл
+     * (двоичный STL или PLY, иначе OBJ), не создавая меш и модель в памяти. Сцена не меняется.
+     */
+    public void exportReconstruction(FileDialogHandler fileDialogHandler, float voxelSize, float isoLevel) {
+        List<Point3D> cloud = sourceCloud;
+        if (!isModelLoaded() || cloud == null || cloud.isEmpty()) {
+            exportStatus = "Unable to export: the point cloud is not loaded.";
+            System.out.println("Unable to export reconstruction: the point cloud is not loaded.");
             return;
         }
 
-        try {
-            MarchingCubes.Mesh marchingMesh = MarchingCubes.processPointCloud(points, voxelSize, isoLevel);
-            System.out.println("Marching cubes generated a mesh with " + marchingMesh.vertices.size() +
-                    " vertices and " + marchingMesh.faces.size() + " faces.");
-
-            Model newModel = new Model();
-            for (double[] vertex : marchingMesh.vertices) {
-                newModel.vertices.add(new Point3D((float) vertex[0], (float) vertex[1], (float) vertex[2]));
+        isExporting = true;
+        exportStatus = "Starting reconstruction export...";
+        File file = fileDialogHandler.saveFileDialog();
+        if (file == null) {
+            isExporting = false;
+            exportStatus = "Export canceled.";
+            System.out.println("Export cancelled by user.");
+            return;
+        }
+        String filePath = file.getAbsolutePath();
+        String extension = filePath.contains(".") ? filePath.substring(filePath.lastIndexOf(".") + 1).toLowerCase() : "";
+        if (!extension.equals("obj") && !extension.equals("stl") && !extension.equals("ply")) {
+            filePath += ".stl";
+        }
+        final File target = new File(filePath);
+        executorService.submit(() -> {
+            try {
+                long startTime = System.nanoTime();
+                exportStatus = "Streaming reconstruction to " + target.getName() + "...";
+                StreamingMarchingCubes.exportPointCloud(cloud, voxelSize, isoLevel, target, ForkJoinPool.commonPool());
+                long duration = (System.nanoTime() - startTime) / 1_000_000;
+                exportStatus = "Reconstruction exported in " + duration + " ms: " + target;
+            } catch (Exception e) {
+                exportStatus = "Export error: " + e.getMessage();
+                System.err.println("Error exporting reconstruction: " + e.getMessage());
+                e.printStackTrace();
+            } finally {
+                isExporting = false;
             }
-            for (int[] face : marchingMesh.faces) {
-                Point3D p1 = newModel.vertices.get(face[0]);
-                Point3D p2 = newModel.vertices.get(face[1]);
-                Point3D p3 = newModel.vertices.get(face[2]);
-                newModel.triangles.add(new Triangle(p1, p2, p3));
+        });
+    }
+
+    /**
+     * Запускает прогрессивную реконструкцию облака в фоне: сначала строятся грубые предпросмотры,
+     * затем итоговый меш. Готовые уровни выводятся на сцену в {@link #update}. Повторный запуск
+     * отменяет незавершённую реконструкцию. Размер вокселя и хранилище поля берутся из плана
+     * {@link ReconstructionPlanner}: если реконструкция не помещается в бюджет памяти даже с крупным вокселем,
+     * она не запускается. Используется готовый план из {@link #planReconstruction}, если он построен для тех же
+     * параметров; иначе план строится в фоне и реконструкция запускается после него.
+     * @param surfaceEngine Способ извлечения поверхности из поля
+     * @param budgetBytes Бюджет памяти реконструкции в байтах
+     */
+    public void applyMarchingCubes(float voxelSize, float isoLevel, SurfaceEngine surfaceEngine, long budgetBytes) {
+        // После построения меша облако на сцене заменено, но исходное облако и его поле остаются в кеше,
+        // поэтому повторный запуск с другим уровнем только заново извлекает поверхность
+        List<Point3D> cloud = sourceCloud;
+        if (!isModelLoaded() || cloud == null || cloud.isEmpty()) {
+            System.out.println("Marching cubes cannot be applied: the point cloud is not loaded.");
+            return;
+        }
+
+        ReconstructionOptions options = new ReconstructionOptions().fieldCache(fieldCache).vertexNormals(true)
+                .surfaceEngine(surfaceEngine);
+        int generation;
+        synchronized (reconstructionLock) {
+            cancelReconstruction();
+            generation = reconstructionGeneration;
+        }
+        // План для этих параметров обычно уже построен для показа в интерфейсе; иначе он строится в фоне,
+        // чтобы поток интерфейса не ждал планировщик
+        PlannedReconstruction current = planned;
+        if (current != null && current.plan != null && current.matches(cloud, voxelSize, isoLevel, surfaceEngine, budgetBytes)) {
+            startReconstruction(cloud, voxelSize, isoLevel, options, current.plan, generation);
+            return;
+        }
+        reconstructionStatus = "Planning reconstruction...";
+        executorService.submit(() -> {
+            try {
+                ReconstructionPlanner.Plan plan = planFor(cloud, voxelSize, isoLevel, surfaceEngine, budgetBytes);
+                planned = new PlannedReconstruction(cloud, voxelSize, isoLevel, surfaceEngine, budgetBytes, plan);
+                startReconstruction(cloud, voxelSize, isoLevel, options, plan, generation);
+            } catch (RuntimeException e) {
+                if (generation == reconstructionGeneration) {
+                    reconstructionStatus = "Reconstruction planning error: " + e.getMessage();
+                }
+                System.err.println("Reconstruction planning error: " + e.getMessage());
             }
-            newModel.computeNormals();
+        });
+    }
 
-            for (ModelLoader.Chunk chunk : chunks) {
-                chunk.cleanup();
+    /**
+     * Запускает реконструкцию по готовому плану, если за время планирования не было более нового запуска
+     * или загрузки модели.
+     */
+    private void startReconstruction(List<Point3D> cloud, float voxelSize, float isoLevel, ReconstructionOptions options,
+                                     ReconstructionPlanner.Plan plan, int generation) {
+        if (!plan.fitsBudget()) {
+            if (generation == reconstructionGeneration) {
+                reconstructionStatus = "Not enough memory: " + plan.getSummary();
             }
-            chunks.clear();
-            points.clear();
-            model = newModel;
+            System.out.println("Marching cubes was not started: " + plan.getSummary());
+            return;
+        }
+        if (plan.isAdjusted(options)) {
+            System.out.printf("Reconstruction plan adjusted: voxel size %.5f -> %.5f, %s storage%n",
+                    voxelSize, plan.getVoxelSize(), plan.getStorage());
+        }
+        plan.applyTo(options);
+
+        synchronized (reconstructionLock) {
+            if (generation != reconstructionGeneration) return; // Запущена более новая реконструкция
+            long startTime = System.nanoTime();
+            reconstructionStatus = "Building preview...";
+            reconstruction = ProgressiveReconstruction.start(cloud, plan.getVoxelSize(), isoLevel, options,
+                    executorService,
+                    (factor, mesh) -> {
+                        Model levelModel = toModel(mesh);
+                        if (generation != reconstructionGeneration) return; // Запущена более новая реконструкция
+                        pendingModel.set(levelModel);
+                        long duration = (System.nanoTime() - startTime) / 1_000_000;
+                        reconstructionStatus = factor == 1
+                                ? "Mesh built in " + duration + " ms: " + mesh.getFaceCount() + " faces"
+                                : "Preview (" + factor + "x voxel) in " + duration + " ms, refining...";
+                    });
+            reconstruction.getResult().whenComplete((mesh, error) -> {
+                if (error == null) {
+                    System.out.println("Marching cubes generated a mesh with " + mesh.getVertexCount() +
+                            " vertices and " + mesh.getFaceCount() + " faces.");
+                } else if (!(error.getCause() instanceof CancellationException) && generation == reconstructionGeneration) {
+                    reconstructionStatus = "Marching cubes error: " + error.getCause().getMessage();
+                    System.err.println("Marching cubes processing error: " + error.getCause().getMessage());
+                    error.getCause().printStackTrace();
+                }
+            });
+        }
+    }
 
-            chunks.addAll(loader.createChunksFromData(model.toChunkData()));
-            isPointCloud[0] = false;
-            isRendering[0] = true;
-            System.out.println("Created " + chunks.size() + " chunks for rendering.");
-            renderer.cleanupPointsBuffers();
+    /**
+     * Оценка памяти и времени реконструкции с такими параметрами для показа до запуска. Вызывается каждый кадр:
+     * при изменении параметров план пересчитывается в фоне, пока он не готов, возвращается null.
+     */
+    public ReconstructionPlanner.Plan planReconstruction(float voxelSize, float isoLevel, SurfaceEngine surfaceEngine,
+                                                         long budgetBytes) {
+        List<Point3D> cloud = sourceCloud;
+        if (cloud == null || cloud.isEmpty() || voxelSize <= 0) {
+            return null;
+        }
+        PlannedReconstruction current = planned;
+        if (current != null && current.matches(cloud, voxelSize, isoLevel, surfaceEngine, budgetBytes)) {
+            return current.plan;
+        }
+        if (!planning) {
+            planning = true;
+            executorService.submit(() -> {
+                try {
+                    ReconstructionPlanner.Plan plan = planFor(cloud, voxelSize, isoLevel, surfaceEngine, budgetBytes);
+                    planned = new PlannedReconstruction(cloud, voxelSize, isoLevel, surfaceEngine, budgetBytes, plan);
+                } catch (RuntimeException e) {
+                    // Запоминаем параметры, чтобы не повторять ошибку каждый кадр
+                    planned = new PlannedReconstruction(cloud, voxelSize, isoLevel, surfaceEngine, budgetBytes, null);
+                    System.err.println("Reconstruction planning error: " + e.getMessage());
+                } finally {
+                    planning = false;
+                }
+            });
+        }
+        return null;
+    }
+
+    // Планировщик строится один раз на облако (выборки по индексу из кеша полей, общему с реконструкцией),
+    // план для параметров считается сразу
+    private synchronized ReconstructionPlanner.Plan planFor(List<Point3D> cloud, float voxelSize, float isoLevel,
+                                                            SurfaceEngine surfaceEngine, long budgetBytes) {
+        if (planner == null || plannerCloud != cloud) {
+            planner = new ReconstructionPlanner(cloud, fieldCache, ForkJoinPool.commonPool());
+            plannerCloud = cloud;
+        }
+        return planner.plan(voxelSize, isoLevel,
+                new ReconstructionOptions().vertexNormals(true).surfaceEngine(surfaceEngine), budgetBytes);
+    }
+
+    /**
+     * Выводит на сцену последний готовый уровень реконструкции. Вызывается каждый кадр из потока OpenGL.
+     */
+    public void update(
+            List<ModelLoader.Chunk> chunks,
+            List<Point3D> points,
+            boolean[] isPointCloud,
+            boolean[] isRendering) {
+        Model newModel = pendingModel.getAndSet(null);
+        if (newModel == null) return;
+
+        boolean wasPointCloud = isPointCloud[0];
+        for (ModelLoader.Chunk chunk : chunks) {
+            chunk.cleanup();
+        }
+        chunks.clear();
+        points.clear();
+        model = newModel;
+
+        chunks.addAll(loader.createChunksFromData(model.toChunkData()));
+        isPointCloud[0] = false;
+        isRendering[0] = true;
+        System.out.println("Created " + chunks.size() + " chunks for rendering.");
+        renderer.cleanupPointsBuffers();
 
+        // Уровни одного облака имеют почти одинаковые габариты, поэтому камера выставляется один раз
+        if (wasPointCloud || recenterPending) {
             updateCameraAndCenter(chunks, points);
-            renderer.setObjectColor(objectColor[0], objectColor[1], objectColor[2]); // Применяем текущий цвет
-        } catch (Exception e) {
-            System.err.println("Marching cubes processing error: " + e.getMessage());
-            e.printStackTrace();
+            recenterPending = false;
         }
+        renderer.setObjectColor(objectColor[0], objectColor[1], objectColor[2]); // Применяем текущий цвет
+    }
+
+    private static Model toModel(MarchingCubes.Mesh marchingMesh) {
+        Model newModel = new Model();
+        float[] vertices = marchingMesh.getVertices();
+        for (int v = 0; v < marchingMesh.getVertexCount(); v++) {
+            newModel.vertices.add(new Point3D(vertices[v * 3], vertices[v * 3 + 1], vertices[v * 3 + 2]));
+        }
+        // Нормали вершин вычислены по градиенту поля при извлечении; отдельный проход computeNormals не нужен
+        float[] normals = marchingMesh.getNormals();
+        List<Point3D> vertexNormals = new ArrayList<>(marchingMesh.getVertexCount());
+        for (int v = 0; normals != null && v < marchingMesh.getVertexCount(); v++) {
+            vertexNormals.add(new Point3D(normals[v * 3], normals[v * 3 + 1], normals[v * 3 + 2]));
+        }
+        int[] faces = marchingMesh.getFaces();
+        for (int f = 0; f < marchingMesh.getFaceCount() * 3; f += 3) {
+            Point3D p1 = newModel.vertices.get(faces[f]);
+            Point3D p2 = newModel.vertices.get(faces[f + 1]);
+            Point3D p3 = newModel.vertices.get(faces[f + 2]);
+            Triangle triangle = new Triangle(p1, p2, p3);
+            if (normals != null) {
+                triangle.n1 = vertexNormals.get(faces[f]);
+                triangle.n2 = vertexNormals.get(faces[f + 1]);
+                triangle.n3 = vertexNormals.get(faces[f + 2]);
+            }
+            newModel.triangles.add(triangle);
+        }
+        if (normals == null) {
+            newModel.computeNormals();
+        }
+        return newModel;
+    }
+
+    /**
+     * Отменяет текущую реконструкцию и ещё не начатую после планирования: уровни с прежним поколением не выводятся.
+     */
+    private void cancelReconstruction() {
+        synchronized (reconstructionLock) {
+            reconstructionGeneration++;
+            if (reconstruction != null) {
+                reconstruction.cancel();
+                reconstruction = null;
+            }
+        }
+        pendingModel.set(null);
+        recenterPending = true;
     }
 
     public void removeNoise(
@@ -355,6 +630,10 @@ public class ModelManager {
         return exportStatus;
     }
 
+    public String getReconstructionStatus() {
+        return reconstructionStatus;
+    }
+
     private boolean isModelLoaded() {
         return model != null && (!model.vertices.isEmpty() || !model.triangles.isEmpty());
     }
@@ -364,6 +643,8 @@ public class ModelManager {
     }
 
     public void cleanup() {
+        cancelReconstruction();
+        executorService.shutdown();
         renderer.cleanup();
     }
 
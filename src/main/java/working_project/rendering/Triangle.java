@@ -5,6 +5,10 @@ public class Triangle {
     public Point3D v2;
     public Point3D v3;
     public Point3D normal;
+    // Нормали вершин для сглаженного освещения; null — у всех вершин нормаль грани
+    public Point3D n1;
+    public Point3D n2;
+    public Point3D n3;
 
     public Triangle(Point3D v1, Point3D v2, Point3D v3, Point3D normal) {
         this.v1 = v1;